@@ -0,0 +1,155 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.collections.TopDocuments;
+import me.yuhuan.io.PostingsCodec;
+
+import java.util.ArrayList;
+
+/**
+ * Ranks the documents that have any of some terms by BM25, and keeps the top k.
+ * The postings are walked with WAND: each term is given the highest score it can add to a document, from the highest
+ * frequency in its postings. The terms are kept in order of their current documents, and a document is only scored
+ * when the terms that can be on it can add up to more than the lowest score of the top k so far; the terms that can
+ * not are advanced past it, skipping the blocks in between without decoding them. Once the top k fill up with good
+ * documents, most postings of the common terms of a query are never scored.
+ */
+public class Bm25Ranker {
+
+    static final double K1 = 1.2;
+    static final double B = 0.75;
+
+    static class Term {
+        QueryEvaluator.PostingIterator postings;
+        double idf;
+
+        /**
+         * The highest score the term can add to a document.
+         */
+        double maxScore;
+    }
+
+    SegmentedIndex _index;
+    DocumentLengths _lengths;
+    long _numScored;
+    long _numPostings;
+
+    public Bm25Ranker(SegmentedIndex index, DocumentLengths lengths) {
+        _index = index;
+        _lengths = lengths;
+    }
+
+    /**
+     * The inverse document frequency of a term, as BM25 weighs it. It is never negative, even for a term in more
+     * than half of the documents.
+     */
+    public static double idf(int numDocuments, int documentFrequency) {
+        return Math.log(1 + (numDocuments - documentFrequency + 0.5) / (documentFrequency + 0.5));
+    }
+
+    /**
+     * The score a term adds to a document.
+     */
+    public static double score(double idf, int frequency, int documentLength, double averageLength) {
+        double relativeLength = averageLength > 0 ? documentLength / averageLength : 1;
+        return idf * frequency * (K1 + 1) / (frequency + K1 * (1 - B + B * relativeLength));
+    }
+
+    /**
+     * Ranks the documents that have any of the terms.
+     * @param k Number of documents to keep.
+     * @return The top k documents, from the highest score down.
+     */
+    public TopDocuments rank(ArrayList<String> terms, int k) {
+        TopDocuments top = new TopDocuments(k);
+        int numDocuments = _lengths.getNumDocuments();
+        double averageLength = _lengths.getAverageLength();
+
+        ArrayList<Term> live = new ArrayList<Term>();
+        for (String term : terms) {
+            // The sizes of the lists give the document frequency, and their block headers the highest frequency.
+            int documentFrequency = 0;
+            int maxFrequency = 0;
+            for (PostingsCodec.Decoder segment : _index.openPostings(term)) {
+                documentFrequency += segment.size();
+                while (segment.nextBlock()) maxFrequency = Math.max(maxFrequency, segment.getBlockMaxFrequency());
+            }
+            if (documentFrequency == 0) continue;
+
+            Term t = new Term();
+            t.postings = QueryEvaluator.openSegments(_index.openPostings(term));
+            t.idf = idf(Math.max(numDocuments, documentFrequency), documentFrequency);
+            t.maxScore = score(t.idf, maxFrequency, 0, averageLength);
+            t.postings.next();
+            live.add(t);
+            _numPostings += documentFrequency;
+        }
+        Term[] order = live.toArray(new Term[live.size()]);
+        int numLive = order.length;
+
+        while (true) {
+            // Keep the terms in order of their current documents, and drop the ones that are done.
+            for (int i = 1; i < numLive; i++) {
+                Term t = order[i];
+                int j = i - 1;
+                while (j >= 0 && order[j].postings.getDocumentId() > t.postings.getDocumentId()) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = t;
+            }
+            while (numLive > 0 && order[numLive - 1].postings.getDocumentId() == QueryEvaluator.NO_MORE_DOCUMENTS) numLive--;
+
+            // Find the pivot: the first term by which the terms so far can beat the top k.
+            double threshold = top.getThreshold();
+            double bound = 0;
+            int pivot = -1;
+            for (int i = 0; i < numLive; i++) {
+                bound += order[i].maxScore;
+                if (bound > threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if (pivot < 0) break;
+            int pivotDocumentId = order[pivot].postings.getDocumentId();
+
+            if (order[0].postings.getDocumentId() == pivotDocumentId) {
+                // All the terms before the pivot are on its document. Score it with every term there.
+                int length = _lengths.get(pivotDocumentId);
+                double score = 0;
+                for (int i = 0; i < numLive && order[i].postings.getDocumentId() == pivotDocumentId; i++) {
+                    score += score(order[i].idf, order[i].postings.getFrequency(), length, averageLength);
+                }
+                top.offer(pivotDocumentId, (float)score);
+                _numScored++;
+                for (int i = 0; i < numLive; i++) {
+                    if (order[i].postings.getDocumentId() == pivotDocumentId) order[i].postings.next();
+                }
+            }
+            else {
+                // The documents before the pivot's can not make the top k.
+                for (int i = 0; i < pivot; i++) order[i].postings.advance(pivotDocumentId);
+            }
+        }
+
+        top.sort();
+        return top;
+    }
+
+    /**
+     * Number of documents scored by rank() so far.
+     */
+    public long getNumScored() {
+        return _numScored;
+    }
+
+    /**
+     * Number of postings of the terms given to rank() so far.
+     */
+    public long getNumPostings() {
+        return _numPostings;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * Partitions words by consistent hashing. Each category owns a number of virtual nodes on a ring of 32-bit hash
+ * values, and a word belongs to the category owning the first node at or after the word's hash. With enough
+ * virtual nodes per category, every category gets about the same share of the vocabulary, however skewed its
+ * letters are.
+ * A category that is still too hot can be split: a new category takes over the first half of every arc of the
+ * hot one. Words indexed before a split stay with the old category, so split before indexing, or re-index.
+ */
+public class ConsistentHashPartitioner implements Partitioner {
+
+    static final String KIND = "consistent-hash";
+    static final int DEFAULT_NUM_CATEGORIES = 27;
+    static final int DEFAULT_NUM_VIRTUAL_NODES = 64;
+    static final long RING_SIZE = 1L << 32;
+
+    /**
+     * The virtual nodes. Replaced as a whole when a category is split, so that lookups need no lock.
+     */
+    static class Ring {
+        /**
+         * Positions of the virtual nodes on the ring, sorted.
+         */
+        final long[] points;
+
+        /**
+         * Category owning each virtual node, i.e. the arc that ends at it.
+         */
+        final String[] owners;
+
+        Ring(long[] points, String[] owners) {
+            this.points = points;
+            this.owners = owners;
+        }
+    }
+
+    volatile ArrayList<String> _categories;
+    volatile Ring _ring;
+
+    /**
+     * Creates a ring where each category owns the same number of virtual nodes.
+     */
+    public ConsistentHashPartitioner(ArrayList<String> categories, int numVirtualNodes) {
+        _categories = new ArrayList<String>(categories);
+        long[] points = new long[categories.size() * numVirtualNodes];
+        String[] owners = new String[points.length];
+        int numPoints = 0;
+        for (String category : categories) {
+            for (int i = 0; i < numVirtualNodes; i++) {
+                points[numPoints] = hash(category + "#" + i);
+                owners[numPoints] = category;
+                numPoints++;
+            }
+        }
+        setRing(points, owners);
+    }
+
+    private ConsistentHashPartitioner(ArrayList<String> categories, long[] points, String[] owners) {
+        _categories = categories;
+        setRing(points, owners);
+    }
+
+    /**
+     * Creates the default ring: categories "p00", "p01", ..., each with the same number of virtual nodes.
+     */
+    public static ConsistentHashPartitioner createDefault() {
+        ArrayList<String> categories = new ArrayList<String>();
+        for (int i = 0; i < DEFAULT_NUM_CATEGORIES; i++) {
+            categories.add(String.format("p%02d", i));
+        }
+        return new ConsistentHashPartitioner(categories, DEFAULT_NUM_VIRTUAL_NODES);
+    }
+
+    public ArrayList<String> getCategories() {
+        return _categories;
+    }
+
+    public String getCategoryOf(String word) {
+        Ring ring = _ring;
+        int i = Arrays.binarySearch(ring.points, hash(word));
+        if (i < 0) i = -i - 1;
+        if (i == ring.points.length) i = 0;
+        return ring.owners[i];
+    }
+
+    /**
+     * Splits a hot category in two: a new category takes over the first half of every arc the category owns.
+     * @param category The category to split.
+     * @return The new category.
+     */
+    public synchronized String splitCategory(String category) {
+        HashSet<String> existing = new HashSet<String>(_categories);
+        int suffix = 1;
+        while (existing.contains(category + "_" + suffix)) suffix++;
+        String newCategory = category + "_" + suffix;
+
+        Ring ring = _ring;
+        long[] points = new long[ring.points.length * 2];
+        String[] owners = new String[points.length];
+        int numPoints = 0;
+        for (int i = 0; i < ring.points.length; i++) {
+            if (ring.owners[i].equals(category)) {
+                long previous = i == 0 ? ring.points[ring.points.length - 1] - RING_SIZE : ring.points[i - 1];
+                long arcLength = ring.points[i] - previous;
+                if (arcLength >= 2) {
+                    points[numPoints] = (previous + arcLength / 2 + RING_SIZE) % RING_SIZE;
+                    owners[numPoints] = newCategory;
+                    numPoints++;
+                }
+            }
+            points[numPoints] = ring.points[i];
+            owners[numPoints] = ring.owners[i];
+            numPoints++;
+        }
+
+        ArrayList<String> categories = new ArrayList<String>(_categories);
+        categories.add(newCategory);
+        setRing(Arrays.copyOf(points, numPoints), Arrays.copyOf(owners, numPoints));
+        _categories = categories;
+        return newCategory;
+    }
+
+    /**
+     * Serializes the ring. The first line is the kind of partitioner, the second the categories, then one
+     * virtual node per line.
+     */
+    public synchronized ArrayList<String> toLines() {
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add(KIND);
+        StringBuilder builder = new StringBuilder();
+        for (String category : _categories) {
+            if (builder.length() > 0) builder.append(",");
+            builder.append(category);
+        }
+        lines.add(builder.toString());
+        Ring ring = _ring;
+        for (int i = 0; i < ring.points.length; i++) {
+            lines.add(ring.points[i] + "," + ring.owners[i]);
+        }
+        return lines;
+    }
+
+    public static ConsistentHashPartitioner fromLines(String[] lines) {
+        ArrayList<String> categories = new ArrayList<String>(Arrays.asList(lines[1].split(",")));
+        long[] points = new long[lines.length - 2];
+        String[] owners = new String[points.length];
+        for (int i = 2; i < lines.length; i++) {
+            String[] parts = lines[i].split(",");
+            points[i - 2] = Long.parseLong(parts[0]);
+            owners[i - 2] = parts[1];
+        }
+        return new ConsistentHashPartitioner(categories, points, owners);
+    }
+
+    /**
+     * Hashes a string to a position on the ring. FNV-1a over the characters, followed by the MurmurHash3
+     * finalizer so that similar words land far apart. Stable across JVMs.
+     */
+    public static long hash(String s) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Sorts the virtual nodes by position, and installs them as the ring.
+     */
+    private void setRing(long[] points, String[] owners) {
+        Integer[] order = new Integer[points.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        final long[] keys = points;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(keys[a], keys[b]);
+            }
+        });
+
+        long[] sortedPoints = new long[points.length];
+        String[] sortedOwners = new String[points.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedPoints[i] = points[order[i]];
+            sortedOwners[i] = owners[order[i]];
+        }
+        _ring = new Ring(sortedPoints, sortedOwners);
+    }
+}
@@ -52,6 +52,7 @@ public class DemoProgram {
             Console.writeLine("\t1. Index a document");
             Console.writeLine("\t2. Search for keywords");
             Console.writeLine("\t3. FOR DEMO ONLY: index all documents");
+            Console.writeLine("\t5. Search for a query, e.g. fox AND (quick OR NOT zebra)");
 
 
             int userChoice = Console.readInt();
@@ -92,6 +93,20 @@ public class DemoProgram {
                     Thread.sleep(600);
                 }
             }
+            else if (userChoice == 5) {
+                Console.write("Query: ");
+                String query = Console.readLine();
+                try {
+                    ArrayList<Helper.PostingItem> result = MiniGoogleLib.requestQuerying(query);
+                    Console.writeLine("Result for query \"" + query + "\":");
+                    for (Helper.PostingItem item : result) {
+                        Console.writeLine("  | " + item.getDocumentName());
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    Console.writeLine(e.getMessage());
+                }
+            }
             else {
                 Console.writeLine("Please only choose from the options listed. ");
             }
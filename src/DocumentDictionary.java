@@ -0,0 +1,126 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.io.VarInt;
+import me.yuhuan.utilities.Console;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+/**
+ * The IDs of the documents in the cluster. The master gives a document an ID when it first indexes it, and helpers
+ * keep postings by ID; names are looked up only for the results sent back to the client.
+ * IDs are given in order from 0, and kept in an append-only log: after a header, the name of each document in the
+ * order of IDs, as the length of the name, the name in UTF-8, and the CRC-32 of the name. Lengths are VarInts. A name
+ * is flushed to the disk before its ID is used. A record cut short by a crash is dropped when the log is opened.
+ */
+public class DocumentDictionary {
+
+    static final int MAGIC = 0x444f4331; // "DOC1"
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    String _path;
+    FileOutputStream _file;
+    DataOutputStream _output;
+
+    ArrayList<String> _names;
+    HashMap<String, Integer> _ids;
+
+    /**
+     * Opens the log of a dictionary, creating it and its directory if they do not exist.
+     */
+    public DocumentDictionary(String path) throws IOException {
+        _path = path;
+        _names = new ArrayList<String>();
+        _ids = new HashMap<String, Integer>();
+
+        new java.io.File(path).getAbsoluteFile().getParentFile().mkdirs();
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.length() < 4) {
+                file.setLength(0);
+                file.writeInt(MAGIC);
+                file.getFD().sync();
+            }
+            byte[] bytes = new byte[(int)file.length()];
+            file.seek(0);
+            file.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt() != MAGIC) throw new IOException(path + " is not a document dictionary. ");
+
+            int end = buffer.position();
+            try {
+                while (buffer.hasRemaining()) {
+                    int length = VarInt.read(buffer);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes, buffer.position(), length);
+                    String name = new String(bytes, buffer.position(), length, UTF8);
+                    buffer.position(buffer.position() + length);
+                    if (buffer.getInt() != (int)crc.getValue()) break;
+                    _ids.put(name, _names.size());
+                    _names.add(name);
+                    end = buffer.position();
+                }
+            }
+            catch (BufferUnderflowException e) { }
+            catch (IndexOutOfBoundsException e) { }
+            catch (IllegalArgumentException e) { }
+
+            if (end < bytes.length) {
+                Console.writeLine("Dropped " + (bytes.length - end) + " bytes at the end of " + path);
+                file.setLength(end);
+                file.getFD().sync();
+            }
+        }
+        finally {
+            file.close();
+        }
+
+        _file = new FileOutputStream(path, true);
+        _output = new DataOutputStream(_file);
+    }
+
+    /**
+     * Gets the ID of a document, giving it the next ID if it has none yet.
+     */
+    public synchronized int getId(String documentName) throws IOException {
+        Integer id = _ids.get(documentName);
+        if (id != null) return id;
+
+        byte[] bytes = documentName.getBytes(UTF8);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        VarInt.write(_output, bytes.length);
+        _output.write(bytes);
+        _output.writeInt((int)crc.getValue());
+        _output.flush();
+        _file.getFD().sync();
+
+        id = _names.size();
+        _ids.put(documentName, id);
+        _names.add(documentName);
+        return id;
+    }
+
+    /**
+     * Gets the name of a document by its ID.
+     * @return The name, or null if no document has the ID.
+     */
+    public synchronized String getName(int id) {
+        return id >= 0 && id < _names.size() ? _names.get(id) : null;
+    }
+
+    public synchronized int size() {
+        return _names.size();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.io.VarInt;
+import me.yuhuan.utilities.Console;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * The length, in terms, of each document a helper has indexed, for BM25 to score the documents by. The master counts
+ * the terms of a document as it maps it, and sends the length to the reducer of every category, so that each helper
+ * knows the lengths of all documents, and so the number of documents and their average length, whichever terms it
+ * has.
+ * Lengths are kept in an append-only log: after a header, a record per document indexed, as the document ID and the
+ * length, both VarInts, and the CRC-32 of the two. A document indexed again takes the length of its last record. A
+ * record cut short by a crash is dropped when the log is opened.
+ */
+public class DocumentLengths {
+
+    static final int MAGIC = 0x444c4e31; // "DLN1"
+    static final int UNKNOWN = -1;
+
+    String _path;
+    FileOutputStream _file;
+    DataOutputStream _output;
+
+    /**
+     * The length of each document by ID, or UNKNOWN.
+     */
+    int[] _lengths;
+    int _numDocuments;
+    long _totalLength;
+
+    /**
+     * Opens the log of the lengths, creating it and its directory if they do not exist.
+     */
+    public DocumentLengths(String path) throws IOException {
+        _path = path;
+        _lengths = new int[16];
+        Arrays.fill(_lengths, UNKNOWN);
+
+        new java.io.File(path).getAbsoluteFile().getParentFile().mkdirs();
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            if (file.length() < 4) {
+                file.setLength(0);
+                file.writeInt(MAGIC);
+                file.getFD().sync();
+            }
+            byte[] bytes = new byte[(int)file.length()];
+            file.seek(0);
+            file.readFully(bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.getInt() != MAGIC) throw new IOException(path + " is not a log of document lengths. ");
+
+            int end = buffer.position();
+            try {
+                while (buffer.hasRemaining()) {
+                    int start = buffer.position();
+                    int documentId = VarInt.read(buffer);
+                    int length = VarInt.read(buffer);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes, start, buffer.position() - start);
+                    if (buffer.getInt() != (int)crc.getValue()) break;
+                    put(documentId, length);
+                    end = buffer.position();
+                }
+            }
+            catch (BufferUnderflowException e) { }
+            catch (IllegalArgumentException e) { }
+
+            if (end < bytes.length) {
+                Console.writeLine("Dropped " + (bytes.length - end) + " bytes at the end of " + path);
+                file.setLength(end);
+                file.getFD().sync();
+            }
+        }
+        finally {
+            file.close();
+        }
+
+        _file = new FileOutputStream(path, true);
+        _output = new DataOutputStream(_file);
+    }
+
+    /**
+     * Records the length of a document, and flushes it to the disk.
+     */
+    public synchronized void set(int documentId, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        VarInt.write(record, documentId);
+        VarInt.write(record, length);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        record.writeInt((int)crc.getValue());
+
+        _output.write(bytes.toByteArray());
+        _output.flush();
+        _file.getFD().sync();
+        put(documentId, length);
+    }
+
+    void put(int documentId, int length) {
+        if (documentId < 0 || length < 0) throw new IllegalArgumentException("Bad length " + length + " of document " + documentId);
+        if (documentId >= _lengths.length) {
+            int oldCapacity = _lengths.length;
+            _lengths = Arrays.copyOf(_lengths, Math.max(documentId + 1, oldCapacity * 2));
+            Arrays.fill(_lengths, oldCapacity, _lengths.length, UNKNOWN);
+        }
+        if (_lengths[documentId] == UNKNOWN) {
+            _numDocuments++;
+        }
+        else {
+            _totalLength -= _lengths[documentId];
+        }
+        _lengths[documentId] = length;
+        _totalLength += length;
+    }
+
+    /**
+     * Gets the length of a document.
+     * @return The length, or the average length if the document has none.
+     */
+    public synchronized int get(int documentId) {
+        if (documentId >= 0 && documentId < _lengths.length && _lengths[documentId] != UNKNOWN) return _lengths[documentId];
+        return (int)Math.round(getAverageLength());
+    }
+
+    public synchronized int getNumDocuments() {
+        return _numDocuments;
+    }
+
+    public synchronized double getAverageLength() {
+        return _numDocuments == 0 ? 0 : (double)_totalLength / _numDocuments;
+    }
+}
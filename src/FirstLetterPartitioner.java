@@ -0,0 +1,38 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import java.util.ArrayList;
+
+/**
+ * Partitions words by their first letter: one category per letter, plus "#" for words starting with a digit.
+ * Simple, but as skewed as the first letters of the language.
+ */
+public class FirstLetterPartitioner implements Partitioner {
+
+    ArrayList<String> _categories;
+
+    public FirstLetterPartitioner() {
+        _categories = new ArrayList<String>();
+        for (Character character : "abcdefghijklmnopqrstuvwxyz#".toCharArray()) {
+            _categories.add(String.valueOf(character));
+        }
+    }
+
+    public ArrayList<String> getCategories() {
+        return _categories;
+    }
+
+    public String getCategoryOf(String word) {
+        try {
+            char firstLetter = word.charAt(0);
+            if ("abcdefghijklmnopqrstuvwxyz".indexOf(firstLetter) >= 0) return String.valueOf(firstLetter);
+            else if ("0123456789".indexOf(firstLetter) >= 0) return "#";
+            else return "UNK";
+        }
+        catch (Exception e) {
+            return "UNK";
+        }
+    }
+}
@@ -4,21 +4,33 @@
  */
 
 import me.yuhuan.collections.Pair;
+import me.yuhuan.collections.PostingList;
+import me.yuhuan.collections.TermCounter;
+import me.yuhuan.collections.TopDocuments;
 import me.yuhuan.io.Directory;
-import me.yuhuan.io.File;
+import me.yuhuan.io.MappedTextFile;
+import me.yuhuan.io.TermCountRun;
 import me.yuhuan.io.TextFile;
 import me.yuhuan.net.Utilities;
 import me.yuhuan.net.core.ServerInfo;
+import me.yuhuan.net.core.TcpConnectionPool;
 import me.yuhuan.net.core.TcpMessenger;
+import me.yuhuan.text.ByteTokenizer;
 import me.yuhuan.utilities.Console;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Created by Yuhuan Jiang on 11/27/14.
@@ -60,117 +72,83 @@ public class Helper {
 
 
 
-    /**
-     * Represents an inverted index (II) in MapReduce.
-     * Allows loading from and saving to files.
-     * Allows merging with counts for new documents.
-     */
-    public static class InvertedIndex {
-
-        /**
-         * [("word", [("doc1", 123), ("doc2", 90), ... ]), ...]
-         */
-        volatile ConcurrentHashMap<String, ArrayList<PostingItem>> _table;
-
-        /**
-         * Initializes an empty inverted index.
-         */
-        public InvertedIndex() {
-            _table = new ConcurrentHashMap<String, ArrayList<PostingItem>>();
-        }
+    public static class ScoredItem implements Comparable<ScoredItem> {
+        Pair<String, Float> _item;
 
-        /**
-         * Initializes the inverted index by loading a file.
-         * @param filePath The path to the II's file.
-         */
-        public InvertedIndex(String filePath) throws IOException {
-            _table = new ConcurrentHashMap<String, ArrayList<PostingItem>>();
-            String[] lines = TextFile.read(filePath);
-            for (String line : lines) {
-                String[] parts = line.split(",");
-                String word = parts[0];
-                ArrayList<PostingItem> postings = new ArrayList<PostingItem>();
-                for (int i = 1; i < parts.length; i++) {
-                    String[] docIdAndCount = parts[i].split("\\|");
-                    String docId = docIdAndCount[0];
-                    int count = Integer.parseInt(docIdAndCount[1]);
-                    postings.add(new PostingItem(docId, count));
-                }
-                _table.put(word, postings);
-            }
+        public ScoredItem(String documentName, Float score) {
+            _item = new Pair<String, Float>(documentName, score);
         }
 
-        public ArrayList<PostingItem> get(String word) {
-            return _table.get(word);
-        }
+        public String getDocumentName() { return _item.item1; }
 
-        /**
-         * Merge with the counts for a new document.
-         * @param more Counts for the new document.
-         * @param documentName Name of the new document.
-         */
-        public void mergeWith(HashMap<String, Integer> more, String documentName) {
-            try {
-                for (Map.Entry<String, Integer> pair : more.entrySet()) {
-                    String word = pair.getKey();
-                    int count = pair.getValue();
+        public float getScore() { return _item.item2; }
 
-                    if (_table.containsKey(word)) {
-                        _table.get(word).add(new PostingItem(documentName, count));
-                    } else {
-                        ArrayList<PostingItem> postings = new ArrayList<PostingItem>();
-                        postings.add(new PostingItem(documentName, count));
-                        _table.put(word, postings);
-                    }
-                }
-            }
-            catch (NullPointerException e) {
-                int aaa = 0;
-            }
+        @Override
+        public int compareTo(ScoredItem that) {
+            return Float.compare(this._item.item2, that._item.item2);
         }
 
-        /**
-         * Saves the inverted index to a text file.
-         * @param filePath Where to save.
-         */
-        public synchronized void saveToFile(String filePath) throws IOException{
-            ArrayList<String> lines = new ArrayList<String>();
-            for (Map.Entry<String, ArrayList<PostingItem>> pair : _table.entrySet()) {
-                String word = pair.getKey();
-                ArrayList<PostingItem> postings = pair.getValue();
-
-                StringBuilder stringBuilder = new StringBuilder();
-                stringBuilder.append(word);
-                stringBuilder.append(",");
-                for (int i = 0; i < postings.size(); i++) {
-                    PostingItem posting = postings.get(i);
-                    stringBuilder.append(posting.getDocumentName());
-                    stringBuilder.append("|");
-                    stringBuilder.append(posting.getFrequency());
-                    stringBuilder.append(",");
-                }
-                String postingsString = stringBuilder.substring(0, stringBuilder.length() - 1);
-                lines.add(postingsString);
-            }
-            TextFile.write(filePath, lines);
+        @Override
+        public String toString() {
+            return _item.toString();
         }
     }
 
+
+
     //region HELPER CONFIGURATIONS
     static final String MAPPER_OUT_DIR = "working/mappers/";
     static final String REDUCER_DIR = "working/reducers/";
     static final int IM_ALIVE_INTERVAL = 5000;
+
+    /**
+     * Segments are split into ranges of at least this many bytes, to be mapped in parallel. A segment smaller than
+     * two such ranges is mapped on one thread.
+     */
+    static final int MIN_MAPPING_RANGE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Each segment of the II keeps this many postings of a common term by frequency ahead of the rest, so that the
+     * top postings of the term are read with no sort. A search with a larger limit sorts the whole list.
+     */
+    static final int IMPACT_PREFIX_SIZE = 1024;
     //endregion
 
     static String _nameServerIpAddress;
     static int _nameServerPortNumber;
+    static ServerInfo _nameServerInfo;
 
     static String _myIpAddress;
     static int _myPortNumber;
 
     static String _category;
 
-    static InvertedIndex _invertedIndex;
+    /**
+     * The inverted index of _category: one segment per reduced transaction, merged in the background.
+     */
+    static SegmentedIndex _invertedIndex;
+
+    /**
+     * The length of every document indexed, for ranking.
+     */
+    static DocumentLengths _documentLengths;
+
+    /**
+     * Leases of the jobs this helper is working on. They are renewed with every heartbeat, so that the name server
+     * keeps counting the load of a long job, and stops counting it once this helper dies.
+     */
+    static Set<Integer> _activeLeases = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * Transactions whose counts have been added to _invertedIndex, and the lock for adding them.
+     */
+    static final Set<Integer> _reducedTransactions = new HashSet<Integer>();
+    static final Object _reducingLock = new Object();
+
+    /**
+     * Threads that map the ranges of segments, one per core, shared by all mapping jobs of this helper.
+     */
+    static final ForkJoinPool _mappingPool = new ForkJoinPool();
 
     /**
      * Registers this helper to the name server, and obtains the category assigned by the name server.
@@ -179,25 +157,24 @@ public class Helper {
      */
     static String register() throws IOException {
         Console.writeLine("Registering myself... ");
-        Socket socketToNameServer = new Socket(_nameServerIpAddress, _nameServerPortNumber);
-        TcpMessenger messenger = new TcpMessenger(socketToNameServer);
-        messenger.sendTag(Tags.REQUEST_HELPER_REGISTERING);
-        messenger.sendServerInfo(new ServerInfo(_myIpAddress, _myPortNumber));
-        String categoryAssigned = messenger.receiveString();
+        String categoryAssigned = MiniGoogleUtilities.connectionPool.exchange(_nameServerInfo, new TcpConnectionPool.Exchange<String>() {
+            public String run(TcpMessenger messenger) throws IOException {
+                messenger.sendTag(Tags.REQUEST_HELPER_REGISTERING);
+                messenger.sendServerInfo(new ServerInfo(_myIpAddress, _myPortNumber));
+                return messenger.receiveString();
+            }
+        });
         Console.writeLine("Registration success. I am responsible for category " + categoryAssigned + "\n");
         return categoryAssigned;
     }
 
-    static void returnToNameServer() throws IOException {
-        try {
-            Socket socketToNameServer = new Socket(_nameServerIpAddress, _nameServerPortNumber);
-            TcpMessenger messenger = new TcpMessenger(socketToNameServer);
-            messenger.sendTag(Tags.REQUEST_HELPER_RETURN);
-            messenger.sendServerInfo(new ServerInfo(_myIpAddress, _myPortNumber));
-            messenger.sendString(_category);
-        }
-        catch (Exception e) {
-            int aaa = 0;
+    /**
+     * Returns the lease of a finished job to the name server. Does nothing if the job was not under a lease.
+     */
+    static void returnToNameServer(int leaseId) throws IOException {
+        _activeLeases.remove(leaseId);
+        if (!MiniGoogleUtilities.returnLease(leaseId, _nameServerInfo)) {
+            Console.writeLine("Failed to return myself to the name server. The lease will expire. ");
         }
     }
 
@@ -211,18 +188,29 @@ public class Helper {
         String[] lines = TextFile.read("name_server_info");
         _nameServerIpAddress = lines[0];
         _nameServerPortNumber = Integer.parseInt(lines[1]);
+        _nameServerInfo = new ServerInfo(_nameServerIpAddress, _nameServerPortNumber);
 
         Console.writeLine("A helper is running on " + _myIpAddress + " at port " + _myPortNumber + "\n");
 
         _category = register();
 
-        // Load the partial II file for _category, if there is
-        String pathToPartialInvertedIndex = REDUCER_DIR + _category;
-        if (TextFile.exists(pathToPartialInvertedIndex)) {
-            _invertedIndex = new InvertedIndex(pathToPartialInvertedIndex);
+        // Open the segments of the II for _category, if there are any. Helpers of the same category on this host each
+        // take an II of their own, the first one no other helper holds, with the document lengths that go with it.
+        for (int slot = 0; _invertedIndex == null; slot++) {
+            String pathPrefix = REDUCER_DIR + _category + (slot == 0 ? "" : "." + slot);
+            try {
+                _invertedIndex = new SegmentedIndex(pathPrefix + ".index/", IMPACT_PREFIX_SIZE);
+            }
+            catch (IndexLockedException e) {
+                continue;
+            }
+            _documentLengths = new DocumentLengths(pathPrefix + ".lengths");
         }
-        else {
-            _invertedIndex = new InvertedIndex();
+
+        // An II saved as text keeps document names, and only the master can give them IDs.
+        String pathToTextInvertedIndex = REDUCER_DIR + _category;
+        if (TextFile.exists(pathToTextInvertedIndex)) {
+            Console.writeLine("The II in " + pathToTextInvertedIndex + " has no document IDs and is not served. Index its documents again. ");
         }
 
         // Start the reporter thread that tells the name server I'm alive.
@@ -230,258 +218,454 @@ public class Helper {
 
         try {
             while (true) {
-                // Obtain the client's TCP socket.
+                // Obtain the client's TCP socket. Masters keep their connections open and send many requests on
+                // them, so each connection gets one worker for its whole lifetime.
                 Socket clientSocket = serverSocket.accept();
-
-                // Create IO wrapper for the client's socket.
-                TcpMessenger messenger = new TcpMessenger(clientSocket);
-
-                // Determine the type of request. Possible types are:
-                //    (1) Indexing mapping
-                //    (2) Indexing reducing
-                //    (3) Searching
-                int tag = messenger.receiveTag();
-                if (tag == Tags.REQUEST_INDEXING_MAPPING) {
-                    (new IndexingMappingWorker(clientSocket)).start();
-                } else if (tag == Tags.REQUEST_INDEXING_REDUCING) {
-                    (new IndexingReducingWorker(clientSocket)).start();
-                } else if (tag == Tags.REQUEST_SEARCHING) {
-                    (new SearchingWorker(clientSocket)).start();
-                }
-
+                (new ConnectionWorker(clientSocket)).start();
             }
         } finally {
             serverSocket.close();
         }
     }
 
-    private static HashMap<String, Integer> mapping(String[] lines) {
-        HashMap<String, Integer> counts = new HashMap<String, Integer>();
-        for (String line : lines) {
-            String[] rawWords = line.split("\\s+");
+    /**
+     * Counts the words of a document, given as ASCII or UTF-8 bytes between the position and the limit of a buffer.
+     */
+    static TermCounter mapping(ByteBuffer text) {
+        final TermCounter counts = new TermCounter();
+        MiniGoogleUtilities.tokenizer.tokenize(text, new ByteTokenizer.Handler() {
+            public void token(ByteBuffer buffer, int start, int length, int hash) {
+                counts.add(buffer, start, length, hash, 1);
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * Counts the words of the lines in an input split. Each range is read straight from the page cache.
+     */
+    static TermCounter mapping(InputSplit split) throws IOException {
+        TermCounter counts = null;
+        for (InputSplit.Range range : split.ranges) {
+            TermCounter countsOfRange = mappingInParallel(MappedTextFile.mapLines(range.path, range.start, range.length));
+            if (counts == null) counts = countsOfRange;
+            else counts.addAll(countsOfRange);
+        }
+        return counts == null ? new TermCounter() : counts;
+    }
+
+    /**
+     * Counts the words of a document like mapping(), but splits large documents into ranges at line breaks, and
+     * counts the ranges in parallel, each into its own counter.
+     */
+    static TermCounter mappingInParallel(ByteBuffer text) {
+        return _mappingPool.invoke(new MappingTask(text, text.position(), text.limit()));
+    }
 
-            // valid words. without @#$ and other blank words
-            ArrayList<String> words = new ArrayList<String>();
-            for (String word : rawWords) {
-                if (MiniGoogleUtilities.isWord(word)) words.add(word);
+    /**
+     * Counts the words of a range of a document. A range too large for one thread is halved at a line break; the
+     * halves are counted in parallel, and the counts of the smaller half are added to those of the larger.
+     */
+    static class MappingTask extends RecursiveTask<TermCounter> {
+        private static final long serialVersionUID = 1L;
+
+        ByteBuffer _text;
+        int _start;
+        int _end;
+
+        MappingTask(ByteBuffer text, int start, int end) {
+            _text = text;
+            _start = start;
+            _end = end;
+        }
+
+        @Override
+        protected TermCounter compute() {
+            int middle = _end;
+            if (_end - _start >= 2 * MIN_MAPPING_RANGE_SIZE) {
+                middle = MappedTextFile.findNextLineStart(_text, _start + (_end - _start) / 2);
+            }
+            if (middle >= _end) {
+                // Small enough, or one long line.
+                ByteBuffer range = _text.duplicate();
+                range.limit(_end);
+                range.position(_start);
+                return mapping(range);
             }
 
-            for (String word : words) {
-                int count = counts.containsKey(word) ? counts.get(word) : 0;
-                counts.put(word, count + 1);
+            MappingTask firstHalf = new MappingTask(_text, _start, middle);
+            firstHalf.fork();
+            TermCounter secondCounts = new MappingTask(_text, middle, _end).compute();
+            TermCounter firstCounts = firstHalf.join();
+
+            if (firstCounts.size() < secondCounts.size()) {
+                secondCounts.addAll(firstCounts);
+                return secondCounts;
             }
+            firstCounts.addAll(secondCounts);
+            return firstCounts;
         }
-        return counts;
     }
 
-    static class ImAliveWorker extends Thread {
-        public void run() {
+    /**
+     * Writes the counts of a segment as partial counts, one run per category, sorted by word:
+     * transactionDirectory/category/segmentName. A reducer then reads only the runs of its own category, and merges
+     * them in one pass.
+     * The master may run a backup of a mapping job on another helper, which writes the same runs to the same paths;
+     * runs are written atomically, which makes that harmless.
+     * @param transactionDirectory The directory of the transaction, ending with a slash.
+     */
+    static void writePartialCounts(TermCounter counts, String transactionDirectory, String segmentName) throws IOException {
+        // Go through the words in order once, appending each to the run of its category.
+        HashMap<String, TermCountRun.Writer> runs = new HashMap<String, TermCountRun.Writer>();
+        try {
+            byte[] arena = counts.getArena();
+            for (int entry : counts.getSortedEntries()) {
+                String category = MiniGoogleUtilities.getCategoryOf(counts.getTerm(entry));
+                TermCountRun.Writer run = runs.get(category);
+                if (run == null) {
+                    String categoryDirectory = transactionDirectory + category + "/";
+                    Directory.createDirectory(categoryDirectory);
+                    run = new TermCountRun.Writer(categoryDirectory + segmentName);
+                    runs.put(category, run);
+                }
+                run.add(arena, counts.getTermOffset(entry), counts.getTermLength(entry), counts.getCount(entry));
+            }
+            for (TermCountRun.Writer run : runs.values()) {
+                run.close();
+            }
+        }
+        finally {
+            for (TermCountRun.Writer run : runs.values()) {
+                run.abort();
+            }
+        }
+    }
 
-            try {
-                while (true) {
+    /**
+     * Opens the partial counts that all mappers of a transaction wrote for a category, merged into one stream
+     * sorted by word. The merger must be closed.
+     * @param transactionDirectory The directory of the transaction, ending with a slash.
+     */
+    static TermCountRun.Merger openPartialCounts(String transactionDirectory, String category) throws IOException {
+        // A category without any word in the document has no directory.
+        String categoryDirectory = transactionDirectory + category + "/";
+        if (!new java.io.File(categoryDirectory).isDirectory()) return new TermCountRun.Merger(new ArrayList<String>());
+        return new TermCountRun.Merger(Directory.getFiles(categoryDirectory));
+    }
 
-                    Socket socketToNameServer = new Socket(_nameServerIpAddress, _nameServerPortNumber);
-                    TcpMessenger messenger = new TcpMessenger(socketToNameServer);
+    /**
+     * A worker that reads the requests arriving on one persistent connection, and starts a job worker for each.
+     * The request is acknowledged once its parameters are read, so that the master knows the job is accepted.
+     */
+    static class ConnectionWorker extends Thread {
+        Socket _clientSocket;
 
-                    messenger.sendTag(Tags.MESSAGE_HELPER_ALIVE);
-                    messenger.sendServerInfo(new ServerInfo(_myIpAddress, _myPortNumber));
+        public ConnectionWorker(Socket clientSocket) {
+            _clientSocket = clientSocket;
+        }
+
+        public void run() {
+            try {
+                TcpMessenger messenger = new TcpMessenger(_clientSocket, true);
 
+                while (true) {
+                    // Determine the type of request. Possible types are:
+                    //    (1) Indexing mapping
+                    //    (2) Indexing reducing
+                    //    (3) Searching
+                    int tag;
                     try {
-                        Thread.sleep(IM_ALIVE_INTERVAL);
+                        tag = messenger.receiveTag();
+                    }
+                    catch (EOFException e) {
+                        // The master closed the connection.
+                        break;
                     }
-                    catch (InterruptedException e) { }
-                }
 
+                    if (tag == Tags.REQUEST_INDEXING_MAPPING) {
+                        InputSplit split = InputSplit.receive(messenger);
+                        int transactionId = messenger.receiveInt();
+                        String masterIpAddress = messenger.receiveString();
+                        int masterPortNumber = messenger.receiveInt();
+                        int leaseId = receiveLease(messenger);
+                        (new IndexingMappingWorker(split, transactionId, masterIpAddress, masterPortNumber, leaseId)).start();
+                    } else if (tag == Tags.REQUEST_INDEXING_REDUCING) {
+                        int transactionId = messenger.receiveInt();
+                        int documentId = messenger.receiveInt();
+                        int documentLength = messenger.receiveInt();
+                        String masterIpAddress = messenger.receiveString();
+                        int masterPortNumber = messenger.receiveInt();
+                        int leaseId = receiveLease(messenger);
+                        (new IndexingReducingWorker(transactionId, documentId, documentLength, masterIpAddress, masterPortNumber, leaseId)).start();
+                    } else if (tag == Tags.REQUEST_SEARCHING) {
+                        int numQueries = messenger.receiveInt();
+                        ArrayList<Query> queries = new ArrayList<Query>();
+                        for (int i = 0; i < numQueries; i++) {
+                            queries.add(Query.receive(messenger));
+                        }
+                        int limit = messenger.receiveInt();
+                        String masterIpAddress = messenger.receiveString();
+                        int masterPortNumber = messenger.receiveInt();
+                        int leaseId = receiveLease(messenger);
+                        (new SearchingWorker(queries, limit, masterIpAddress, masterPortNumber, leaseId)).start();
+                    } else if (tag == Tags.REQUEST_RANKING) {
+                        int numKeywords = messenger.receiveInt();
+                        ArrayList<String> keywords = new ArrayList<String>();
+                        for (int i = 0; i < numKeywords; i++) {
+                            keywords.add(messenger.receiveString());
+                        }
+                        int k = messenger.receiveInt();
+                        String masterIpAddress = messenger.receiveString();
+                        int masterPortNumber = messenger.receiveInt();
+                        int leaseId = receiveLease(messenger);
+                        (new RankingWorker(keywords, k, masterIpAddress, masterPortNumber, leaseId)).start();
+                    } else {
+                        Console.writeLine("Unknown tag " + tag + " from " + _clientSocket + ". ");
+                        break;
+                    }
+
+                    messenger.sendTag(Tags.MESSAGE_ACKNOWLEDGED);
+                    messenger.flush();
+                }
             } catch (IOException e) {
-                Console.writeLine("IO error in the I'm Alive! worker. \n");
+                Console.writeLine("IO error in connection worker. \n");
+            } finally {
+                try {
+                    _clientSocket.close();
+                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " is closed. ");
+                } catch (IOException e) {
+                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " failed to close. ");
+                }
             }
         }
     }
 
-    static class IndexingMappingWorker extends Thread {
-        /**
-         * The TPC socket of the client. Used to talk back to the client.
-         */
-        Socket _clientSocket;
+    /**
+     * Receives the lease of a job, and starts renewing it.
+     */
+    static int receiveLease(TcpMessenger messenger) throws IOException {
+        int leaseId = messenger.receiveInt();
+        if (leaseId != HelperLease.NO_LEASE) _activeLeases.add(leaseId);
+        return leaseId;
+    }
 
-        public IndexingMappingWorker(Socket clientSocket) {
-            _clientSocket = clientSocket;
+    /**
+     * Sends a heartbeat to the name server every now and then, with the leases of the jobs in progress.
+     */
+    static class ImAliveWorker extends Thread {
+        public void run() {
+
+            while (true) {
+
+                try {
+                    MiniGoogleUtilities.connectionPool.exchangeIdempotent(_nameServerInfo, new TcpConnectionPool.Exchange<Integer>() {
+                        public Integer run(TcpMessenger messenger) throws IOException {
+                            messenger.sendTag(Tags.MESSAGE_HELPER_ALIVE);
+                            messenger.sendServerInfo(new ServerInfo(_myIpAddress, _myPortNumber));
+                            ArrayList<Integer> leaseIds = new ArrayList<Integer>(_activeLeases);
+                            messenger.sendInt(leaseIds.size());
+                            for (int leaseId : leaseIds) {
+                                messenger.sendInt(leaseId);
+                            }
+                            return messenger.receiveTag();
+                        }
+                    });
+                } catch (IOException e) {
+                    Console.writeLine("IO error in the I'm Alive! worker. \n");
+                }
+
+                try {
+                    Thread.sleep(IM_ALIVE_INTERVAL);
+                }
+                catch (InterruptedException e) { }
+            }
         }
+    }
 
-        String _workingPath;
+    static class IndexingMappingWorker extends Thread {
+        InputSplit _split;
         int _transactionId;
         String _masterIp;
         int _masterPort;
         boolean _didWriteFile = false;
         boolean _didReportToMaster = false;
         boolean _didReturnToNs = false;
+        int _leaseId;
+
+        /**
+         * @param split The ranges of files to map.
+         * @param transactionId The transaction ID.
+         * @param masterIpAddress IP of the master to report to.
+         * @param masterPortNumber Port# of the master to report to.
+         * @param leaseId The lease under which this helper was borrowed for the job.
+         */
+        public IndexingMappingWorker(InputSplit split, int transactionId, String masterIpAddress, int masterPortNumber, int leaseId) {
+            _split = split;
+            _transactionId = transactionId;
+            _masterIp = masterIpAddress;
+            _masterPort = masterPortNumber;
+            _leaseId = leaseId;
+        }
 
         public void run() {
 
             try {
-                Console.write("Start indexing mapping with ");
-
-                TcpMessenger messenger = new TcpMessenger(_clientSocket);
-
-                // Obtain the path to the file segment.
-                String pathToSeg = messenger.receiveString();
-                _workingPath = pathToSeg;
+                Console.writeLine("Start indexing mapping with transaction ID = " + _transactionId);
 
-                // Obtain the transaction ID.
-                int transactionId = messenger.receiveInt();
-                Console.writeLine("transaction ID = " + transactionId);
-                _transactionId = transactionId;
-
-                // Obtain the IP and Port# of the master.
-                String masterIpAddress = messenger.receiveString();
-                int masterPortNumber = messenger.receiveInt();
-
-                _masterIp = masterIpAddress;
-                _masterPort = masterPortNumber;
+                int transactionId = _transactionId;
 
                 // Create a socket and a messenger for this helper to report finishing to.
-                Socket socketToMaster = new Socket(masterIpAddress, masterPortNumber);
+                Socket socketToMaster = new Socket(_masterIp, _masterPort);
                 TcpMessenger messengerToMaster = new TcpMessenger(socketToMaster);
 
-                HashMap<String, Integer> counts = mapping(TextFile.read(pathToSeg));
-                ArrayList<String> linesForOutput = new ArrayList<String>();
-                for (Map.Entry<String, Integer> pair : counts.entrySet()) {
-                    linesForOutput.add(pair.getKey() + "," + pair.getValue());
-                }
-
-                String[] outputLines = linesForOutput.toArray(new String[linesForOutput.size()]);
+                TermCounter counts = mapping(_split);
 
-                // Save to file
-                String pathToPartialCount = MAPPER_OUT_DIR + transactionId + "/" + File.extractFileNameFromPath(pathToSeg);
-                TextFile.write(pathToPartialCount, outputLines);
+                // Save to files, one per category.
+                writePartialCounts(counts, MAPPER_OUT_DIR + transactionId + "/", _split.name);
                 _didWriteFile = true;
 
-                // Inform the master (client) that the work is done
-                messengerToMaster.sendString(pathToSeg);
+                // Inform the master (client) that the work is done, with the number of terms of the split, which add up
+                // to the length of the document.
+                int numTerms = 0;
+                for (int entry = 0; entry < counts.size(); entry++) numTerms += counts.getCount(entry);
+                messengerToMaster.sendString(_split.name);
+                messengerToMaster.sendInt(numTerms);
+                socketToMaster.close();
                 _didReportToMaster = true;
 
                 // Return myself to name server
-                returnToNameServer();
+                returnToNameServer(_leaseId);
                 _didReturnToNs = true;
 
                 Console.writeLine("Finished indexing mapping with transaction ID = " + transactionId + "\n\t" +
-                                " Working path = " + _workingPath + "\n\t" +
+                                " Split = " + _split + "\n\t" +
                                 "Trans ID = " + _transactionId + "\n"
                 );
 
             } catch (IOException e) {
                 Console.writeLine("IO error in indexing mapping worker. \n\t" +
                         e.getMessage() + "\n\t" +
-                        " Working path = " + _workingPath + "\n\t" +
+                        " Split = " + _split + "\n\t" +
                                 "Trans ID = " + _transactionId + "\n\t" +
                                 "Master = " + _masterIp + ":" + _masterPort + "\n\t" +
                                 "Did write file = " + _didWriteFile + "\n\t" +
                                 "Did report to master = " + _didReportToMaster + "\n\t" +
                                 "Did return to NS = " + _didReturnToNs + "\n"
                 );
-            } finally {
-                try {
-                    _clientSocket.close();
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " is closed. ");
-                } catch (IOException e) {
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " failed to close. ");
-                }
+            }
+            finally {
+                // Stop renewing the lease of a failed job, so that it expires.
+                _activeLeases.remove(_leaseId);
             }
         }
     }
 
     static class IndexingReducingWorker extends Thread {
         /**
-         * The TPC socket of the client. Used to talk back to the client.
+         * The transactionId that points to the directory where mappers have output the partial counts.
          */
-        Socket _clientSocket;
+        int _transactionId;
 
-        public IndexingReducingWorker(Socket clientSocket) {
-            _clientSocket = clientSocket;
+        /**
+         * The ID the master gave the document, from its DocumentDictionary.
+         */
+        int _documentId;
+
+        /**
+         * The number of terms of the document, in all categories.
+         */
+        int _documentLength;
+        String _masterIp;
+        int _masterPort;
+        int _leaseId;
+
+        public IndexingReducingWorker(int transactionId, int documentId, int documentLength, String masterIpAddress, int masterPortNumber, int leaseId) {
+            _transactionId = transactionId;
+            _documentId = documentId;
+            _documentLength = documentLength;
+            _masterIp = masterIpAddress;
+            _masterPort = masterPortNumber;
+            _leaseId = leaseId;
         }
 
         public void run() {
             try {
                 Console.write("Start indexing reducing. ");
-                TcpMessenger messenger = new TcpMessenger(_clientSocket);
-
-                // Obtain the transactionId that points to the directory where mappers have output the partial counts.
-                int transactionId = messenger.receiveInt();
-
-                // Obtain the document name.
-                String documentName = messenger.receiveString();
-
-                // Obtain the IP and Port# of the master.
-                String masterIpAddress = messenger.receiveString();
-                int masterPortNumber = messenger.receiveInt();
+                int transactionId = _transactionId;
+                int documentId = _documentId;
 
                 // Create a socket and a messenger for this helper to report finishing to.
-                Socket socketToMaster = new Socket(masterIpAddress, masterPortNumber);
+                Socket socketToMaster = new Socket(_masterIp, _masterPort);
                 TcpMessenger messengerToMaster = new TcpMessenger(socketToMaster);
 
-                // Open all partial count files in the directory.
-                ArrayList<String> pathsToPartialCounts = Directory.getFiles(MAPPER_OUT_DIR + transactionId + "/");
-                ArrayList<String[]> partialCounts = new ArrayList<String[]>();
-                for (String path : pathsToPartialCounts) {
-                    partialCounts.add(TextFile.read(path));
-                }
-
-                // Turn all counts to a list of pairs: [Word, Count]
-                ArrayList<Pair<String, Integer>> unmergedCounts = new ArrayList<Pair<String, Integer>>();
-                for (String[] counts : partialCounts) {
-                    for (String line : counts) {
-                        String[] parts = line.split(",");
-                        String word = parts[0];
-
-                        if (MiniGoogleUtilities.getCategoryOf(word).equals(_category)) {
-                            Pair<String, Integer> pair = new Pair<String, Integer>(word, Integer.parseInt(parts[1]));
-                            unmergedCounts.add(pair);
+                synchronized (_reducingLock) {
+                    // The master may send this job again to this very helper, if an attempt timed out. Merge each
+                    // transaction once.
+                    if (!_reducedTransactions.contains(transactionId)) {
+                        // Merge the partial counts of my category into a new segment of _invertedIndex, one word at
+                        // a time. The rest of the II is not touched.
+                        TermCountRun.Merger partialCounts = openPartialCounts(MAPPER_OUT_DIR + transactionId + "/", _category);
+                        _documentLengths.set(documentId, _documentLength);
+                        IndexSegment.Writer segment = _invertedIndex.newSegment();
+                        try {
+                            while (partialCounts.next()) {
+                                segment.add(partialCounts.getTerm(), documentId, partialCounts.getCount());
+                            }
+                            _invertedIndex.commit(segment);
+                        }
+                        finally {
+                            segment.abort();
+                            partialCounts.close();
                         }
+                        _reducedTransactions.add(transactionId);
                     }
                 }
 
-                // Merge partial counts
-                HashMap<String, Integer> combinedCounts = new HashMap<String, Integer>();
-
-                for (Pair<String, Integer> pair : unmergedCounts) {
-                    String curWord = pair.item1;
-                    int count = combinedCounts.containsKey(curWord) ? combinedCounts.get(curWord) : 0;
-                    combinedCounts.put(curWord, count + pair.item2);
-                }
-
-                // Merge combinedCounts with _invertedIndex, the II already calculated for this category.
-                _invertedIndex.mergeWith(combinedCounts, documentName);
-
-                // Write _invertedIndex to file.
-                _invertedIndex.saveToFile(REDUCER_DIR + _category);
-
                 // Inform the master
                 messengerToMaster.sendString(_category);
+                socketToMaster.close();
 
                 // Return myself to name server
-                returnToNameServer();
+                returnToNameServer(_leaseId);
 
                 Console.writeLine("Finished indexing reducing. \n");
 
             } catch (IOException e) {
                 Console.writeLine("IO error in indexing reducing worker. \n");
             } finally {
-                try {
-                    _clientSocket.close();
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " is closed. ");
-                } catch (IOException e) {
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " failed to close. ");
-                }
+                _activeLeases.remove(_leaseId);
             }
         }
 
     }
 
+    /**
+     * Evaluates the parts of a query whose terms are all of the category of this helper, and returns the documents
+     * they match to the master.
+     */
     static class SearchingWorker extends Thread {
-        Socket _clientSocket;
+        ArrayList<Query> _queries;
 
-        public SearchingWorker(Socket clientSocket) {
-            _clientSocket = clientSocket;
+        /**
+         * Number of documents to return for a query of one term, those of the highest frequencies, or 0 for all.
+         */
+        int _limit;
+        String _masterIp;
+        int _masterPort;
+
+        /**
+         * The lease under which the master borrowed this helper from the name server, or HelperLease.NO_LEASE if
+         * the master picked it from its own copy of the name server's table.
+         */
+        int _leaseId;
+
+        public SearchingWorker(ArrayList<Query> queries, int limit, String masterIpAddress, int masterPortNumber, int leaseId) {
+            _queries = queries;
+            _limit = limit;
+            _masterIp = masterIpAddress;
+            _masterPort = masterPortNumber;
+            _leaseId = leaseId;
         }
 
         public void run() {
@@ -489,56 +673,92 @@ public class Helper {
 
                 Console.writeLine("Searching starts. ");
 
-                TcpMessenger messenger = new TcpMessenger(_clientSocket);
-
-                // Obtain the number of keywords to come.
-                int numKeywords = messenger.receiveInt();
-
-                // Obtain all the keywords.
-                ArrayList<String> keywords = new ArrayList<String>();
-                for (int i = 0; i < numKeywords; i++) {
-                    keywords.add(messenger.receiveString());
-                }
-
-                // Obtain the IP and Port# of the master.
-                String masterIpAddress = messenger.receiveString();
-                int masterPortNumber = messenger.receiveInt();
-
                 // Create a socket and a messenger for this helper to report finishing to.
-                Socket socketToMaster = new Socket(masterIpAddress, masterPortNumber);
+                Socket socketToMaster = new Socket(_masterIp, _masterPort);
                 TcpMessenger messengerToMaster = new TcpMessenger(socketToMaster);
                 messengerToMaster.sendString(_category);
 
 
-                // Look up table, and output result.
-                for (String keyword : keywords) {
-                    Console.write("Results for keyword " + keyword + " are: ");
-                    Console.writeLine("\t" + _invertedIndex.get(keyword));
-                }
+                // Return the documents matched by each query, in the order of the queries. The top documents of a
+                // term come from the impact prefixes of the segments, highest frequency first.
+                QueryEvaluator.Leaves terms = new QueryEvaluator.Leaves() {
+                    public QueryEvaluator.PostingIterator open(Query query) {
+                        if (query.getType() != Query.TERM) return null;
+                        return QueryEvaluator.openSegments(_invertedIndex.openPostings(query.getTerm()));
+                    }
+                };
+                messengerToMaster.sendInt(_queries.size());
+                for (Query query : _queries) {
+                    PostingList matches;
+                    if (query.getType() == Query.TERM && _limit > 0) {
+                        matches = _invertedIndex.getTopPostings(query.getTerm(), _limit);
+                        if (matches == null) matches = new PostingList();
+                    }
+                    else {
+                        matches = QueryEvaluator.collect(QueryEvaluator.evaluate(query, terms));
+                    }
+                    Console.writeLine("Results for query " + query + ": " + matches.size() + " documents. ");
 
-                // Return the postings to master
-                messengerToMaster.sendInt(keywords.size());
-                for (String keyword : keywords) {
-                    messengerToMaster.sendString(keyword);
-                    String postingsString = MiniGoogleUtilities.postingsToString(_invertedIndex.get(keyword));
-                    messengerToMaster.sendString(postingsString);
+                    messengerToMaster.sendPostingList(matches);
                 }
+                socketToMaster.close();
 
                 // Return myself to name server
-                returnToNameServer();
+                returnToNameServer(_leaseId);
 
 
                 Console.writeLine("Searching done. ");
 
             } catch (IOException e) {
-                Console.writeLine("IO error in indexing reducing worker. \n");
+                Console.writeLine("IO error in searching worker. \n");
             } finally {
-                try {
-                    _clientSocket.close();
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " is closed. ");
-                } catch (IOException e) {
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " failed to close. ");
-                }
+                _activeLeases.remove(_leaseId);
+            }
+        }
+    }
+
+    /**
+     * Ranks the documents that have any of some keywords of the category of this helper by BM25, and returns the
+     * top k to the master.
+     */
+    static class RankingWorker extends Thread {
+        ArrayList<String> _keywords;
+        int _k;
+        String _masterIp;
+        int _masterPort;
+        int _leaseId;
+
+        public RankingWorker(ArrayList<String> keywords, int k, String masterIpAddress, int masterPortNumber, int leaseId) {
+            _keywords = keywords;
+            _k = k;
+            _masterIp = masterIpAddress;
+            _masterPort = masterPortNumber;
+            _leaseId = leaseId;
+        }
+
+        public void run() {
+            try {
+                Console.writeLine("Ranking starts. ");
+
+                Bm25Ranker ranker = new Bm25Ranker(_invertedIndex, _documentLengths);
+                TopDocuments top = ranker.rank(_keywords, _k);
+                Console.writeLine("Ranked " + _keywords + ": scored " + ranker.getNumScored() + " documents for " + ranker.getNumPostings() + " postings. ");
+
+                Socket socketToMaster = new Socket(_masterIp, _masterPort);
+                TcpMessenger messengerToMaster = new TcpMessenger(socketToMaster);
+                messengerToMaster.sendString(_category);
+                messengerToMaster.sendTopDocuments(top);
+                socketToMaster.close();
+
+                // Return myself to name server
+                returnToNameServer(_leaseId);
+
+                Console.writeLine("Ranking done. ");
+
+            } catch (IOException e) {
+                Console.writeLine("IO error in ranking worker. \n");
+            } finally {
+                _activeLeases.remove(_leaseId);
             }
         }
     }
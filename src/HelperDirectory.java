@@ -0,0 +1,261 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.net.core.ServerInfo;
+import me.yuhuan.net.core.TcpConnectionPool;
+import me.yuhuan.net.core.TcpMessenger;
+import me.yuhuan.utilities.Console;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A master's copy of the name server's table, so that the master can pick a helper for a category by itself
+ * instead of asking the name server every time.
+ * The copy is leased: it is fetched again when the lease runs out, and also when the name server reports that a
+ * helper joined or left. A helper is picked by the load the name server last reported for it, plus the jobs this
+ * master has sent it and not yet got back.
+ */
+public class HelperDirectory {
+
+    static final int RECONNECT_INTERVAL = 1000;
+
+    /**
+     * One copy of the table. Never changed once fetched.
+     */
+    static class Snapshot {
+        final int version;
+        final long expirationTime;
+        final HashMap<String, ArrayList<ServerInfo>> helpers;
+        final HashMap<ServerInfo, Integer> loads;
+
+        Snapshot(int version, long expirationTime, HashMap<String, ArrayList<ServerInfo>> helpers, HashMap<ServerInfo, Integer> loads) {
+            this.version = version;
+            this.expirationTime = expirationTime;
+            this.helpers = helpers;
+            this.loads = loads;
+        }
+    }
+
+    ServerInfo _nameServerInfo;
+    volatile Snapshot _snapshot;
+
+    /**
+     * The latest version of the table that the name server reported.
+     */
+    volatile int _publishedVersion;
+
+    /**
+     * Length of the lease, as last reported by the name server.
+     */
+    volatile int _leaseDuration;
+
+    /**
+     * The jobs this master has sent to each helper and not yet got back.
+     */
+    ConcurrentHashMap<ServerInfo, AtomicInteger> _outstandingJobs;
+
+    Random _random;
+
+    public HelperDirectory(ServerInfo nameServerInfo) {
+        _nameServerInfo = nameServerInfo;
+        _outstandingJobs = new ConcurrentHashMap<ServerInfo, AtomicInteger>();
+        _random = new Random();
+    }
+
+    /**
+     * Starts listening to the name server for changes of the table. Until the subscription is up, and whenever it
+     * is down, the lease alone bounds how stale the copy can get.
+     */
+    public void start() {
+        Thread subscriber = new Thread() {
+            public void run() {
+                while (true) {
+                    listenForChanges();
+                    try {
+                        Thread.sleep(RECONNECT_INTERVAL);
+                    }
+                    catch (InterruptedException e) { }
+                }
+            }
+        };
+        subscriber.setDaemon(true);
+        subscriber.start();
+    }
+
+    /**
+     * Picks the least busy helper of a category.
+     * @param category The category.
+     * @param excluded A helper not to pick, e.g. one that just failed, or null.
+     * @return The helper, or a fake server if the directory knows no helper for the category. A real helper must
+     * be released once its job is done.
+     */
+    public ServerInfo pickHelper(String category, ServerInfo excluded) {
+        Snapshot snapshot = getSnapshot();
+        ArrayList<ServerInfo> candidates = snapshot == null ? null : snapshot.helpers.get(category);
+        if (candidates == null || candidates.isEmpty()) return ServerInfo.createFakeServer();
+
+        // Start at a random helper, so that helpers with equal loads share the work.
+        ServerInfo best = null;
+        int lowestLoad = Integer.MAX_VALUE;
+        int start = _random.nextInt(candidates.size());
+        for (int i = 0; i < candidates.size(); i++) {
+            ServerInfo candidate = candidates.get((start + i) % candidates.size());
+            if (excluded != null && candidate.equals(excluded)) continue;
+            int load = snapshot.loads.get(candidate) + getOutstandingJobs(candidate).get();
+            if (load < lowestLoad) {
+                lowestLoad = load;
+                best = candidate;
+            }
+        }
+        if (best == null) return ServerInfo.createFakeServer();
+
+        getOutstandingJobs(best).incrementAndGet();
+        return best;
+    }
+
+    /**
+     * Gets the number of helpers alive, in all categories.
+     * @return The number, or 0 if the directory has no copy of the table and the name server cannot be reached.
+     */
+    public int getNumHelpers() {
+        Snapshot snapshot = getSnapshot();
+        return snapshot == null ? 0 : snapshot.loads.size();
+    }
+
+    /**
+     * Tells the directory that a job sent to a helper picked from it is done, or abandoned.
+     */
+    public void releaseHelper(ServerInfo helper) {
+        AtomicInteger outstanding = _outstandingJobs.get(helper);
+        if (outstanding != null && outstanding.decrementAndGet() < 0) outstanding.set(0);
+    }
+
+    /**
+     * Makes the next pick fetch the table again.
+     */
+    public void invalidate() {
+        _snapshot = null;
+    }
+
+    private AtomicInteger getOutstandingJobs(ServerInfo helper) {
+        AtomicInteger outstanding = _outstandingJobs.get(helper);
+        if (outstanding == null) {
+            AtomicInteger fresh = new AtomicInteger();
+            outstanding = _outstandingJobs.putIfAbsent(helper, fresh);
+            if (outstanding == null) outstanding = fresh;
+        }
+        return outstanding;
+    }
+
+    /**
+     * Gets the current copy of the table, fetching a new one if it is missing, expired, or outdated.
+     * @return The copy, or null if there is none and the name server cannot be reached.
+     */
+    private Snapshot getSnapshot() {
+        Snapshot snapshot = _snapshot;
+        if (isValid(snapshot)) return snapshot;
+        synchronized (this) {
+            snapshot = _snapshot;
+            if (isValid(snapshot)) return snapshot;
+            try {
+                return refresh();
+            }
+            catch (IOException e) {
+                // Better a stale copy than none: a dead helper will be retried elsewhere by the master.
+                Console.writeLine("Failed to fetch the helper directory: " + e.getMessage());
+                return snapshot;
+            }
+        }
+    }
+
+    private boolean isValid(Snapshot snapshot) {
+        return snapshot != null && snapshot.version >= _publishedVersion && System.currentTimeMillis() < snapshot.expirationTime;
+    }
+
+    private synchronized Snapshot refresh() throws IOException {
+        Snapshot snapshot = MiniGoogleUtilities.connectionPool.exchangeIdempotent(_nameServerInfo, new TcpConnectionPool.Exchange<Snapshot>() {
+            public Snapshot run(TcpMessenger messenger) throws IOException {
+                messenger.sendTag(Tags.REQUEST_HELPER_DIRECTORY);
+
+                int version = messenger.receiveInt();
+                int leaseDuration = messenger.receiveInt();
+                long expirationTime = System.currentTimeMillis() + leaseDuration;
+                _leaseDuration = leaseDuration;
+
+                HashMap<String, ArrayList<ServerInfo>> helpers = new HashMap<String, ArrayList<ServerInfo>>();
+                HashMap<ServerInfo, Integer> loads = new HashMap<ServerInfo, Integer>();
+                int numCategories = messenger.receiveInt();
+                for (int i = 0; i < numCategories; i++) {
+                    String category = messenger.receiveString();
+                    int numHelpers = messenger.receiveInt();
+                    ArrayList<ServerInfo> helpersOfCategory = new ArrayList<ServerInfo>(numHelpers);
+                    for (int j = 0; j < numHelpers; j++) {
+                        ServerInfo helper = messenger.receiveServerInfo();
+                        loads.put(helper, messenger.receiveInt());
+                        helpersOfCategory.add(helper);
+                    }
+                    helpers.put(category, helpersOfCategory);
+                }
+                return new Snapshot(version, expirationTime, helpers, loads);
+            }
+        });
+        _snapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Holds a subscription to the name server until the connection breaks. Each change reported makes the copy
+     * outdated; in between, the copy is fetched again halfway through each lease, so that picks rarely wait.
+     */
+    private void listenForChanges() {
+        TcpMessenger messenger = null;
+        try {
+            messenger = TcpMessenger.connect(_nameServerInfo);
+            messenger.sendTag(Tags.REQUEST_DIRECTORY_SUBSCRIPTION);
+            messenger.flush();
+            while (true) {
+                int leaseDuration = _leaseDuration;
+                messenger.getSocket().setSoTimeout(leaseDuration > 0 ? leaseDuration / 2 : RECONNECT_INTERVAL);
+                try {
+                    int tag = messenger.receiveTag();
+                    if (tag != Tags.MESSAGE_DIRECTORY_CHANGED) throw new IOException("Unexpected tag " + tag);
+
+                    // The version follows the tag right away; do not let the timeout split the message.
+                    messenger.getSocket().setSoTimeout(0);
+                    _publishedVersion = messenger.receiveInt();
+                }
+                catch (SocketTimeoutException e) {
+                    // No change for half a lease.
+                }
+
+                Snapshot snapshot = _snapshot;
+                if (!isValid(snapshot) || snapshot.expirationTime - System.currentTimeMillis() < _leaseDuration / 2) {
+                    refreshQuietly();
+                }
+            }
+        }
+        catch (IOException e) {
+            Console.writeLine("Subscription to the helper directory is broken: " + e.getMessage());
+        }
+        finally {
+            if (messenger != null) messenger.close();
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        }
+        catch (IOException e) {
+            Console.writeLine("Failed to fetch the helper directory: " + e.getMessage());
+        }
+    }
+}
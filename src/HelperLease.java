@@ -0,0 +1,40 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.net.core.ServerInfo;
+
+/**
+ * A helper borrowed from the name server, with the ID of the lease under which it is borrowed. The lease is
+ * returned by its ID when the job is done. A lease that is neither returned nor renewed expires by itself, so that
+ * the load of a helper is never counted for a job that was lost.
+ */
+public class HelperLease {
+
+    /**
+     * The lease ID of a helper that is not borrowed, e.g. one picked from a master's helper directory.
+     */
+    public static final int NO_LEASE = 0;
+
+    public final ServerInfo serverInfo;
+    public final int leaseId;
+
+    public HelperLease(ServerInfo serverInfo, int leaseId) {
+        this.serverInfo = serverInfo;
+        this.leaseId = leaseId;
+    }
+
+    public static HelperLease createFakeLease() {
+        return new HelperLease(ServerInfo.createFakeServer(), NO_LEASE);
+    }
+
+    public boolean isFake() {
+        return leaseId == NO_LEASE && serverInfo.equals(ServerInfo.createFakeServer());
+    }
+
+    @Override
+    public String toString() {
+        return serverInfo + " (lease " + leaseId + ")";
+    }
+}
@@ -0,0 +1,17 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import java.io.IOException;
+
+/**
+ * Thrown when an index is opened in a directory that another open index holds.
+ */
+public class IndexLockedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public IndexLockedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.collections.PostingList;
+import me.yuhuan.collections.TermCounter;
+import me.yuhuan.io.File;
+import me.yuhuan.io.PostingsCodec;
+import me.yuhuan.io.VarInt;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An immutable part of an inverted index on disk: the postings of each term, and a dictionary of the terms pointing
+ * into them. Terms are sorted by their UTF-8 bytes compared as unsigned, as TermCounter sorts them.
+ * The file is laid out as:
+ * <pre>
+ *     int     magic number
+ *     int     format version
+ *             postings of each term: the length in bytes of its impact prefix, as a VarInt, 0 if it has none; the
+ *             impact prefix, i.e. its first postings by frequency, as written by PostingsCodec.writeImpacts(); and
+ *             all its postings, by document ID, as written by PostingsCodec.write()
+ *             dictionary, in blocks of BLOCK_SIZE terms: each term as the length of the prefix it shares with the
+ *             previous term of the block, the length of the rest, the rest in UTF-8, and where its postings start,
+ *             counted from the start of the file for the first term of a block, and from the postings of the
+ *             previous term for the others
+ *     int[]   block index: where each block starts
+ *     int     number of terms
+ *     int     where the dictionary starts
+ *     int     where the block index starts
+ *     int     number of blocks
+ *     int     CRC-32 of all the bytes before the footer, i.e. before the number of terms
+ *     int     CRC-32 of the five ints above
+ * </pre>
+ * Lengths and postings offsets in the dictionary are VarInts.
+ * A segment is mapped into memory when opened, and only its footer is read and checked, so that opening takes the
+ * same time whatever the size of the segment, and a segment takes no heap. A lookup binary searches the block index,
+ * then decodes one block and the postings of the term straight from the mapping. verify() checks the whole file.
+ * Only a term with more postings than fit in a block of PostingsCodec gets an impact prefix, and only if the writer
+ * is given a prefix size, so that the top postings of a common term are read as a prefix, with no sort, and a rare
+ * term takes one byte more.
+ * A segment is limited to 2 GB.
+ */
+public class IndexSegment {
+
+    static final int MAGIC = 0x49585331; // "IXS1"
+    static final int VERSION = 5;
+    static final int HEADER_SIZE = 8;
+    static final int FOOTER_SIZE = 24;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Number of terms in a block of the dictionary. A lookup decodes up to one block of terms.
+     */
+    static final int BLOCK_SIZE = 16;
+
+    String _path;
+    ByteBuffer _buffer;
+
+    int _numTerms;
+    int _dictionaryStart;
+    int _blockIndexStart;
+    int _numBlocks;
+    int _checksum;
+
+    /**
+     * Opens a segment written by a Writer. Reads only the header and the footer.
+     */
+    public IndexSegment(String path) throws IOException {
+        _path = path;
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            _buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        finally {
+            file.close();
+        }
+
+        int size = _buffer.capacity();
+        if (size < HEADER_SIZE + FOOTER_SIZE || _buffer.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not an index segment. ");
+        }
+        int version = _buffer.getInt(4);
+        if (version != VERSION) throw new IOException(path + " has format version " + version + ", expected " + VERSION);
+
+        int footer = size - FOOTER_SIZE;
+        if (checksum(_buffer, footer, footer + 20) != _buffer.getInt(footer + 20)) throw new IOException(path + " is corrupt. ");
+        _numTerms = _buffer.getInt(footer);
+        _dictionaryStart = _buffer.getInt(footer + 4);
+        _blockIndexStart = _buffer.getInt(footer + 8);
+        _numBlocks = _buffer.getInt(footer + 12);
+        _checksum = _buffer.getInt(footer + 16);
+        if (_dictionaryStart < HEADER_SIZE || _dictionaryStart > _blockIndexStart
+                || _blockIndexStart + 4L * _numBlocks != footer || _numBlocks != (_numTerms + BLOCK_SIZE - 1) / BLOCK_SIZE) {
+            throw new IOException(path + " is corrupt. ");
+        }
+    }
+
+    /**
+     * Checks the whole segment against its checksum, in time proportional to its size.
+     * @throws IOException If the segment is corrupt.
+     */
+    public void verify() throws IOException {
+        if (checksum(_buffer, 0, _buffer.capacity() - FOOTER_SIZE) != _checksum) throw new IOException(_path + " is corrupt. ");
+    }
+
+    public String getPath() {
+        return _path;
+    }
+
+    /**
+     * Size of the segment on disk, in bytes.
+     */
+    public long getSize() {
+        return _buffer.capacity();
+    }
+
+    public int getNumTerms() {
+        return _numTerms;
+    }
+
+    /**
+     * Gets the postings of a term, by document ID.
+     * @return The postings, or null if the term is not in the segment.
+     */
+    public PostingList get(String term) {
+        PostingList postings = new PostingList();
+        return readPostings(term.getBytes(UTF8), postings) ? postings : null;
+    }
+
+    /**
+     * Appends the postings of a term to a list.
+     * @param term The term in UTF-8.
+     * @return Whether the segment has the term.
+     */
+    public boolean readPostings(byte[] term, PostingList postings) {
+        int offset = findPostings(term);
+        if (offset < 0) return false;
+        new PostingsCodec.Decoder(_buffer, skipImpacts(offset)).readAll(postings);
+        return true;
+    }
+
+    /**
+     * Appends the postings of a term of the highest frequencies to a list, highest first, and by document ID within
+     * a frequency. They are read from the impact prefix of the term if it is long enough, and sorted from all the
+     * postings otherwise.
+     * @param term The term in UTF-8.
+     * @param limit Number of postings to read at most.
+     * @return Whether the segment has the term.
+     */
+    public boolean readTopPostings(byte[] term, int limit, PostingList postings) {
+        int offset = findPostings(term);
+        if (offset < 0) return false;
+        ByteBuffer buffer = _buffer.duplicate();
+        buffer.position(offset);
+        int impactsLength = VarInt.read(buffer);
+        int start = postings.size();
+        if (impactsLength > 0) {
+            int numImpacts = PostingsCodec.readImpacts(_buffer, buffer.position(), limit, postings);
+            if (postings.size() - start == limit) return true;
+            if (numImpacts == new PostingsCodec.Decoder(_buffer, buffer.position() + impactsLength).size()) return true;
+            postings.truncate(start);
+        }
+
+        PostingList all = new PostingList();
+        new PostingsCodec.Decoder(_buffer, buffer.position() + impactsLength).readAll(all);
+        all.sortByFrequency();
+        int count = Math.min(limit, all.size());
+        postings.ensureCapacity(start + count);
+        for (int i = 0; i < count; i++) postings.add(all.getDocumentId(i), all.getFrequency(i));
+        return true;
+    }
+
+    /**
+     * Opens the postings of a term, to be decoded as they are read.
+     * @param term The term in UTF-8.
+     * @return The postings, or null if the segment does not have the term.
+     */
+    public PostingsCodec.Decoder openPostings(byte[] term) {
+        int offset = findPostings(term);
+        return offset < 0 ? null : new PostingsCodec.Decoder(_buffer, skipImpacts(offset));
+    }
+
+    /**
+     * Skips the impact prefix of a term.
+     * @param offset Where the postings of the term start.
+     * @return Where its postings by document ID start.
+     */
+    int skipImpacts(int offset) {
+        ByteBuffer buffer = _buffer.duplicate();
+        buffer.position(offset);
+        int impactsLength = VarInt.read(buffer);
+        return buffer.position() + impactsLength;
+    }
+
+    /**
+     * Finds where the postings of a term start.
+     * @return The offset, or -1 if the segment does not have the term.
+     */
+    int findPostings(byte[] term) {
+        if (_numBlocks == 0) return -1;
+        ByteBuffer buffer = _buffer.duplicate();
+
+        // Find the last block whose first term is not after the term. A first term shares no prefix.
+        int low = 0;
+        int high = _numBlocks - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            buffer.position(getBlockStart(middle));
+            VarInt.read(buffer);
+            int length = VarInt.read(buffer);
+            if (compare(buffer, buffer.position(), length, term) <= 0) low = middle;
+            else high = middle - 1;
+        }
+
+        // Decode the block up to the term.
+        buffer.position(getBlockStart(low));
+        int numTermsInBlock = Math.min(BLOCK_SIZE, _numTerms - low * BLOCK_SIZE);
+        byte[] current = new byte[Math.max(32, term.length)];
+        int postingsOffset = 0;
+        for (int i = 0; i < numTermsInBlock; i++) {
+            int shared = VarInt.read(buffer);
+            int suffixLength = VarInt.read(buffer);
+            if (shared + suffixLength > current.length) {
+                byte[] longer = new byte[Math.max(shared + suffixLength, current.length * 2)];
+                System.arraycopy(current, 0, longer, 0, shared);
+                current = longer;
+            }
+            buffer.get(current, shared, suffixLength);
+            postingsOffset = i == 0 ? VarInt.read(buffer) : postingsOffset + VarInt.read(buffer);
+
+            int c = TermCounter.compare(current, 0, shared + suffixLength, term, 0, term.length);
+            if (c == 0) return postingsOffset;
+            if (c > 0) return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Opens a cursor before the first term of the segment.
+     */
+    public Cursor openCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Walks the terms of a segment in order.
+     */
+    public class Cursor {
+        ByteBuffer _dictionary;
+        int _index;
+        byte[] _term;
+        int _termLength;
+        int _postingsOffset;
+
+        Cursor() {
+            _dictionary = _buffer.duplicate();
+            _dictionary.position(_dictionaryStart);
+            _index = -1;
+            _term = new byte[32];
+        }
+
+        /**
+         * Moves to the next term.
+         * @return Whether there is a next term.
+         */
+        public boolean next() {
+            if (_index + 1 >= _numTerms) return false;
+            _index++;
+            int shared = VarInt.read(_dictionary);
+            int suffixLength = VarInt.read(_dictionary);
+            if (shared + suffixLength > _term.length) {
+                byte[] longer = new byte[Math.max(shared + suffixLength, _term.length * 2)];
+                System.arraycopy(_term, 0, longer, 0, shared);
+                _term = longer;
+            }
+            _dictionary.get(_term, shared, suffixLength);
+            _termLength = shared + suffixLength;
+            int offset = VarInt.read(_dictionary);
+            _postingsOffset = _index % BLOCK_SIZE == 0 ? offset : _postingsOffset + offset;
+            return true;
+        }
+
+        public String getTerm() {
+            return new String(_term, 0, _termLength, UTF8);
+        }
+
+        /**
+         * The term in UTF-8, in the first getTermLength() bytes. The array is reused by next().
+         */
+        public byte[] getTermBytes() {
+            return _term;
+        }
+
+        public int getTermLength() {
+            return _termLength;
+        }
+
+        /**
+         * Appends the postings of the term to a list.
+         */
+        public void readPostings(PostingList postings) {
+            openPostings().readAll(postings);
+        }
+
+        public PostingsCodec.Decoder openPostings() {
+            return new PostingsCodec.Decoder(_buffer, skipImpacts(_postingsOffset));
+        }
+
+        public int compareTo(Cursor that) {
+            return TermCounter.compare(_term, 0, _termLength, that._term, 0, that._termLength);
+        }
+    }
+
+    int getBlockStart(int block) {
+        return _buffer.getInt(_blockIndexStart + 4 * block);
+    }
+
+    /**
+     * Compares bytes of a buffer with a term, both as unsigned bytes.
+     */
+    static int compare(ByteBuffer buffer, int start, int length, byte[] term) {
+        int common = Math.min(length, term.length);
+        for (int i = 0; i < common; i++) {
+            int difference = (buffer.get(start + i) & 0xFF) - (term[i] & 0xFF);
+            if (difference != 0) return difference;
+        }
+        return length - term.length;
+    }
+
+    /**
+     * Computes the CRC-32 of a range of a buffer.
+     */
+    static int checksum(ByteBuffer buffer, int start, int end) {
+        CRC32 crc = new CRC32();
+        ByteBuffer range = buffer.duplicate();
+        range.position(start);
+        byte[] chunk = new byte[Math.min(BUFFER_SIZE, end - start)];
+        while (range.position() < end) {
+            int length = Math.min(chunk.length, end - range.position());
+            range.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Writes a segment through a temporary file, which is flushed to the disk and moved over the path on close, so
+     * that a segment is never seen half written, even after a crash.
+     * Postings are written as terms are added, and the dictionary is kept in memory until close.
+     */
+    public static class Writer {
+        String _path;
+        String _temporaryPath;
+        FileOutputStream _file;
+        CheckedOutputStream _checkedOutput;
+        DataOutputStream _output;
+
+        ByteArrayOutputStream _dictionaryBytes;
+        DataOutputStream _dictionary;
+        int[] _blockStarts;
+        int _numTerms;
+        byte[] _previousTerm;
+        int _previousTermLength;
+        int _previousPostingsOffset;
+        PostingList _singlePosting;
+        boolean _isClosed;
+
+        /**
+         * Number of postings in an impact prefix, 0 for none.
+         */
+        int _impactPrefixSize;
+        PostingList _impacts;
+        ByteArrayOutputStream _impactBytes;
+        DataOutputStream _impactOutput;
+
+        /**
+         * Opens a writer of a segment with no impact prefixes.
+         */
+        public Writer(String path) throws IOException {
+            this(path, 0);
+        }
+
+        /**
+         * @param impactPrefixSize Number of postings by frequency to store ahead of the postings of a term that has
+         *                         more than fit in a block, 0 for none.
+         */
+        public Writer(String path, int impactPrefixSize) throws IOException {
+            _path = path;
+            _impactPrefixSize = impactPrefixSize;
+            _impacts = new PostingList();
+            _impactBytes = new ByteArrayOutputStream();
+            _impactOutput = new DataOutputStream(_impactBytes);
+            _temporaryPath = File.createTemporaryPath(path);
+            _file = new FileOutputStream(_temporaryPath);
+            _checkedOutput = new CheckedOutputStream(new BufferedOutputStream(_file, BUFFER_SIZE), new CRC32());
+            _output = new DataOutputStream(_checkedOutput);
+            _output.writeInt(MAGIC);
+            _output.writeInt(VERSION);
+
+            _dictionaryBytes = new ByteArrayOutputStream();
+            _dictionary = new DataOutputStream(_dictionaryBytes);
+            _blockStarts = new int[64];
+            _previousTerm = new byte[32];
+            _singlePosting = new PostingList(1);
+        }
+
+        public String getPath() {
+            return _path;
+        }
+
+        /**
+         * Adds a term with one posting. Terms must be added in increasing order, each once.
+         */
+        public void add(String term, int documentId, int frequency) throws IOException {
+            _singlePosting.clear();
+            _singlePosting.add(documentId, frequency);
+            add(term, _singlePosting);
+        }
+
+        /**
+         * Adds a term with its postings, ordered by document ID. Terms must be added in increasing order, each once.
+         */
+        public void add(String term, PostingList postings) throws IOException {
+            byte[] bytes = term.getBytes(UTF8);
+            add(bytes, 0, bytes.length, postings);
+        }
+
+        /**
+         * Adds a term given as a slice of an array, in UTF-8, with its postings, ordered by document ID. Terms must
+         * be added in increasing order, each once.
+         */
+        public void add(byte[] term, int start, int length, PostingList postings) throws IOException {
+            writeTerm(term, start, length);
+            writeImpacts(postings);
+            PostingsCodec.write(_output, postings);
+        }
+
+        /**
+         * Writes the dictionary and the footer, and moves the segment to its path.
+         */
+        public void close() throws IOException {
+            if (_isClosed) return;
+            int dictionaryStart = getPosition();
+            _dictionary.flush();
+            _dictionaryBytes.writeTo(_output);
+            int blockIndexStart = getPosition();
+            int numBlocks = (_numTerms + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (int i = 0; i < numBlocks; i++) {
+                _output.writeInt(dictionaryStart + _blockStarts[i]);
+            }
+            getPosition();
+
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putInt(_numTerms);
+            footer.putInt(dictionaryStart);
+            footer.putInt(blockIndexStart);
+            footer.putInt(numBlocks);
+            footer.putInt((int)_checkedOutput.getChecksum().getValue());
+            footer.putInt(checksum(footer, 0, 20));
+            _output.write(footer.array());
+
+            _output.flush();
+            _file.getFD().sync();
+            _output.close();
+            _isClosed = true;
+            File.replace(_temporaryPath, _path);
+            File.syncDirectoryOf(_path);
+        }
+
+        /**
+         * Drops the segment if it is not closed yet. Does nothing after close.
+         */
+        public void abort() {
+            if (_isClosed) return;
+            _isClosed = true;
+            try {
+                _output.close();
+            }
+            catch (IOException e) { }
+            File.deleteFile(_temporaryPath);
+        }
+
+        /**
+         * Number of bytes written so far.
+         * @throws IOException If the segment has outgrown the offsets.
+         */
+        private int getPosition() throws IOException {
+            int position = _output.size();
+            if (position == Integer.MAX_VALUE) throw new IOException(_path + " is too large for an index segment. ");
+            return position;
+        }
+
+        private void writeImpacts(PostingList postings) throws IOException {
+            if (_impactPrefixSize <= 0 || postings.size() <= PostingsCodec.BLOCK_SIZE) {
+                VarInt.write(_output, 0);
+                return;
+            }
+            _impacts.clear();
+            _impacts.addAll(postings);
+            _impacts.sortByFrequency();
+            _impactBytes.reset();
+            PostingsCodec.writeImpacts(_impactOutput, _impacts, Math.min(_impactPrefixSize, _impacts.size()));
+            _impactOutput.flush();
+            VarInt.write(_output, _impactBytes.size());
+            _impactBytes.writeTo(_output);
+        }
+
+        private void writeTerm(byte[] term, int start, int length) throws IOException {
+            if (_numTerms > 0 && TermCounter.compare(term, start, length, _previousTerm, 0, _previousTermLength) <= 0) {
+                throw new IllegalArgumentException("Term " + new String(term, start, length, UTF8) + " is added after " + new String(_previousTerm, 0, _previousTermLength, UTF8));
+            }
+            int postingsOffset = getPosition();
+
+            // The first term of a block is stored whole, with its own postings offset.
+            boolean isFirstInBlock = _numTerms % BLOCK_SIZE == 0;
+            int shared = 0;
+            if (isFirstInBlock) {
+                if (_numTerms / BLOCK_SIZE == _blockStarts.length) {
+                    int[] more = new int[_blockStarts.length * 2];
+                    System.arraycopy(_blockStarts, 0, more, 0, _blockStarts.length);
+                    _blockStarts = more;
+                }
+                _blockStarts[_numTerms / BLOCK_SIZE] = _dictionary.size();
+            }
+            else {
+                int maxShared = Math.min(length, _previousTermLength);
+                while (shared < maxShared && term[start + shared] == _previousTerm[shared]) shared++;
+            }
+            VarInt.write(_dictionary, shared);
+            VarInt.write(_dictionary, length - shared);
+            _dictionary.write(term, start + shared, length - shared);
+            VarInt.write(_dictionary, isFirstInBlock ? postingsOffset : postingsOffset - _previousPostingsOffset);
+
+            if (length > _previousTerm.length) _previousTerm = new byte[Math.max(length, _previousTerm.length * 2)];
+            System.arraycopy(term, start, _previousTerm, 0, length);
+            _previousTermLength = length;
+            _previousPostingsOffset = postingsOffset;
+            _numTerms++;
+        }
+    }
+}
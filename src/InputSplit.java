@@ -0,0 +1,127 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.io.MappedTextFile;
+import me.yuhuan.net.core.TcpMessenger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The input of one mapping task: byte ranges of one or more files. A large file is cut into several splits, and
+ * small files are packed into one.
+ * A range owns the lines that start in it, so that a line cut by the end of a range is read whole by the range it
+ * starts in, and skipped by the next one.
+ */
+public class InputSplit {
+
+    /**
+     * A byte range of a file.
+     */
+    public static class Range {
+        public final String path;
+        public final long start;
+        public final long length;
+
+        public Range(String path, long start, long length) {
+            this.path = path;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return path + "[" + start + ", " + (start + length) + ")";
+        }
+    }
+
+    /**
+     * Name of the split, unique in its transaction. It names the mapper's output, and the helper reports it back.
+     */
+    public final String name;
+    public final ArrayList<Range> ranges;
+
+    public InputSplit(String name) {
+        this.name = name;
+        this.ranges = new ArrayList<Range>();
+    }
+
+    public long getSize() {
+        long size = 0;
+        for (Range range : ranges) size += range.length;
+        return size;
+    }
+
+    /**
+     * Plans the splits of a set of files. The input is cut into as many splits of the target size as it takes, but
+     * into no more splits than there are helpers to map them; with fewer helpers, splits get larger instead.
+     * Files are taken in order and cut wherever a split is full, so that small files share splits and large files
+     * span several.
+     * @param paths The files.
+     * @param targetSize The size of a split, in bytes, if there are enough helpers.
+     * @param numHelpers The number of helpers available for mapping.
+     */
+    public static ArrayList<InputSplit> plan(ArrayList<String> paths, long targetSize, int numHelpers) {
+        long[] sizes = new long[paths.size()];
+        long totalSize = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            sizes[i] = new java.io.File(paths.get(i)).length();
+            totalSize += sizes[i];
+        }
+
+        long numSplits = Math.max(1, Math.min((totalSize + targetSize - 1) / targetSize, numHelpers));
+        long splitSize = Math.max(1, (totalSize + numSplits - 1) / numSplits);
+
+        // A split must fit in one mapping, with room for the line that overhangs its end.
+        splitSize = Math.min(splitSize, MappedTextFile.MAX_MAPPING_SIZE / 2);
+
+        ArrayList<InputSplit> splits = new ArrayList<InputSplit>();
+        InputSplit split = new InputSplit("split0");
+        long room = splitSize;
+        for (int i = 0; i < paths.size(); i++) {
+            long start = 0;
+            while (start < sizes[i]) {
+                long length = Math.min(sizes[i] - start, room);
+                split.ranges.add(new Range(paths.get(i), start, length));
+                start += length;
+                room -= length;
+                if (room == 0) {
+                    splits.add(split);
+                    split = new InputSplit("split" + splits.size());
+                    room = splitSize;
+                }
+            }
+        }
+        if (!split.ranges.isEmpty() || splits.isEmpty()) splits.add(split);
+        return splits;
+    }
+
+    public void send(TcpMessenger messenger) throws IOException {
+        messenger.sendString(name);
+        messenger.sendInt(ranges.size());
+        for (Range range : ranges) {
+            messenger.sendString(range.path);
+            messenger.sendLong(range.start);
+            messenger.sendLong(range.length);
+        }
+    }
+
+    public static InputSplit receive(TcpMessenger messenger) throws IOException {
+        InputSplit split = new InputSplit(messenger.receiveString());
+        int numRanges = messenger.receiveInt();
+        for (int i = 0; i < numRanges; i++) {
+            String path = messenger.receiveString();
+            long start = messenger.receiveLong();
+            long length = messenger.receiveLong();
+            split.ranges.add(new Range(path, start, length));
+        }
+        return split;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + ranges;
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.net.Utilities;
+import me.yuhuan.net.core.ServerInfo;
+import me.yuhuan.net.core.TcpMessenger;
+import me.yuhuan.utilities.Console;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a set of tasks on helpers, and tracks them until every one is done.
+ * All tasks are dispatched in parallel. Each attempt of a task has its own deadline; a task whose dispatch fails,
+ * or whose attempt misses its deadline, is dispatched again, up to a number of attempts. Tasks that are merely in
+ * progress are left alone.
+ * Helpers report a finished task by connecting to the tracker's server socket and sending the task's name.
+ * A speculative tracker also launches a backup attempt of a task that straggles: one running much longer than
+ * the median task took, or one of the last few tasks. Whichever attempt reports first completes the task, so the
+ * attempts of a task must be safe to run twice.
+ */
+public class JobTracker {
+
+    /**
+     * A task is a straggler once it runs this many times longer than the median finished task.
+     */
+    static final double SLOWNESS_FACTOR = 2.0;
+
+    /**
+     * Once this fraction of the tasks is done, every task still running gets a backup.
+     */
+    static final double TAIL_FRACTION = 0.9;
+
+    /**
+     * No backup is launched for a task that has run for less than this, in milliseconds.
+     */
+    static final long MIN_TIME_BEFORE_BACKUP = 1000;
+
+    static final long SPECULATION_CHECK_INTERVAL = 200;
+
+    /**
+     * Time a helper is given to send its report once it has connected, in milliseconds.
+     */
+    static final int REPORT_TIMEOUT = 2000;
+
+    /**
+     * Sends a task to a helper.
+     */
+    public interface Dispatcher {
+        /**
+         * Runs on a dispatching thread, in parallel with the dispatches of other tasks.
+         * @param task The task.
+         * @param attempt 1 for the first attempt, 2 for the second, etc.
+         * @param avoidedHelper For a backup, the helper running the straggling attempt, not to be sent the task
+         *                      again. Null otherwise.
+         * @param reportIpAddress IP of the tracker, for the helper to report to.
+         * @param reportPortNumber Port# of the tracker, for the helper to report to.
+         * @return The helper the task was sent to.
+         * @throws IOException If the task could not be sent to any helper.
+         */
+        ServerInfo dispatch(String task, int attempt, ServerInfo avoidedHelper, String reportIpAddress, int reportPortNumber) throws IOException;
+    }
+
+    /**
+     * Gets told when a task is done.
+     */
+    public interface CompletionListener {
+        /**
+         * Called when a helper reports a task done, before the task counts as done. Called from the tracker's
+         * threads, in parallel for different tasks, but only once per task, even if several attempts finish. If it
+         * throws, a later report of the task is taken instead.
+         * @param messenger The connection of the report, to receive whatever follows the task's name.
+         */
+        void taskCompleted(String task, TcpMessenger messenger) throws IOException;
+    }
+
+    static class TrackedTask {
+        final String name;
+        int numAttempts;
+        int numFailedAttempts;
+        long attemptStartTime;
+        long deadline;
+        Future<ServerInfo> dispatch;
+        Future<ServerInfo> backupDispatch;
+        boolean hasBackup;
+        boolean isReporting;
+        boolean isDone;
+
+        TrackedTask(String name) {
+            this.name = name;
+        }
+    }
+
+    String _name;
+    Dispatcher _dispatcher;
+    CompletionListener _listener;
+    ExecutorService _executor;
+    long _taskTimeout;
+    int _maxAttempts;
+
+    ServerSocket _serverSocket;
+    String _ipAddress;
+    int _portNumber;
+    LinkedHashMap<String, TrackedTask> _tasks;
+    int _numUnfinished;
+
+    boolean _isSpeculative;
+    int _numBackups;
+
+    /**
+     * How long each finished task took, from the start of its last regular attempt.
+     */
+    ArrayList<Long> _durations;
+
+    /**
+     * @param name Name of the job, for logging.
+     * @param executor Threads to dispatch tasks and to receive reports on.
+     * @param taskTimeout Time each attempt of a task is given, in milliseconds, from the start of its dispatch.
+     * @param maxAttempts Attempts each task is given before the job fails.
+     */
+    public JobTracker(String name, Dispatcher dispatcher, CompletionListener listener, ExecutorService executor, long taskTimeout, int maxAttempts) throws IOException {
+        _name = name;
+        _dispatcher = dispatcher;
+        _listener = listener;
+        _executor = executor;
+        _taskTimeout = taskTimeout;
+        _maxAttempts = maxAttempts;
+        _tasks = new LinkedHashMap<String, TrackedTask>();
+        _durations = new ArrayList<Long>();
+        _serverSocket = new ServerSocket(0, 200);
+        _ipAddress = Utilities.getMyIpAddress();
+        _portNumber = Utilities.getMyPortNumber(_serverSocket);
+    }
+
+    /**
+     * Sets whether to launch backup attempts of straggling tasks. Off by default. Only for tasks that can run twice,
+     * even on different helpers, with the effect of running once.
+     */
+    public void setSpeculative(boolean isSpeculative) {
+        _isSpeculative = isSpeculative;
+    }
+
+    /**
+     * Dispatches the tasks, and waits until all of them are done.
+     * @throws JobException If a task used up its attempts.
+     */
+    public void run(Collection<String> tasks) throws JobException {
+        Thread receiver = new Thread() {
+            public void run() {
+                receiveReports();
+            }
+        };
+        receiver.start();
+
+        try {
+            synchronized (this) {
+                for (String task : tasks) {
+                    if (_tasks.containsKey(task)) continue;
+                    TrackedTask trackedTask = new TrackedTask(task);
+                    _tasks.put(task, trackedTask);
+                    _numUnfinished++;
+                    dispatch(trackedTask);
+                }
+
+                while (_numUnfinished > 0) {
+                    long now = System.currentTimeMillis();
+                    long nextDeadline = Long.MAX_VALUE;
+                    for (TrackedTask task : _tasks.values()) {
+                        if (task.isDone) continue;
+                        if (didDispatchFail(task, task.dispatch)) {
+                            redispatch(task, "could not be dispatched");
+                        }
+                        else if (task.backupDispatch != null && didDispatchFail(task, task.backupDispatch)) {
+                            dropBackup(task);
+                        }
+                        else if (now >= task.deadline) {
+                            redispatch(task, "missed its deadline");
+                        }
+                        nextDeadline = Math.min(nextDeadline, task.deadline);
+                    }
+                    if (_isSpeculative) {
+                        speculate(now);
+                        nextDeadline = Math.min(nextDeadline, now + SPECULATION_CHECK_INTERVAL);
+                    }
+
+                    // Woken up early by reports and by failed dispatches.
+                    long waitTime = nextDeadline - System.currentTimeMillis();
+                    if (waitTime > 0) {
+                        try {
+                            wait(waitTime);
+                        }
+                        catch (InterruptedException e) {
+                            throw new JobException(_name + " is interrupted. ");
+                        }
+                    }
+                }
+
+                if (_numBackups > 0) {
+                    Console.writeLine(_name + ": " + _tasks.size() + " tasks done, " + _numBackups + " backups launched. ");
+                }
+            }
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Stops receiving reports. Attempts still running are left to finish or fail by themselves.
+     */
+    public void close() {
+        try {
+            _serverSocket.close();
+        }
+        catch (IOException e) { }
+    }
+
+    private void dispatch(final TrackedTask task) {
+        task.numAttempts++;
+        task.attemptStartTime = System.currentTimeMillis();
+        task.deadline = task.attemptStartTime + _taskTimeout;
+        task.backupDispatch = null;
+        task.dispatch = startAttempt(task, null);
+    }
+
+    /**
+     * Starts another attempt of a task that is running, on another helper. The task's deadline is pushed back to
+     * give the backup its full time; the running attempt carries on.
+     */
+    private void launchBackup(TrackedTask task) {
+        task.numAttempts++;
+        task.hasBackup = true;
+        task.deadline = System.currentTimeMillis() + _taskTimeout;
+        _numBackups++;
+        Console.writeLine(_name + ": task " + task.name + " straggles, launching a backup. ");
+        task.backupDispatch = startAttempt(task, getHelper(task.dispatch));
+    }
+
+    /**
+     * Forgets the backup of a task that could not be dispatched. The running attempt is left alone, with its own
+     * deadline back, and the task gets no other backup.
+     */
+    private void dropBackup(TrackedTask task) {
+        task.backupDispatch = null;
+        task.deadline = task.attemptStartTime + _taskTimeout;
+        Console.writeLine(_name + ": the backup of task " + task.name + " is dropped. ");
+    }
+
+    private Future<ServerInfo> startAttempt(final TrackedTask task, final ServerInfo avoidedHelper) {
+        final int attempt = task.numAttempts;
+        return _executor.submit(new Callable<ServerInfo>() {
+            public ServerInfo call() throws IOException {
+                try {
+                    return _dispatcher.dispatch(task.name, attempt, avoidedHelper, _ipAddress, _portNumber);
+                }
+                finally {
+                    synchronized (JobTracker.this) {
+                        JobTracker.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void redispatch(TrackedTask task, String reason) throws JobException {
+        task.numFailedAttempts++;
+        if (task.numFailedAttempts >= _maxAttempts) {
+            throw new JobException(_name + ": task " + task.name + " " + reason + ", after " + task.numFailedAttempts + " failed attempts. ");
+        }
+        Console.writeLine(_name + ": task " + task.name + " " + reason + ", dispatching it again. ");
+        dispatch(task);
+    }
+
+    /**
+     * Launches backups of the tasks that straggle. Each task gets at most one backup.
+     */
+    private void speculate(long now) {
+        int numDone = _tasks.size() - _numUnfinished;
+        boolean isTail = numDone >= TAIL_FRACTION * _tasks.size();
+        long medianDuration = getMedianDuration();
+
+        for (TrackedTask task : _tasks.values()) {
+            if (task.isDone || task.hasBackup || !task.dispatch.isDone()) continue;
+            long elapsed = now - task.attemptStartTime;
+            if (elapsed < MIN_TIME_BEFORE_BACKUP) continue;
+            if (isTail || (medianDuration >= 0 && elapsed > SLOWNESS_FACTOR * medianDuration)) {
+                launchBackup(task);
+            }
+        }
+    }
+
+    /**
+     * @return The median duration of finished tasks, or -1 if none is finished.
+     */
+    private long getMedianDuration() {
+        if (_durations.isEmpty()) return -1;
+        ArrayList<Long> durations = new ArrayList<Long>(_durations);
+        Collections.sort(durations);
+        return durations.get(durations.size() / 2);
+    }
+
+    /**
+     * @return The helper an attempt was sent to, or null if it was not sent.
+     */
+    private ServerInfo getHelper(Future<ServerInfo> dispatch) {
+        try {
+            return dispatch.isDone() ? dispatch.get() : null;
+        }
+        catch (ExecutionException e) {
+            return null;
+        }
+        catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    private boolean didDispatchFail(TrackedTask task, Future<ServerInfo> dispatch) {
+        if (!dispatch.isDone()) return false;
+        try {
+            dispatch.get();
+            return false;
+        }
+        catch (ExecutionException e) {
+            Console.writeLine(_name + ": dispatching task " + task.name + " failed: " + e.getCause().getMessage());
+            return true;
+        }
+        catch (InterruptedException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Accepts the reports of helpers until the tracker is closed. Each report is received on an executor thread, so
+     * that a helper slow to send its report holds up no other.
+     */
+    private void receiveReports() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = _serverSocket.accept();
+            }
+            catch (IOException e) {
+                // Closed.
+                return;
+            }
+
+            _executor.execute(new Runnable() {
+                public void run() {
+                    receiveReport(socket);
+                }
+            });
+        }
+    }
+
+    private void receiveReport(Socket socket) {
+        TrackedTask task = null;
+        boolean isTaken = false;
+        try {
+            socket.setSoTimeout(REPORT_TIMEOUT);
+            TcpMessenger messenger = new TcpMessenger(socket);
+            String taskName = messenger.receiveString();
+
+            // Take the task over, so that another attempt reporting meanwhile is ignored.
+            synchronized (this) {
+                task = _tasks.get(taskName);
+                if (task == null || task.isDone || task.isReporting) return;
+                task.isReporting = true;
+                isTaken = true;
+            }
+
+            if (_listener != null) _listener.taskCompleted(taskName, messenger);
+            synchronized (this) {
+                task.isDone = true;
+                _numUnfinished--;
+                _durations.add(System.currentTimeMillis() - task.attemptStartTime);
+                notifyAll();
+            }
+        }
+        catch (IOException e) {
+            Console.writeLine(_name + ": failed to receive a report: " + e.getMessage());
+        }
+        finally {
+            if (isTaken) {
+                synchronized (this) {
+                    task.isReporting = false;
+                }
+            }
+            try {
+                socket.close();
+            }
+            catch (IOException e) { }
+        }
+    }
+
+    /**
+     * Gets the tasks that are not done yet.
+     */
+    public synchronized ArrayList<String> getUnfinishedTasks() {
+        ArrayList<String> unfinished = new ArrayList<String>();
+        for (TrackedTask task : _tasks.values()) {
+            if (!task.isDone) unfinished.add(task.name);
+        }
+        return unfinished;
+    }
+}
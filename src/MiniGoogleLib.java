@@ -5,6 +5,7 @@
 
 import me.yuhuan.collections.Pair;
 import me.yuhuan.io.TextFile;
+import me.yuhuan.net.core.PostingsBuffer;
 import me.yuhuan.net.core.TcpMessenger;
 import me.yuhuan.utilities.UidGenerator;
 
@@ -71,12 +72,22 @@ public class MiniGoogleLib {
     }
 
     public static HashMap<String, ArrayList<Helper.PostingItem>> requestSearching(String[] keywords) throws IOException {
+        return requestSearching(keywords, 0);
+    }
+
+    /**
+     * Finds the documents of the highest frequencies of each keyword, highest first. The helpers read them from the
+     * front of postings kept by frequency, so that a search for the top documents of a common keyword does not
+     * read, send or sort all of its postings.
+     * @param limit Number of documents to find for each keyword, or 0 for all.
+     */
+    public static HashMap<String, ArrayList<Helper.PostingItem>> requestSearching(String[] keywords, int limit) throws IOException {
         HashMap<String, ArrayList<Helper.PostingItem>> result = new HashMap<String, ArrayList<Helper.PostingItem>>();
 
         // Look for cached results
         ArrayList<String> unfinishedQuery = new ArrayList<String>();
         for (String keyword : keywords) {
-            ArrayList<Helper.PostingItem> cachedPostings = _cacheResults.get(keyword);
+            ArrayList<Helper.PostingItem> cachedPostings = _cacheResults.get(getCacheKey(keyword, limit));
             if (cachedPostings != null) {
                 result.put(keyword, cachedPostings);
             }
@@ -95,24 +106,104 @@ public class MiniGoogleLib {
             Socket socket = new Socket(_miniGoogleIp, _miniGooglePort);
             TcpMessenger messenger = new TcpMessenger(socket);
             messenger.sendTag(Tags.REQUEST_SEARCHING);
-            messenger.sendInt(keywords.length);
+            messenger.sendInt(unfinishedQuery.size());
             for (String keyword : unfinishedQuery) {
                 messenger.sendString(keyword);
             }
+            messenger.sendInt(limit);
 
-            for (int i = 0; i < keywords.length; i++) {
-                String curKeyword = messenger.receiveString();
-                ArrayList<Helper.PostingItem> curPostings = MiniGoogleUtilities.stringToPostings(messenger.receiveString());
-                Collections.sort(curPostings, Collections.reverseOrder());
-                result.put(curKeyword, curPostings);
-                _cacheResults.add(curKeyword, curPostings);
+            // The top documents come sorted by frequency already.
+            HashMap<String, ArrayList<Helper.PostingItem>> searched = receiveResults(messenger, limit == 0);
+            for (Map.Entry<String, ArrayList<Helper.PostingItem>> entry : searched.entrySet()) {
+                result.put(entry.getKey(), entry.getValue());
+                _cacheResults.add(getCacheKey(entry.getKey(), limit), entry.getValue());
             }
+        }
+        return result;
+    }
+
+    /**
+     * The key the results of a keyword are cached under: the keyword for all its documents, and the keyword and the
+     * limit for its top documents.
+     */
+    static String getCacheKey(String keyword, int limit) {
+        return limit == 0 ? keyword : keyword + "/" + limit;
+    }
+
+    /**
+     * Finds the documents matched by a boolean query, such as "fox AND (quick OR NOT zebra)". See Query.parse().
+     * Only the matching documents are sent back, with the sum of the frequencies of the terms they match, highest
+     * first.
+     * @throws IllegalArgumentException If the query is not valid.
+     */
+    public static ArrayList<Helper.PostingItem> requestQuerying(String query) throws IOException {
+        Query parsed = Query.parse(query);
+
+        String[] lines = TextFile.read("mini_google_server_info");
+        _miniGoogleIp = lines[0];
+        _miniGooglePort = Integer.parseInt(lines[1]);
 
-            int message = messenger.receiveTag();
-            //if (message == Tags.INDEXING_FAIL) return false;
-            if (message == Tags.SEARCHING_FAIL) throw new IOException("Failed");
+        Socket socket = new Socket(_miniGoogleIp, _miniGooglePort);
+        TcpMessenger messenger = new TcpMessenger(socket);
+        messenger.sendTag(Tags.REQUEST_QUERYING);
+        parsed.send(messenger);
 
+        HashMap<String, ArrayList<Helper.PostingItem>> results = receiveResults(messenger, true);
+        if (results.size() != 1) throw new IOException("Failed");
+        return results.values().iterator().next();
+    }
+
+    /**
+     * Finds the top k documents for some keywords, ranked by BM25. Only the k documents are sent back, from the
+     * highest score down.
+     */
+    public static ArrayList<Helper.ScoredItem> requestRanking(String[] keywords, int k) throws IOException {
+        String[] lines = TextFile.read("mini_google_server_info");
+        _miniGoogleIp = lines[0];
+        _miniGooglePort = Integer.parseInt(lines[1]);
+
+        Socket socket = new Socket(_miniGoogleIp, _miniGooglePort);
+        TcpMessenger messenger = new TcpMessenger(socket);
+        messenger.sendTag(Tags.REQUEST_RANKING);
+        messenger.sendInt(keywords.length);
+        for (String keyword : keywords) {
+            messenger.sendString(keyword);
         }
+        messenger.sendInt(k);
+
+        ArrayList<Helper.ScoredItem> result = new ArrayList<Helper.ScoredItem>();
+        int numResults = messenger.receiveInt();
+        for (int i = 0; i < numResults; i++) {
+            String documentName = messenger.receiveString();
+            result.add(new Helper.ScoredItem(documentName, messenger.receiveFloat()));
+        }
+
+        int message = messenger.receiveTag();
+        if (message == Tags.SEARCHING_FAIL) throw new IOException("Failed");
+        socket.close();
+        return result;
+    }
+
+    /**
+     * Receives the postings of each keyword or query, in the order they are sent, or sorted.
+     * @param shouldSort Whether to sort the documents of each result by frequency, highest first. Top documents
+     *                   come sorted already.
+     */
+    static HashMap<String, ArrayList<Helper.PostingItem>> receiveResults(TcpMessenger messenger, boolean shouldSort) throws IOException {
+        HashMap<String, ArrayList<Helper.PostingItem>> result = new HashMap<String, ArrayList<Helper.PostingItem>>();
+        PostingsBuffer postingsBuffer = new PostingsBuffer();
+        int numResults = messenger.receiveInt();
+        for (int i = 0; i < numResults; i++) {
+            String curKeyword = messenger.receiveString();
+            messenger.receivePostings(postingsBuffer);
+            ArrayList<Helper.PostingItem> curPostings = MiniGoogleUtilities.bufferToPostings(postingsBuffer);
+            if (shouldSort) Collections.sort(curPostings, Collections.reverseOrder());
+            result.put(curKeyword, curPostings);
+        }
+
+        int message = messenger.receiveTag();
+        //if (message == Tags.INDEXING_FAIL) return false;
+        if (message == Tags.SEARCHING_FAIL) throw new IOException("Failed");
         return result;
     }
 }
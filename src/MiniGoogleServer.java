@@ -3,10 +3,15 @@
  * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
  */
 
+import me.yuhuan.collections.Pair;
+import me.yuhuan.collections.PostingList;
+import me.yuhuan.collections.TopDocuments;
 import me.yuhuan.io.Directory;
 import me.yuhuan.io.TextFile;
 import me.yuhuan.net.Utilities;
+import me.yuhuan.net.core.PostingsBuffer;
 import me.yuhuan.net.core.ServerInfo;
+import me.yuhuan.net.core.TcpConnectionPool;
 import me.yuhuan.net.core.TcpMessenger;
 import me.yuhuan.utilities.Console;
 import me.yuhuan.utilities.UidGenerator;
@@ -17,6 +22,11 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Yuhuan Jiang on 11/24/14.
@@ -39,18 +49,53 @@ public class MiniGoogleServer {
      * ./working/mappers/transactionId1/
      */
     static final String MAPPER_OUT_DIR = "working/mappers/";
+
+    /**
+     * The log of the document dictionary.
+     */
+    static final String DOCUMENT_DICTIONARY_PATH = "working/documents";
     static final int MAX_WAIT_TIME_FOR_HELPER = 10000;
     static final int MAX_TRIAL_NUM = 3;
+    static final int NUM_DISPATCHING_THREADS = 32;
+
+    /**
+     * The size an input split is cut to, if there are enough helpers to map the splits. Can be set by the first
+     * command line argument, in bytes.
+     */
+    static final long DEFAULT_TARGET_SPLIT_SIZE = 64L * 1024 * 1024;
+    static long _targetSplitSize = DEFAULT_TARGET_SPLIT_SIZE;
 
     static ServerInfo _nameServerInfo;
 
+    /**
+     * A copy of the name server's table, from which searching masters pick helpers without asking the name server.
+     */
+    static HelperDirectory _helperDirectory;
+
+    /**
+     * Threads that send jobs to helpers, so that the jobs of a transaction are sent in parallel.
+     */
+    static ExecutorService _dispatchExecutor = Executors.newFixedThreadPool(NUM_DISPATCHING_THREADS);
+
+    /**
+     * The IDs of all documents indexed. Helpers know documents by ID only.
+     */
+    static DocumentDictionary _documents;
+
     public static void main(String[] args) throws IOException {
 
+        if (args.length > 0) _targetSplitSize = Long.parseLong(args[0]);
+
         String[] lines = TextFile.read("name_server_info");
         String nameServerIpAddress = lines[0];
         int nameServerPortNumber = Integer.parseInt(lines[1]);
         _nameServerInfo = new ServerInfo(nameServerIpAddress, nameServerPortNumber);
 
+        _documents = new DocumentDictionary(DOCUMENT_DICTIONARY_PATH);
+
+        _helperDirectory = new HelperDirectory(_nameServerInfo);
+        _helperDirectory.start();
+
         // Creates a socket that the server listens to.
         // The port number is automatically assigned by the OS.
         ServerSocket serverSocket = new ServerSocket(PORT);
@@ -75,12 +120,20 @@ public class MiniGoogleServer {
                 // Determine what type of requested is received. Possible types are:
                 //    (1) Indexing
                 //    (2) Searching
+                //    (3) Querying
+                //    (4) Ranking
                 int tag = messenger.receiveTag();
                 if (tag == Tags.REQUEST_INDEXING) {
                     (new IndexingMaster(clientSocket)).start();
                 }
                 else if (tag == Tags.REQUEST_SEARCHING) {
-                    (new SearchingMaster(clientSocket)).start();
+                    (new SearchingMaster(clientSocket, false)).start();
+                }
+                else if (tag == Tags.REQUEST_QUERYING) {
+                    (new SearchingMaster(clientSocket, true)).start();
+                }
+                else if (tag == Tags.REQUEST_RANKING) {
+                    (new RankingMaster(clientSocket)).start();
                 }
             }
         }
@@ -99,75 +152,141 @@ public class MiniGoogleServer {
          */
         Socket _requesterSocket;
 
+        int _transactionId;
+
         /**
-         * A set of unfinished mapping jobs. Each item is a segment path, representing a job.
+         * Helpers borrowed in one go for the first attempts of the mapping tasks. Retries borrow their own.
          */
-        HashSet<String> _unfinishedMappingJobs;
+        ConcurrentLinkedQueue<HelperLease> _spareMappingHelpers;
 
         /**
-         * A set of unfinished reducing jobs. Each item is a segment path, representing a job.
+         * Helpers borrowed in one go for the first attempts of the reducing tasks, by category.
          */
-        HashSet<String> _unfinishedReducingJobs;
-
-        int _transactionId;
+        ConcurrentHashMap<String, HelperLease> _spareReducingHelpers;
 
         public IndexingMaster(Socket clientSocket) {
             _requesterSocket = clientSocket;
-            _unfinishedMappingJobs = new HashSet<String>();
-            _unfinishedReducingJobs = new HashSet<String>();
+            _spareMappingHelpers = new ConcurrentLinkedQueue<HelperLease>();
+            _spareReducingHelpers = new ConcurrentHashMap<String, HelperLease>();
         }
 
-        public void requestMapping(ServerInfo helper, String pathToWorkOn, String masterIpAddress, int masterPortNumber) throws IOException {
+        /**
+         * Sends a mapping job to a helper.
+         * @throws IOException If the helper did not accept the job. Its lease is returned.
+         */
+        public void requestMapping(final HelperLease helper, final InputSplit split, final String masterIpAddress, final int masterPortNumber) throws IOException {
             try {
-                Socket socketToCurHelper = new Socket(helper.IPAddressString(), helper.portNumber);
-                TcpMessenger messengerToCurHelper = new TcpMessenger(socketToCurHelper);
+                MiniGoogleUtilities.connectionPool.exchange(helper.serverInfo, new TcpConnectionPool.Exchange<Integer>() {
+                    public Integer run(TcpMessenger messengerToCurHelper) throws IOException {
+                        // Send request indexing mapping to helper.
+                        messengerToCurHelper.sendTag(Tags.REQUEST_INDEXING_MAPPING);
 
-                // Send request indexing mapping to helper.
-                messengerToCurHelper.sendTag(Tags.REQUEST_INDEXING_MAPPING);
+                        // Send the ranges of files to map to helper.
+                        split.send(messengerToCurHelper);
 
-                // Send path to current segment to helper.
-                messengerToCurHelper.sendString(pathToWorkOn);
+                        // Send transaction ID to helper.
+                        messengerToCurHelper.sendInt(_transactionId);
 
-                // Send transaction ID to helper.
-                messengerToCurHelper.sendInt(_transactionId);
+                        // Send the master IP and Port# to helper for it to report to.
+                        messengerToCurHelper.sendString(masterIpAddress);
+                        messengerToCurHelper.sendInt(masterPortNumber);
 
-                // Send the master IP and Port# to helper for it to report to.
-                messengerToCurHelper.sendString(masterIpAddress);
-                messengerToCurHelper.sendInt(masterPortNumber);
+                        // Send the lease, for the helper to keep alive while working and to return when done.
+                        messengerToCurHelper.sendInt(helper.leaseId);
 
-                socketToCurHelper.close();
+                        // Wait for the helper to accept the job.
+                        return messengerToCurHelper.receiveTag();
+                    }
+                });
+            }
+            catch (IOException e) {
+                // The helper will not return itself, so do it here.
+                MiniGoogleUtilities.returnLease(helper.leaseId, _nameServerInfo);
+                throw e;
             }
-            catch (IOException e) { }
         }
 
-        public void requestReducing(ServerInfo helper, String documentName, String masterIpAddress, int masterPortNumber) throws IOException {
+        /**
+         * Sends a reducing job to a helper.
+         * @throws IOException If the helper did not accept the job. Its lease is returned.
+         */
+        public void requestReducing(final HelperLease helper, final int documentId, final int documentLength, final String masterIpAddress, final int masterPortNumber) throws IOException {
             try {
-                Socket socketToHelper = new Socket(helper.IPAddressString(), helper.portNumber);
-                TcpMessenger messenger = new TcpMessenger(socketToHelper);
+                MiniGoogleUtilities.connectionPool.exchange(helper.serverInfo, new TcpConnectionPool.Exchange<Integer>() {
+                    public Integer run(TcpMessenger messenger) throws IOException {
+                        messenger.sendTag(Tags.REQUEST_INDEXING_REDUCING);
 
-                messenger.sendTag(Tags.REQUEST_INDEXING_REDUCING);
+                        // Send transaction ID to helper. The helper will use it to locate the partial count directory.
+                        messenger.sendInt(_transactionId);
 
-                // Send transaction ID to helper. The helper will use it to locate the partial count directory.
-                messenger.sendInt(_transactionId);
+                        // Send the document ID so that the reducer can create the postings, and the length of the
+                        // document for ranking.
+                        messenger.sendInt(documentId);
+                        messenger.sendInt(documentLength);
 
-                // Send the document name so that the reducer can create the postings.
-                messenger.sendString(documentName);
+                        // Send the master IP and Port# to helper for it to report to.
+                        messenger.sendString(masterIpAddress);
+                        messenger.sendInt(masterPortNumber);
 
-                // Send the master IP and Port# to helper for it to report to.
-                messenger.sendString(masterIpAddress);
-                messenger.sendInt(masterPortNumber);
+                        // Send the lease, for the helper to keep alive while working and to return when done.
+                        messenger.sendInt(helper.leaseId);
 
-                socketToHelper.close();
+                        // Wait for the helper to accept the job.
+                        return messenger.receiveTag();
+                    }
+                });
+            }
+            catch (IOException e) {
+                MiniGoogleUtilities.returnLease(helper.leaseId, _nameServerInfo);
+                throw e;
             }
-            catch (IOException e) { }
         }
 
-        public void run() {
+        /**
+         * Takes a spare helper for a mapping task, or borrows a new one.
+         * @param avoidedHelper A helper not to take, or null.
+         */
+        HelperLease getMappingHelper(ServerInfo avoidedHelper) throws IOException {
+            HelperLease helper = _spareMappingHelpers.poll();
+            if (helper == null) helper = borrowMappingHelper();
+            if (avoidedHelper == null || !avoidedHelper.equals(helper.serverInfo)) return helper;
+
+            // Hold on to the avoided helper while borrowing another, so that the name server counts it as busier.
+            // It stays spare for other tasks.
+            HelperLease other;
             try {
+                other = borrowMappingHelper();
+            }
+            finally {
+                _spareMappingHelpers.add(helper);
+            }
+            if (avoidedHelper.equals(other.serverInfo)) {
+                _spareMappingHelpers.add(other);
+                throw new IOException("No helper other than " + avoidedHelper + " is available. ");
+            }
+            return other;
+        }
 
+        HelperLease borrowMappingHelper() throws IOException {
+            ArrayList<HelperLease> borrowed = MiniGoogleUtilities.borrowCategorylessHelpers(1, _nameServerInfo);
+            if (borrowed.isEmpty() || borrowed.get(0).isFake()) throw new IOException("No helper is available. ");
+            return borrowed.get(0);
+        }
 
-                String masterIpAddress = Utilities.getMyIpAddress();
+        /**
+         * Takes the spare helper of a category for a reducing task, or borrows a new one.
+         */
+        HelperLease getReducingHelper(String category) throws IOException {
+            HelperLease helper = _spareReducingHelpers.remove(category);
+            if (helper == null) helper = MiniGoogleUtilities.borrowOneCategoriedHelper(category, _nameServerInfo);
+            if (helper.isFake()) throw new IOException("No helper is available for category " + category + ". ");
+            return helper;
+        }
 
+        public void run() {
+            JobTracker mappingTracker = null;
+            JobTracker reducingTracker = null;
+            try {
 
                 //////////////////////////////
                 //         MAPPING          //
@@ -175,12 +294,6 @@ public class MiniGoogleServer {
 
                 Console.writeLine("Begin mapping...");
 
-                // Create a server socket for mapping helpers to reply status.
-                ServerSocket masterServerSocketForMapping = new ServerSocket(0, 200);
-                int masterPortNumberForMapping = Utilities.getMyPortNumber(masterServerSocketForMapping);
-
-                masterServerSocketForMapping.setSoTimeout(MAX_WAIT_TIME_FOR_HELPER);
-
                 // Create a messenger to the one who sent the indexing request
                 TcpMessenger messengerToRequester = new TcpMessenger(_requesterSocket);
 
@@ -188,7 +301,8 @@ public class MiniGoogleServer {
                 // First parameter: path to the directory of segments.
                 String pathToSegmentDirectory = messengerToRequester.receiveString();
 
-                String documentName = MiniGoogleUtilities.getDirectoryName(pathToSegmentDirectory);
+                final String documentName = MiniGoogleUtilities.getDirectoryName(pathToSegmentDirectory);
+                final int documentId = _documents.getId(documentName);
 
                 // Second parameter: transaction ID. This is used to create the directory of partial results.
                 _transactionId = messengerToRequester.receiveInt();
@@ -197,83 +311,43 @@ public class MiniGoogleServer {
                 // Create directory for the mappers to output the partial result to.
                 Directory.createDirectory(MAPPER_OUT_DIR + _transactionId);
 
-                // Count segments.
+                // Cut the segments into splits: large segments into several, small ones packed together, and no
+                // more splits than there are helpers to map them.
                 ArrayList<String> pathsToSegments = Directory.getFiles(pathToSegmentDirectory);
-                int numHelpersNeeded = pathsToSegments.size();
-
-                // Contact name server, and borrow that many helpers.
-                ArrayList<ServerInfo> helpers = MiniGoogleUtilities.borrowCategorylessHelpers(numHelpersNeeded, _nameServerInfo);
-
-                // Send each segment to one helper, and request mapping.
-                for (int i = 0; i < numHelpersNeeded; i++) {
-                    ServerInfo curHelper = helpers.get(i);
-                    String curPath = pathsToSegments.get(i);
-
-                    requestMapping(curHelper, curPath, masterIpAddress, masterPortNumberForMapping);
-
-                    _unfinishedMappingJobs.add(curPath);
+                int numHelpers = Math.max(1, _helperDirectory.getNumHelpers());
+                final LinkedHashMap<String, InputSplit> splits = new LinkedHashMap<String, InputSplit>();
+                for (InputSplit split : InputSplit.plan(pathsToSegments, _targetSplitSize, numHelpers)) {
+                    splits.put(split.name, split);
+                }
+                Console.writeLine(pathsToSegments.size() + " segments are cut into " + splits.size() + " splits, for " + numHelpers + " helpers. ");
 
-                    // masterServerSocket should be responsible for receiving the status of helpers.
+                // Contact name server, and borrow one helper per split, all in one request.
+                for (HelperLease helper : MiniGoogleUtilities.borrowCategorylessHelpers(splits.size(), _nameServerInfo)) {
+                    if (!helper.isFake()) _spareMappingHelpers.add(helper);
                 }
 
-                // Start to collect results.
-                int numTrialsForMapping = 0;
-                while (_unfinishedMappingJobs.size() != 0 && numTrialsForMapping < MAX_TRIAL_NUM) {
-                    Console.writeLine("@@@@@@@@@@@@@@@@@@ trying...");
-                    try {
-                        while (_unfinishedMappingJobs.size() != 0) {
-                            // Wait for helpers to respond.
-                            Socket mappingHelperSocket = masterServerSocketForMapping.accept();
-                            TcpMessenger mappingHelperMessenger = new TcpMessenger(mappingHelperSocket);
-
-                            // A helper, when it finishes the mapping job, returns:
-                            //    (1) The ServerInfo it is running on.
-                            //    (2) The path it was working on.
-                            // The helper monitor on the master uses a pair (Serverinfo, Path) to identify helpers.
-                            String finishedPath = mappingHelperMessenger.receiveString();
-                            mappingHelperSocket.close();
-                            _unfinishedMappingJobs.remove(finishedPath);
-                        }
+                // Send each split to one helper, all in parallel, and wait for the helpers to report. A helper
+                // reports the name of the split it was working on, and the number of terms in it.
+                final AtomicInteger documentLength = new AtomicInteger();
+                mappingTracker = new JobTracker("Mapping " + documentName, new JobTracker.Dispatcher() {
+                    public ServerInfo dispatch(String splitName, int attempt, ServerInfo avoidedHelper, String masterIpAddress, int masterPortNumber) throws IOException {
+                        HelperLease helper = getMappingHelper(avoidedHelper);
+                        requestMapping(helper, splits.get(splitName), masterIpAddress, masterPortNumber);
+                        return helper.serverInfo;
                     }
-                    catch (Exception e) {
-                        // This is the point where the master's server socket does not received enough responses,
-                        // within the time out. This catch branch does the following:
-                        //    (1) Replace each failed helper.
-                        //    (2) Assign the same segment that the failed helper worked on to the new helper.
-
-                        // Get all failed helpers.
-
-                        numTrialsForMapping++;
-                        Console.writeLine("\n");
-                        for (String job : _unfinishedMappingJobs) {
-                            Console.writeLine(job);
-                        }
-                        Console.writeLine("\n");
-
-                        ArrayList<String> failedJobs = new ArrayList<String>();
-                        for (String job : _unfinishedMappingJobs) failedJobs.add(job);
-
-                        // Borrow new helpers.
-                        int numFailedHelpers = _unfinishedMappingJobs.size();
-                        ArrayList<ServerInfo> newHelpers = MiniGoogleUtilities.borrowCategorylessHelpers(numFailedHelpers, _nameServerInfo);
-
-                        // Replace helpers and start jobs on new ones.
-                        for (int i = 0; i < numFailedHelpers; i++) {
-                            String failedJob = failedJobs.get(i);
-
-                            // Redispatch the failed job to the new helper
-                            ServerInfo newHelper = newHelpers.get(i);
-                            requestMapping(newHelper, failedJob, masterIpAddress, masterPortNumberForMapping);
-                        }
+                }, new JobTracker.CompletionListener() {
+                    public void taskCompleted(String splitName, TcpMessenger messenger) throws IOException {
+                        documentLength.addAndGet(messenger.receiveInt());
                     }
-                }
+                }, _dispatchExecutor, MAX_WAIT_TIME_FOR_HELPER, MAX_TRIAL_NUM);
 
-                if (numTrialsForMapping == MAX_TRIAL_NUM) {
-                    Console.writeLine("Give up.");
-                    throw new IOException("Mapping failed. ");
-                }
+                // Mappers write their counts atomically, so a straggler and its backup can both finish.
+                mappingTracker.setSpeculative(true);
+                mappingTracker.run(splits.keySet());
+
+                // Helpers borrowed for splits that other helpers took over are not needed any more.
+                returnSpareHelpers();
 
-                masterServerSocketForMapping.close();
                 Console.writeLine("Mapping done... \n");
 
                 //////////////////////////////
@@ -282,69 +356,29 @@ public class MiniGoogleServer {
 
                 Console.writeLine("Starting reducing...");
 
-                // Create a server socket for reducing helpers to reply status.
-                ServerSocket masterServerSocketForReducing = new ServerSocket(0);
-                int masterPortNumberForReducing = Utilities.getMyPortNumber(masterServerSocketForReducing);
-                masterServerSocketForReducing.setSoTimeout(MAX_WAIT_TIME_FOR_HELPER);
-
-                ArrayList<ServerInfo> reducingHelpers = MiniGoogleUtilities.borrowASetOfReducingHelpers(_nameServerInfo);
-
-                for (ServerInfo serverInfo : reducingHelpers) {
-                    requestReducing(serverInfo, documentName, masterIpAddress, masterPortNumberForReducing);
-                }
-
-                for (String category : MiniGoogleUtilities.generateCategories()) {
-                    _unfinishedReducingJobs.add(category);
+                // Borrow one helper per category, all in one request. They come in the order of the categories.
+                ArrayList<String> categories = MiniGoogleUtilities.generateCategories();
+                ArrayList<HelperLease> reducingHelpers = MiniGoogleUtilities.borrowASetOfReducingHelpers(_nameServerInfo);
+                for (int i = 0; i < reducingHelpers.size() && i < categories.size(); i++) {
+                    if (!reducingHelpers.get(i).isFake()) _spareReducingHelpers.put(categories.get(i), reducingHelpers.get(i));
                 }
 
-
-                // Start to collect results.
-                int numTrialsForReducing = 0;
-                while (_unfinishedReducingJobs.size() != 0 && numTrialsForReducing < MAX_TRIAL_NUM) {
-                    Console.writeLine("@@@@@@@@@@@@@@@@@@ trying...");
-                    try {
-                        while (_unfinishedReducingJobs.size() != 0) {
-                            // Wait for helpers to respond.
-                            Socket reducingHelperSocket = masterServerSocketForReducing.accept();
-                            TcpMessenger reducingHelperMessenger = new TcpMessenger(reducingHelperSocket);
-
-                            // A helper, when it finishes the reducing job, returns:
-                            //    (1) The ServerInfo it is running on.
-                            //    (2) The category it was working on.
-                            // The helper monitor on the master uses a pair (Serverinfo, Path) to identify helpers.
-                            String finishedCategory = reducingHelperMessenger.receiveString();
-                            reducingHelperSocket.close();
-                            _unfinishedReducingJobs.remove(finishedCategory);
-                        }
-                    }
-                    catch (Exception e) {
-                        numTrialsForReducing++;
-                        Console.writeLine("\n");
-                        for (String job : _unfinishedReducingJobs) {
-                            Console.writeLine(job);
-                        }
-                        Console.writeLine("\n");
-
-                        for (String failedReducingJob : _unfinishedReducingJobs) {
-                            ServerInfo newReducingHelper = MiniGoogleUtilities.borrowOneCategoriedHelper(failedReducingJob, _nameServerInfo);
-                            if (!newReducingHelper.equals(ServerInfo.createFakeServer())) {
-                                requestReducing(newReducingHelper, documentName, masterIpAddress, masterPortNumberForReducing);
-                            }
-                        }
+                // A helper reports the category it was working on.
+                reducingTracker = new JobTracker("Reducing " + documentName, new JobTracker.Dispatcher() {
+                    public ServerInfo dispatch(String category, int attempt, ServerInfo avoidedHelper, String masterIpAddress, int masterPortNumber) throws IOException {
+                        HelperLease helper = getReducingHelper(category);
+                        requestReducing(helper, documentId, documentLength.get(), masterIpAddress, masterPortNumber);
+                        return helper.serverInfo;
                     }
-                }
-
-                if (numTrialsForReducing == MAX_TRIAL_NUM) {
-                    Console.writeLine("Give up");
-                    throw new IOException("Reducing failed. ");
-                }
-
+                }, null, _dispatchExecutor, MAX_WAIT_TIME_FOR_HELPER, MAX_TRIAL_NUM);
 
+                // No backups: a reducer merges each transaction once, but only as far as it knows, and a backup on
+                // another helper of the category would merge it again.
+                reducingTracker.run(categories);
 
                 // delete all intermediate results in this transaction
                 Directory.removeDirectory(MAPPER_OUT_DIR + _transactionId);
 
-                masterServerSocketForReducing.close();
                 Console.writeLine("Reducing done... \n");
 
                 TcpMessenger messenger = new TcpMessenger(_requesterSocket);
@@ -361,6 +395,9 @@ public class MiniGoogleServer {
                 } catch(IOException ex) { }
             }
             finally {
+                if (mappingTracker != null) mappingTracker.close();
+                if (reducingTracker != null) reducingTracker.close();
+                returnSpareHelpers();
                 try {
                     _requesterSocket.close();
                     Console.writeLine("Socket to client " + _requesterSocket.getInetAddress().getHostAddress() + ":" + _requesterSocket.getPort() + " is closed. ");
@@ -370,32 +407,187 @@ public class MiniGoogleServer {
                 }
             }
         }
+
+        void returnSpareHelpers() {
+            HelperLease helper;
+            while ((helper = _spareMappingHelpers.poll()) != null) {
+                MiniGoogleUtilities.returnLease(helper.leaseId, _nameServerInfo);
+            }
+            for (String category : new ArrayList<String>(_spareReducingHelpers.keySet())) {
+                helper = _spareReducingHelpers.remove(category);
+                if (helper != null) MiniGoogleUtilities.returnLease(helper.leaseId, _nameServerInfo);
+            }
+        }
     }
 
+    /**
+     * A thread that answers a searching request, for the postings of some keywords, or a querying request, for the
+     * documents matched by a boolean query.
+     * The parts of the queries whose terms are all of one category are evaluated by the helper of the category, so
+     * that, e.g., the terms of an AND of one category are intersected where their postings are; the master only
+     * combines the documents of the parts, intersecting the shortest lists first, and looks up the names of the
+     * documents that are left.
+     */
     static class SearchingMaster extends Thread {
         Socket _requesterSocket;
 
+        /**
+         * Whether the request is a query, or keywords.
+         */
+        boolean _isQuerying;
+
+        /**
+         * Number of documents to return for each keyword, those of the highest frequencies, or 0 for all. Queries
+         * return all their documents.
+         */
+        int _limit;
+
         HashSet<String> _unfinishedJobs;
 
-        public SearchingMaster(Socket requesterSocket) {
+        /**
+         * The helper working on each category, and whether it was picked from the helper directory (true) or
+         * borrowed from the name server (false).
+         */
+        HashMap<String, Pair<ServerInfo, Boolean>> _assignedHelpers;
+
+        public SearchingMaster(Socket requesterSocket, boolean isQuerying) {
             _requesterSocket = requesterSocket;
+            _isQuerying = isQuerying;
             _unfinishedJobs = new HashSet<String>();
+            _assignedHelpers = new HashMap<String, Pair<ServerInfo, Boolean>>();
+        }
+
+        /**
+         * Finds a helper for a category and sends it the parts of the queries of that category. The helper is picked from the
+         * helper directory when possible, and only borrowed from the name server when the directory knows none.
+         * @param excluded A helper not to use, e.g. the one that failed the category before, or null.
+         */
+        void assignCategory(String category, ArrayList<Query> queries, ServerInfo excluded, String masterIpAddress, int masterPortNumber) throws IOException {
+            HelperLease helper = new HelperLease(_helperDirectory.pickHelper(category, excluded), HelperLease.NO_LEASE);
+            boolean isPicked = !helper.isFake();
+            if (!isPicked) {
+                helper = MiniGoogleUtilities.borrowOneCategoriedHelper(category, _nameServerInfo);
+            }
+            _assignedHelpers.put(category, new Pair<ServerInfo, Boolean>(helper.serverInfo, isPicked));
+            try {
+                requestSearching(helper, queries, masterIpAddress, masterPortNumber);
+            }
+            catch (IOException e) {
+                MiniGoogleUtilities.returnLease(helper.leaseId, _nameServerInfo);
+                throw e;
+            }
+        }
+
+        /**
+         * Lets go of the helper of a category, once it has finished or failed.
+         */
+        void releaseCategory(String category) {
+            Pair<ServerInfo, Boolean> assigned = _assignedHelpers.remove(category);
+            if (assigned != null && assigned.item2) _helperDirectory.releaseHelper(assigned.item1);
         }
 
-        void requestSearching(ServerInfo helper, ArrayList<String> keywords, String masterIpAddress, int masterPortNumber) throws IOException {
-            Socket socket = new Socket(helper.IPAddressString(), helper.portNumber);
-            TcpMessenger messenger = new TcpMessenger(socket);
+        void requestSearching(final HelperLease helper, final ArrayList<Query> queries, final String masterIpAddress, final int masterPortNumber) throws IOException {
+            MiniGoogleUtilities.connectionPool.exchange(helper.serverInfo, new TcpConnectionPool.Exchange<Integer>() {
+                public Integer run(TcpMessenger messenger) throws IOException {
+                    messenger.sendTag(Tags.REQUEST_SEARCHING);
+
+                    messenger.sendInt(queries.size());
+                    for (Query query : queries) {
+                        query.send(messenger);
+                    }
+                    messenger.sendInt(_limit);
+
+                    // Send the master IP and Port# to helper for it to report to.
+                    messenger.sendString(masterIpAddress);
+                    messenger.sendInt(masterPortNumber);
+
+                    // Send the lease, if the helper was borrowed, for the helper to return when done.
+                    messenger.sendInt(helper.leaseId);
 
-            messenger.sendTag(Tags.REQUEST_SEARCHING);
+                    // Wait for the helper to accept the job.
+                    return messenger.receiveTag();
+                }
+            });
+        }
 
-            messenger.sendInt(keywords.size());
-            for (String keyword : keywords) {
-                messenger.sendString(keyword);
+        /**
+         * The category of all the terms of a query, or null if they are of more than one.
+         */
+        static String getCategoryOf(Query query) {
+            if (query.getType() == Query.TERM) return MiniGoogleUtilities.getCategoryOf(query.getTerm());
+            String category = null;
+            for (Query child : query.getChildren()) {
+                String childCategory = getCategoryOf(child);
+                if (childCategory == null || (category != null && !category.equals(childCategory))) return null;
+                category = childCategory;
             }
+            return category;
+        }
 
-            // Send the master IP and Port# to helper for it to report to.
-            messenger.sendString(masterIpAddress);
-            messenger.sendInt(masterPortNumber);
+        /**
+         * Splits a query into parts for the helpers: the largest parts whose terms are all of one category, where the
+         * children of an AND or OR that are of the same category are put together under one AND or OR.
+         * A NOT is evaluated with the positive parts of its category under the same AND when there are some, and
+         * is otherwise taken out of its part on the master.
+         * @param groups The parts for each category, added to.
+         * @return The query for the master, whose leaves are parts in groups.
+         */
+        static Query plan(Query query, HashMap<String, ArrayList<Query>> groups) {
+            String category = getCategoryOf(query);
+            if (category != null && query.isPositive()) {
+                addPart(groups, category, query);
+                return query;
+            }
+            if (!query.isPositive()) return Query.not(plan(query.getChildren().get(0), groups));
+
+            // An AND or OR of more than one category.
+            ArrayList<Query> children = new ArrayList<Query>();
+            LinkedHashMap<String, ArrayList<Query>> childrenByCategory = new LinkedHashMap<String, ArrayList<Query>>();
+            for (Query child : query.getChildren()) {
+                String childCategory = getCategoryOf(child);
+                if (childCategory == null) {
+                    children.add(plan(child, groups));
+                }
+                else {
+                    if (!childrenByCategory.containsKey(childCategory)) childrenByCategory.put(childCategory, new ArrayList<Query>());
+                    childrenByCategory.get(childCategory).add(child);
+                }
+            }
+            for (Map.Entry<String, ArrayList<Query>> entry : childrenByCategory.entrySet()) {
+                ArrayList<Query> sameCategory = entry.getValue();
+                boolean hasPositive = false;
+                for (Query child : sameCategory) hasPositive |= child.isPositive();
+                if (!hasPositive) {
+                    // "NOT a AND NOT b" is "NOT (a OR b)", which is one part.
+                    ArrayList<Query> excluded = new ArrayList<Query>();
+                    for (Query child : sameCategory) excluded.add(child.getChildren().get(0));
+                    Query part = excluded.size() == 1 ? excluded.get(0) : Query.or(excluded.toArray(new Query[excluded.size()]));
+                    addPart(groups, entry.getKey(), part);
+                    children.add(Query.not(part));
+                    continue;
+                }
+                Query part = sameCategory.size() == 1 ? sameCategory.get(0) : query.withChildren(sameCategory);
+                addPart(groups, entry.getKey(), part);
+                children.add(part);
+            }
+            return children.size() == 1 ? children.get(0) : query.withChildren(children);
+        }
+
+        static void addPart(HashMap<String, ArrayList<Query>> groups, String category, Query part) {
+            if (!groups.containsKey(category)) groups.put(category, new ArrayList<Query>());
+            groups.get(category).add(part);
+        }
+
+        /**
+         * Looks up the names of the documents of a list of postings.
+         */
+        void resolveDocumentNames(PostingList postings, PostingsBuffer buffer) throws IOException {
+            buffer.clear();
+            for (int i = 0; i < postings.size(); i++) {
+                String documentName = _documents.getName(postings.getDocumentId(i));
+                if (documentName == null) throw new IOException("Unknown document ID " + postings.getDocumentId(i));
+                buffer.add(documentName, postings.getFrequency(i));
+            }
         }
 
         public void run() {
@@ -405,28 +597,35 @@ public class MiniGoogleServer {
                 // A messenger to talk to the one who requested this searching job.
                 TcpMessenger messengerToRequester = new TcpMessenger(_requesterSocket);
 
-                // Obtain the number of keywords to come.
-                int numKeywords = messengerToRequester.receiveInt();
-
-                // Obtain all the keywords.
-                ArrayList<String> keywords = new ArrayList<String>();
-                for (int i = 0; i < numKeywords; i++) {
-                    keywords.add(messengerToRequester.receiveString());
-                }
-
-                // Group keywords by categories.
-                HashMap<String, ArrayList<String>> groups = new HashMap<String, ArrayList<String>>();
-
-                for (String keyword : keywords) {
-                    String category = MiniGoogleUtilities.getCategoryOf(keyword);
-                    if (groups.containsKey(category)) {
-                        groups.get(category).add(keyword);
+                // Obtain the query, or the keywords, each of which is a query of one term.
+                ArrayList<String> names = new ArrayList<String>();
+                ArrayList<Query> queries = new ArrayList<Query>();
+                if (_isQuerying) {
+                    Query query = Query.receive(messengerToRequester);
+                    try {
+                        query.validate();
                     }
-                    else {
-                        ArrayList<String> keywordsUnderTheCategory = new ArrayList<String>();
-                        keywordsUnderTheCategory.add(keyword);
-                        groups.put(category, keywordsUnderTheCategory);
+                    catch (IllegalArgumentException e) {
+                        throw new IOException(e.getMessage());
                     }
+                    names.add(query.toString());
+                    queries.add(query);
+                }
+                else {
+                    int numKeywords = messengerToRequester.receiveInt();
+                    for (int i = 0; i < numKeywords; i++) {
+                        String keyword = messengerToRequester.receiveString();
+                        names.add(keyword);
+                        queries.add(Query.term(keyword));
+                    }
+                    _limit = messengerToRequester.receiveInt();
+                }
+
+                // Split the queries into parts by categories.
+                HashMap<String, ArrayList<Query>> groups = new HashMap<String, ArrayList<Query>>();
+                ArrayList<Query> plans = new ArrayList<Query>();
+                for (Query query : queries) {
+                    plans.add(plan(query, groups));
                 }
 
                 // Create a server socket for searching helpers to reply status.
@@ -436,16 +635,16 @@ public class MiniGoogleServer {
                 masterServerSocket.setSoTimeout(MAX_WAIT_TIME_FOR_HELPER);
 
 
-                // For each category, borrow one searching helper from name server.
-                for (Map.Entry<String, ArrayList<String>> pair : groups.entrySet()) {
+                // For each category, find one searching helper.
+                for (Map.Entry<String, ArrayList<Query>> pair : groups.entrySet()) {
                     String category = pair.getKey();
-                    ServerInfo helper = MiniGoogleUtilities.borrowOneCategoriedHelper(category, _nameServerInfo);
-                    requestSearching(helper, pair.getValue(), masterIpAddress, masterPortNumber);
                     _unfinishedJobs.add(category);
+                    assignCategory(category, pair.getValue(), null, masterIpAddress, masterPortNumber);
                 }
 
-                // Result container
-                HashMap<String, ArrayList<Helper.PostingItem>> results = new HashMap<String, ArrayList<Helper.PostingItem>>();
+                // The documents matched by each part. Postings stay by document ID until they are sent to the client,
+                // but for the top documents of a keyword, which come by frequency.
+                final IdentityHashMap<Query, PostingList> results = new IdentityHashMap<Query, PostingList>();
 
 
                 // Start to collect results.
@@ -463,15 +662,17 @@ public class MiniGoogleServer {
 
                             Console.writeLine("\n" + finishedCategory + " is finished. Results are: ");
 
-                            // Receive its results
-                            int numWords = reducingHelperMessenger.receiveInt();
-                            for (int i = 0; i < numWords; i++) {
-                                String keyword = reducingHelperMessenger.receiveString();
-                                String postingsString = reducingHelperMessenger.receiveString();
-                                ArrayList<Helper.PostingItem> postings = MiniGoogleUtilities.stringToPostings(postingsString);
-                                results.put(keyword, postings);
+                            // Receive its results, in the order of its parts.
+                            ArrayList<Query> parts = groups.get(finishedCategory);
+                            int numParts = reducingHelperMessenger.receiveInt();
+                            if (parts == null || numParts != parts.size()) throw new IOException("Unexpected results from " + finishedCategory);
+                            for (int i = 0; i < numParts; i++) {
+                                PostingList postings = new PostingList();
+                                reducingHelperMessenger.receivePostingList(postings);
+                                results.put(parts.get(i), postings);
                             }
                             _unfinishedJobs.remove(finishedCategory);
+                            releaseCategory(finishedCategory);
                         }
                     }
                     catch (Exception e) {
@@ -482,9 +683,12 @@ public class MiniGoogleServer {
                         }
                         Console.writeLine("\n");
 
-                        for (String failedReducingJob : _unfinishedJobs) {
-                            ServerInfo newReducingHelper = MiniGoogleUtilities.borrowOneCategoriedHelper(failedReducingJob, _nameServerInfo);
-                            requestSearching(newReducingHelper, groups.get(failedReducingJob), masterIpAddress, masterPortNumber);
+                        // The directory may still list helpers that died; look again, and avoid the failed ones.
+                        _helperDirectory.invalidate();
+                        for (String failedSearchingJob : _unfinishedJobs) {
+                            Pair<ServerInfo, Boolean> failed = _assignedHelpers.get(failedSearchingJob);
+                            releaseCategory(failedSearchingJob);
+                            assignCategory(failedSearchingJob, groups.get(failedSearchingJob), failed == null ? null : failed.item1, masterIpAddress, masterPortNumber);
                         }
                     }
                 }
@@ -494,12 +698,22 @@ public class MiniGoogleServer {
                     throw new IOException("Searching failed. ");
                 }
 
-                // done receiving all results. Send to client
-                for (Map.Entry<String, ArrayList<Helper.PostingItem>> entry : results.entrySet()) {
-                    String keyword = entry.getKey();
-                    ArrayList<Helper.PostingItem> postings = entry.getValue();
-                    messengerToRequester.sendString(keyword);
-                    messengerToRequester.sendString(MiniGoogleUtilities.postingsToString(postings));
+                // done receiving all results. Combine the parts of each query, and send the documents to the client, with
+                // their names. A query that is a part as a whole, such as a keyword, is sent as the helper gave it.
+                QueryEvaluator.Leaves evaluatedParts = new QueryEvaluator.Leaves() {
+                    public QueryEvaluator.PostingIterator open(Query query) {
+                        PostingList postings = results.get(query);
+                        return postings == null ? null : new QueryEvaluator.ListIterator(postings);
+                    }
+                };
+                PostingsBuffer postingsBuffer = new PostingsBuffer();
+                messengerToRequester.sendInt(plans.size());
+                for (int i = 0; i < plans.size(); i++) {
+                    messengerToRequester.sendString(names.get(i));
+                    PostingList postings = results.get(plans.get(i));
+                    if (postings == null) postings = QueryEvaluator.collect(QueryEvaluator.evaluate(plans.get(i), evaluatedParts));
+                    resolveDocumentNames(postings, postingsBuffer);
+                    messengerToRequester.sendPostings(postingsBuffer);
                 }
 
                 TcpMessenger messenger = new TcpMessenger(_requesterSocket);
@@ -522,4 +736,162 @@ public class MiniGoogleServer {
         }
     }
 
+    /**
+     * A thread that answers a ranking request: the top k documents by BM25 for some keywords.
+     * The helper of each category ranks the documents by the keywords of its category, and the master adds up the
+     * scores a document gets from the categories. A document left out of the top of one category misses the score of
+     * that category, so when the keywords are of more than one category, each helper is asked for CANDIDATE_FACTOR
+     * times as many documents; the top k of the sums are then close to, though not always exactly, the top k.
+     */
+    static class RankingMaster extends Thread {
+        static final int CANDIDATE_FACTOR = 4;
+        static final int MAX_K = 1000;
+
+        Socket _requesterSocket;
+
+        /**
+         * The helper working on each category, and whether it was picked from the helper directory (true) or
+         * borrowed from the name server (false).
+         */
+        ConcurrentHashMap<String, Pair<ServerInfo, Boolean>> _assignedHelpers;
+
+        public RankingMaster(Socket requesterSocket) {
+            _requesterSocket = requesterSocket;
+            _assignedHelpers = new ConcurrentHashMap<String, Pair<ServerInfo, Boolean>>();
+        }
+
+        /**
+         * Finds a helper for a category, avoiding the one that failed it before, and sends it the keywords of that
+         * category.
+         * @return The helper the keywords were sent to.
+         */
+        ServerInfo requestRanking(String category, int attempt, final ArrayList<String> keywords, final int k, final String masterIpAddress, final int masterPortNumber) throws IOException {
+            Pair<ServerInfo, Boolean> failed = releaseCategory(category);
+            if (attempt > 1) _helperDirectory.invalidate();
+
+            HelperLease picked = new HelperLease(_helperDirectory.pickHelper(category, failed == null ? null : failed.item1), HelperLease.NO_LEASE);
+            boolean isPicked = !picked.isFake();
+            final HelperLease helper = isPicked ? picked : MiniGoogleUtilities.borrowOneCategoriedHelper(category, _nameServerInfo);
+            if (helper.isFake()) throw new IOException("No helper is available for category " + category + ". ");
+            _assignedHelpers.put(category, new Pair<ServerInfo, Boolean>(helper.serverInfo, isPicked));
+
+            try {
+                MiniGoogleUtilities.connectionPool.exchange(helper.serverInfo, new TcpConnectionPool.Exchange<Integer>() {
+                    public Integer run(TcpMessenger messenger) throws IOException {
+                        messenger.sendTag(Tags.REQUEST_RANKING);
+
+                        messenger.sendInt(keywords.size());
+                        for (String keyword : keywords) {
+                            messenger.sendString(keyword);
+                        }
+                        messenger.sendInt(k);
+
+                        // Send the master IP and Port# to helper for it to report to.
+                        messenger.sendString(masterIpAddress);
+                        messenger.sendInt(masterPortNumber);
+
+                        // Send the lease, if the helper was borrowed, for the helper to return when done.
+                        messenger.sendInt(helper.leaseId);
+
+                        // Wait for the helper to accept the job.
+                        return messenger.receiveTag();
+                    }
+                });
+                return helper.serverInfo;
+            }
+            catch (IOException e) {
+                MiniGoogleUtilities.returnLease(helper.leaseId, _nameServerInfo);
+                throw e;
+            }
+        }
+
+        /**
+         * Lets go of the helper of a category, once it has finished or failed.
+         * @return The helper, or null if the category had none.
+         */
+        Pair<ServerInfo, Boolean> releaseCategory(String category) {
+            Pair<ServerInfo, Boolean> assigned = _assignedHelpers.remove(category);
+            if (assigned != null && assigned.item2) _helperDirectory.releaseHelper(assigned.item1);
+            return assigned;
+        }
+
+        public void run() {
+            JobTracker rankingTracker = null;
+            try {
+                // A messenger to talk to the one who requested this ranking job.
+                TcpMessenger messengerToRequester = new TcpMessenger(_requesterSocket);
+
+                int numKeywords = messengerToRequester.receiveInt();
+                ArrayList<String> keywords = new ArrayList<String>();
+                for (int i = 0; i < numKeywords; i++) {
+                    keywords.add(messengerToRequester.receiveString());
+                }
+                int k = Math.max(0, Math.min(messengerToRequester.receiveInt(), MAX_K));
+
+                // Group keywords by categories.
+                final HashMap<String, ArrayList<String>> groups = new HashMap<String, ArrayList<String>>();
+                for (String keyword : keywords) {
+                    String category = MiniGoogleUtilities.getCategoryOf(keyword);
+                    if (!groups.containsKey(category)) groups.put(category, new ArrayList<String>());
+                    groups.get(category).add(keyword);
+                }
+
+                // Rank in each category, and add up the scores of each document. A helper reports its category and
+                // its top documents.
+                final int numCandidates = groups.size() > 1 ? k * CANDIDATE_FACTOR : k;
+                final HashMap<Integer, Float> scores = new HashMap<Integer, Float>();
+                rankingTracker = new JobTracker("Ranking " + keywords, new JobTracker.Dispatcher() {
+                    public ServerInfo dispatch(String category, int attempt, ServerInfo avoidedHelper, String masterIpAddress, int masterPortNumber) throws IOException {
+                        return requestRanking(category, attempt, groups.get(category), numCandidates, masterIpAddress, masterPortNumber);
+                    }
+                }, new JobTracker.CompletionListener() {
+                    public void taskCompleted(String category, TcpMessenger messenger) throws IOException {
+                        TopDocuments partial = messenger.receiveTopDocuments();
+                        synchronized (scores) {
+                            for (int i = 0; i < partial.size(); i++) {
+                                Float score = scores.get(partial.getDocumentId(i));
+                                scores.put(partial.getDocumentId(i), (score == null ? 0 : score) + partial.getScore(i));
+                            }
+                        }
+                        releaseCategory(category);
+                    }
+                }, _dispatchExecutor, MAX_WAIT_TIME_FOR_HELPER, MAX_TRIAL_NUM);
+                rankingTracker.run(groups.keySet());
+
+                TopDocuments top = new TopDocuments(k);
+                synchronized (scores) {
+                    for (Map.Entry<Integer, Float> entry : scores.entrySet()) {
+                        top.offer(entry.getKey(), entry.getValue());
+                    }
+                }
+                top.sort();
+
+                // Send the top documents to the client, by name, from the highest score down.
+                messengerToRequester.sendInt(top.size());
+                for (int i = 0; i < top.size(); i++) {
+                    String documentName = _documents.getName(top.getDocumentId(i));
+                    if (documentName == null) throw new IOException("Unknown document ID " + top.getDocumentId(i));
+                    messengerToRequester.sendString(documentName);
+                    messengerToRequester.sendFloat(top.getScore(i));
+                }
+                messengerToRequester.sendTag(Tags.SEARCHING_DONE);
+            }
+            catch (IOException e) {
+                Console.writeLine("IO error in ranking master. ");
+                Console.writeLine("\t" + e.getMessage());
+            }
+            finally {
+                if (rankingTracker != null) rankingTracker.close();
+                for (String category : new ArrayList<String>(_assignedHelpers.keySet())) releaseCategory(category);
+                try {
+                    _requesterSocket.close();
+                    Console.writeLine("Socket to client " + _requesterSocket.getInetAddress().getHostAddress() + ":" + _requesterSocket.getPort() + " is closed. ");
+                }
+                catch (IOException e) {
+                    Console.writeLine("Socket to client " + _requesterSocket.getInetAddress().getHostAddress() + ":" + _requesterSocket.getPort() + " failed to close. ");
+                }
+            }
+        }
+    }
+
 }
@@ -4,12 +4,15 @@
  */
 
 import me.yuhuan.collections.Pair;
+import me.yuhuan.io.TextFile;
+import me.yuhuan.net.core.PostingsBuffer;
 import me.yuhuan.net.core.ServerInfo;
+import me.yuhuan.net.core.TcpConnectionPool;
 import me.yuhuan.net.core.TcpMessenger;
+import me.yuhuan.text.ByteTokenizer;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 
@@ -19,7 +22,22 @@ import java.util.regex.Pattern;
 public class MiniGoogleUtilities {
 
 
+    public static final String PARTITION_MAP_PATH = "partition_map";
+    public static final String FIRST_LETTER_PARTITIONER = "first-letter";
+    public static final String WORD_CHARACTERS = "abcdefghijklmnopqrstuvwxyz0123456789";
+
     public static ArrayList<String> categories = null;
+    public static volatile Partitioner partitioner = null;
+
+    /**
+     * Persistent connections shared by everything in this process that talks to the name server or to helpers.
+     */
+    public static final TcpConnectionPool connectionPool = new TcpConnectionPool();
+
+    /**
+     * Splits documents into words.
+     */
+    public static final ByteTokenizer tokenizer = new ByteTokenizer(WORD_CHARACTERS);
 
     public static int getHashCodeOf(String word) {
         int hashCode = 17;
@@ -30,35 +48,15 @@ public class MiniGoogleUtilities {
     }
 
     public static boolean isWord(String word) {
-        if (word.length() < 1) return false;
-
         // TODO: stop words
 
-        for (Character c : word.toCharArray()) {
-            if (!contains("abcdefghijklmnopqrstuvwxyz0123456789", c)) return false;
-        }
-        return true;
-    }
-
-    public static String postingsToString(ArrayList<Helper.PostingItem> postings) {
-        if (postings == null || postings.size() == 0) return "";
-        StringBuilder builder = new StringBuilder();
-        for (Helper.PostingItem posting : postings) {
-            builder.append("|");
-            builder.append(posting.getDocumentName());
-            builder.append(",");
-            builder.append(posting.getFrequency());
-        }
-        return builder.substring(1);
+        return tokenizer.isWord(word);
     }
 
-    public static ArrayList<Helper.PostingItem> stringToPostings(String s) {
-        if (s.equals("")) return new ArrayList<Helper.PostingItem>();
-        ArrayList<Helper.PostingItem> postings = new ArrayList<Helper.PostingItem>();
-        String[] stringsOfPairs = s.split("\\|");
-        for (String stringOfPair : stringsOfPairs) {
-            String[] itemStrings = stringOfPair.split(",");
-            postings.add(new Helper.PostingItem(itemStrings[0], Integer.parseInt(itemStrings[1])));
+    public static ArrayList<Helper.PostingItem> bufferToPostings(PostingsBuffer buffer) {
+        ArrayList<Helper.PostingItem> postings = new ArrayList<Helper.PostingItem>(buffer.size());
+        for (int i = 0; i < buffer.size(); i++) {
+            postings.add(new Helper.PostingItem(buffer.getDocumentName(i), buffer.getFrequency(i)));
         }
         return postings;
     }
@@ -96,75 +94,126 @@ public class MiniGoogleUtilities {
     }
 
 
-    public static ArrayList<String> generateCategories() {
-        if (categories != null) return categories;
+    /**
+     * Gets the partitioner shared by every process of the system. It is described by the file at
+     * PARTITION_MAP_PATH, which the name server writes when it starts. A process that finds no such file uses the
+     * default consistent hashing ring, which is the same everywhere.
+     */
+    public static synchronized Partitioner getPartitioner() {
+        if (partitioner != null) return partitioner;
+        try {
+            if (TextFile.exists(PARTITION_MAP_PATH)) {
+                String[] lines = TextFile.read(PARTITION_MAP_PATH);
+                if (lines[0].equals(FIRST_LETTER_PARTITIONER)) partitioner = new FirstLetterPartitioner();
+                else partitioner = ConsistentHashPartitioner.fromLines(lines);
+            }
+        }
+        catch (IOException e) { }
+        if (partitioner == null) partitioner = ConsistentHashPartitioner.createDefault();
+        return partitioner;
+    }
 
-        categories = new ArrayList<String>();
-        for (Character character : "abcdefghijklmnopqrstuvwxyz#".toCharArray()) {
-            categories.add(String.valueOf(character));
+    public static synchronized void savePartitioner(Partitioner partitionerToSave) throws IOException {
+        if (partitionerToSave instanceof ConsistentHashPartitioner) {
+            TextFile.write(PARTITION_MAP_PATH, ((ConsistentHashPartitioner)partitionerToSave).toLines());
         }
+        else {
+            TextFile.write(PARTITION_MAP_PATH, new String[] { FIRST_LETTER_PARTITIONER });
+        }
+        partitioner = partitionerToSave;
+        categories = null;
+    }
+
+    public static synchronized ArrayList<String> generateCategories() {
+        if (categories != null) return categories;
+        categories = getPartitioner().getCategories();
         return categories;
     }
 
     public static String getCategoryOf(String word) {
-        try {
-            char firstLetter = word.charAt(0);
-            if ("abcdefghijklmnopqrstuvwxyz".indexOf(firstLetter) >= 0) return String.valueOf(firstLetter);
-            else if ("0123456789".indexOf(firstLetter) >= 0) return "#";
-            else return "UNK";
-        }
-        catch (Exception e) {
-            return "UNK";
-        }
+        Partitioner loaded = partitioner;
+        if (loaded == null) loaded = getPartitioner();
+        return loaded.getCategoryOf(word);
     }
 
 
-    public static ArrayList<ServerInfo> borrowCategorylessHelpers(int numHelpersNeeded, ServerInfo nameServerInfo) throws IOException {
-        if (numHelpersNeeded == 0) return new ArrayList<ServerInfo>();
+    public static ArrayList<HelperLease> borrowCategorylessHelpers(final int numHelpersNeeded, ServerInfo nameServerInfo) throws IOException {
+        if (numHelpersNeeded == 0) return new ArrayList<HelperLease>();
 
         // Contact name server, and borrow that many helpers.
         try {
-            Socket socketToNameServer = new Socket(nameServerInfo.IPAddressString(), nameServerInfo.portNumber);
-            TcpMessenger messengerToNameServer = new TcpMessenger(socketToNameServer);
-            messengerToNameServer.sendTag(Tags.REQUEST_CATEGORYLESS_HELPER);
-            messengerToNameServer.sendInt(numHelpersNeeded);
-            ArrayList<ServerInfo> result = messengerToNameServer.receiveServerInfoArray();
-            socketToNameServer.close();
-            return result;
+            return connectionPool.exchange(nameServerInfo, new TcpConnectionPool.Exchange<ArrayList<HelperLease>>() {
+                public ArrayList<HelperLease> run(TcpMessenger messengerToNameServer) throws IOException {
+                    messengerToNameServer.sendTag(Tags.REQUEST_CATEGORYLESS_HELPER);
+                    messengerToNameServer.sendInt(numHelpersNeeded);
+                    return receiveLeases(messengerToNameServer);
+                }
+            });
         }
         catch (IOException e) {
-            return new ArrayList<ServerInfo>();
+            return new ArrayList<HelperLease>();
         }
     }
 
-    public static ServerInfo borrowOneCategoriedHelper(String category, ServerInfo nameServerInfo) throws IOException {
-        // Contact name server, and borrow that many helpers.
+    public static HelperLease borrowOneCategoriedHelper(final String category, ServerInfo nameServerInfo) throws IOException {
+        // Contact name server, and borrow a helper.
         try {
-            Socket socketToNameServer = new Socket(nameServerInfo.IPAddressString(), nameServerInfo.portNumber);
-            TcpMessenger messengerToNameServer = new TcpMessenger(socketToNameServer);
-            messengerToNameServer.sendTag(Tags.REQUEST_CATEGORY_HELPER);
-            messengerToNameServer.sendString(category);
-            ServerInfo result = messengerToNameServer.receiveServerInfo();
-            socketToNameServer.close();
-            return result;
+            return connectionPool.exchange(nameServerInfo, new TcpConnectionPool.Exchange<HelperLease>() {
+                public HelperLease run(TcpMessenger messengerToNameServer) throws IOException {
+                    messengerToNameServer.sendTag(Tags.REQUEST_CATEGORY_HELPER);
+                    messengerToNameServer.sendString(category);
+                    ServerInfo helper = messengerToNameServer.receiveServerInfo();
+                    return new HelperLease(helper, messengerToNameServer.receiveInt());
+                }
+            });
         }
         catch (IOException e) {
-            return ServerInfo.createFakeServer();
+            return HelperLease.createFakeLease();
         }
     }
 
-    public static ArrayList<ServerInfo> borrowASetOfReducingHelpers(ServerInfo nameServerInfo) throws IOException {
+    public static ArrayList<HelperLease> borrowASetOfReducingHelpers(ServerInfo nameServerInfo) throws IOException {
         // Contact name server, and borrow that many helpers.
         try {
-            Socket socketToNameServer = new Socket(nameServerInfo.IPAddressString(), nameServerInfo.portNumber);
-            TcpMessenger messengerToNameServer = new TcpMessenger(socketToNameServer);
-            messengerToNameServer.sendTag(Tags.REQUEST_A_SET_OF_CATEGORY_HELPER);
-            ArrayList<ServerInfo> result = messengerToNameServer.receiveServerInfoArray();
-            socketToNameServer.close();
-            return result;
+            return connectionPool.exchange(nameServerInfo, new TcpConnectionPool.Exchange<ArrayList<HelperLease>>() {
+                public ArrayList<HelperLease> run(TcpMessenger messengerToNameServer) throws IOException {
+                    messengerToNameServer.sendTag(Tags.REQUEST_A_SET_OF_CATEGORY_HELPER);
+                    return receiveLeases(messengerToNameServer);
+                }
+            });
         } catch (IOException e) {
-            return new ArrayList<ServerInfo>();
+            return new ArrayList<HelperLease>();
+        }
+    }
+
+    /**
+     * Returns a borrowed helper to the name server. Does nothing for a helper that was not borrowed.
+     * @return False if the name server could not be reached. The lease then expires by itself.
+     */
+    public static boolean returnLease(final int leaseId, ServerInfo nameServerInfo) {
+        if (leaseId == HelperLease.NO_LEASE) return true;
+        try {
+            connectionPool.exchangeIdempotent(nameServerInfo, new TcpConnectionPool.Exchange<Integer>() {
+                public Integer run(TcpMessenger messengerToNameServer) throws IOException {
+                    messengerToNameServer.sendTag(Tags.REQUEST_HELPER_RETURN);
+                    messengerToNameServer.sendInt(leaseId);
+                    return messengerToNameServer.receiveTag();
+                }
+            });
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static ArrayList<HelperLease> receiveLeases(TcpMessenger messengerToNameServer) throws IOException {
+        ArrayList<ServerInfo> helpers = messengerToNameServer.receiveServerInfoArray();
+        ArrayList<HelperLease> leases = new ArrayList<HelperLease>(helpers.size());
+        for (ServerInfo helper : helpers) {
+            leases.add(new HelperLease(helper, messengerToNameServer.receiveInt()));
         }
+        return leases;
     }
 
 
@@ -3,20 +3,25 @@
  * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
  */
 
+import me.yuhuan.collections.IndexedMinHeap;
 import me.yuhuan.collections.Pair;
 import me.yuhuan.io.TextFile;
 import me.yuhuan.net.Utilities;
+import me.yuhuan.net.core.Messenger;
+import me.yuhuan.net.core.NioMessenger;
+import me.yuhuan.net.core.NioServer;
 import me.yuhuan.net.core.ServerInfo;
-import me.yuhuan.net.core.TcpMessenger;
 import me.yuhuan.utilities.Console;
+import me.yuhuan.utilities.HashedTimerWheel;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Yuhuan Jiang on 11/24/14.
@@ -25,16 +30,55 @@ public class NameServer {
 
     // Configurations
     private static final int PORT_NUMBER = 0;
-    private static final int CHECK_INTERVAL = 3000;
+    private static final int CHECK_INTERVAL = 500;
+    private static final int WHEEL_SIZE = 64;
     private static final long HELPER_ALIVE_THREASHOLD = 8000;
+    private static final int DIRECTORY_LEASE = 5000;
+    private static final long HELPER_LEASE_DURATION = 15000;
+    private static final long METRICS_INTERVAL = 10000;
 
     public static class MiniGoogleNameServerTable {
-        volatile ConcurrentHashMap<String, ArrayList<Pair<ServerInfo, Integer>>> _table;
+
+        /**
+         * The helpers of one category, in a min-heap keyed by load. The heap is also the lock of the category,
+         * so that borrowing and returning in different categories proceed in parallel.
+         */
+        static class CategoryHelpers {
+            final IndexedMinHeap<ServerInfo> _heap = new IndexedMinHeap<ServerInfo>();
+
+            /**
+             * Lowest load in the category, or Integer.MAX_VALUE if it has no helpers. Readable without the lock.
+             */
+            volatile int _lowestLoad = Integer.MAX_VALUE;
+
+            volatile int _size = 0;
+
+            /**
+             * Must be called, with the lock held, after each change to the heap.
+             */
+            void updateSummary() {
+                _lowestLoad = _heap.isEmpty() ? Integer.MAX_VALUE : _heap.peekKey();
+                _size = _heap.size();
+            }
+        }
+
+        volatile ConcurrentHashMap<String, CategoryHelpers> _table;
+
+        /**
+         * The category of each helper.
+         */
+        ConcurrentHashMap<ServerInfo, String> _categoryOf;
+
+        /**
+         * Bumped whenever a helper joins or leaves, so that cached copies of the table can tell they are stale.
+         */
+        volatile int _version;
 
         public MiniGoogleNameServerTable(ArrayList<String> keys) {
-            _table = new ConcurrentHashMap<String, ArrayList<Pair<ServerInfo, Integer>>>();
+            _table = new ConcurrentHashMap<String, CategoryHelpers>();
+            _categoryOf = new ConcurrentHashMap<ServerInfo, String>();
             for (String key : keys) {
-                _table.put(key, new ArrayList<Pair<ServerInfo, Integer>>());
+                _table.put(key, new CategoryHelpers());
             }
         }
 
@@ -47,8 +91,8 @@ public class NameServer {
         private String getNextCategory() {
             int minNumHelpers = Integer.MAX_VALUE;
             String categoryThatHasMinNumHelpers = "";
-            for (Map.Entry<String, ArrayList<Pair<ServerInfo, Integer>>> entry : _table.entrySet()) {
-                int curNumHelpers = entry.getValue().size();
+            for (Map.Entry<String, CategoryHelpers> entry : _table.entrySet()) {
+                int curNumHelpers = entry.getValue()._size;
                 if (curNumHelpers < minNumHelpers) {
                     minNumHelpers = curNumHelpers;
                     categoryThatHasMinNumHelpers = entry.getKey();
@@ -57,120 +101,122 @@ public class NameServer {
             return categoryThatHasMinNumHelpers;
         }
 
+        /**
+         * Registrations are rare, and are serialized so that concurrent helpers spread over the categories.
+         */
         public synchronized String addHelper(ServerInfo serverInfo) {
             String categoryToAddFor = getNextCategory();
 
             // A server to be added should be a server that is just launched, with 0 threads running.
-            _table.get(categoryToAddFor).add(new Pair<ServerInfo, Integer>(serverInfo, 0));
-            return categoryToAddFor;
-        }
-
-        //region Server Load Managing
-
-        private synchronized void increaseLoadOn(ServerInfo serverInfo) {
-            for (Map.Entry<String, ArrayList<Pair<ServerInfo, Integer>>> entry : _table.entrySet()) {
-                for (Pair<ServerInfo, Integer> pair : entry.getValue()) {
-                    if (pair.item1.equals(serverInfo)) {
-                        pair.item2++;
-                    }
-                }
-            }
-        }
-
-        private synchronized void increaseLoadOn(ServerInfo serverInfo, String category) {
-            for (Pair<ServerInfo, Integer> pair : _table.get(category)) {
-                if (pair.item1.equals(serverInfo)) {
-                    pair.item2++;
-                }
-            }
-        }
-
-        private synchronized void decreaseLoadOn(ServerInfo serverInfo) {
-            for (Map.Entry<String, ArrayList<Pair<ServerInfo, Integer>>> entry : _table.entrySet()) {
-                for (Pair<ServerInfo, Integer> pair : entry.getValue()) {
-                    if (pair.item1.equals(serverInfo)) {
-                        pair.item2--;
-                    }
-                }
-            }
-        }
-
-        private synchronized void decreaseLoadOn(ServerInfo serverInfo, String category) {
-            for (Pair<ServerInfo, Integer> pair : _table.get(category)) {
-                if (pair.item1.equals(serverInfo)) {
-                    pair.item2--;
-                }
+            CategoryHelpers helpers = _table.get(categoryToAddFor);
+            synchronized (helpers) {
+                helpers._heap.add(serverInfo, 0);
+                helpers.updateSummary();
             }
+            _categoryOf.put(serverInfo, categoryToAddFor);
+            _version++;
+            return categoryToAddFor;
         }
 
-        //endregion
-
         /**
          * Gets a server that is the least busy.
+         * Looks at the lowest load of every category without locking, then borrows from the best one.
          */
-        public synchronized ServerInfo borrowHelper() {
-            int lowestLoad = Integer.MAX_VALUE;
-            ServerInfo mostIdle = null;
-            for (Map.Entry<String, ArrayList<Pair<ServerInfo, Integer>>> entry : _table.entrySet()) {
-                for (Pair<ServerInfo, Integer> pair : entry.getValue()) {
-                    ServerInfo serverInfo = pair.item1;
-                    int load = pair.item2;
+        public ServerInfo borrowHelper() {
+            while (true) {
+                int lowestLoad = Integer.MAX_VALUE;
+                String bestCategory = null;
+                for (Map.Entry<String, CategoryHelpers> entry : _table.entrySet()) {
+                    int load = entry.getValue()._lowestLoad;
                     if (load < lowestLoad) {
                         lowestLoad = load;
-                        mostIdle = serverInfo;
+                        bestCategory = entry.getKey();
                     }
                 }
+                if (bestCategory == null) return ServerInfo.createFakeServer();
+
+                // The category may have lost its last helper in the meantime; if so, look again.
+                ServerInfo mostIdle = borrowHelper(bestCategory);
+                if (!mostIdle.equals(ServerInfo.createFakeServer())) return mostIdle;
             }
-            increaseLoadOn(mostIdle);
-            return mostIdle;
         }
 
-        public synchronized void returnHelper(ServerInfo serverInfo) {
-            decreaseLoadOn(serverInfo);
+        public void returnHelper(ServerInfo serverInfo) {
+            String category = _categoryOf.get(serverInfo);
+            if (category != null) returnHelper(serverInfo, category);
         }
 
         /**
          * Gets a server in a category that is the least busy.
          *
          * @param category A category to search a server for.
-         * @return A server in the specified category that is the least busy.
+         * @return A server in the specified category that is the least busy, or a fake server if the category
+         * has no helpers.
          */
-        public synchronized ServerInfo borrowHelper(String category) {
-            int lowestLoad = Integer.MAX_VALUE;
-            ServerInfo mostIdle = _table.get(category).get(0).item1;
-            for (Pair<ServerInfo, Integer> pair : _table.get(category)) {
-                ServerInfo serverInfo = pair.item1;
-                int load = pair.item2;
-                if (load < lowestLoad) {
-                    lowestLoad = load;
-                    mostIdle = serverInfo;
-                }
+        public ServerInfo borrowHelper(String category) {
+            CategoryHelpers helpers = _table.get(category);
+            if (helpers == null) return ServerInfo.createFakeServer();
+            synchronized (helpers) {
+                ServerInfo mostIdle = helpers._heap.peek();
+                if (mostIdle == null) return ServerInfo.createFakeServer();
+                helpers._heap.addToKey(mostIdle, 1);
+                helpers.updateSummary();
+                return mostIdle;
             }
-            increaseLoadOn(mostIdle, category);
-            return mostIdle;
         }
 
-        public synchronized void returnHelper(ServerInfo serverInfo, String category) {
-            decreaseLoadOn(serverInfo, category);
+        public void returnHelper(ServerInfo serverInfo, String category) {
+            CategoryHelpers helpers = _table.get(category);
+            if (helpers == null) return;
+            synchronized (helpers) {
+                // A load never goes below zero, even if a helper returns itself more often than it was borrowed.
+                if (helpers._heap.contains(serverInfo) && helpers._heap.getKey(serverInfo) > 0) {
+                    helpers._heap.addToKey(serverInfo, -1);
+                    helpers.updateSummary();
+                }
+            }
         }
 
         public synchronized void removeHelper(ServerInfo serverInfo) {
-            for (Map.Entry<String, ArrayList<Pair<ServerInfo, Integer>>> entry : _table.entrySet()) {
-                ArrayList<Pair<ServerInfo, Integer>> list = entry.getValue();
-                Pair<ServerInfo, Integer> toRemove = null;
-                for (Pair<ServerInfo, Integer> pair : list) {
-                    if (pair.item1.equals(serverInfo)) toRemove = pair;
+            String category = _categoryOf.remove(serverInfo);
+            if (category == null) return;
+            CategoryHelpers helpers = _table.get(category);
+            synchronized (helpers) {
+                helpers._heap.remove(serverInfo);
+                helpers.updateSummary();
+            }
+            _version++;
+        }
+
+        public int getVersion() {
+            return _version;
+        }
+
+        /**
+         * Copies the helpers of every category, with their loads.
+         */
+        public LinkedHashMap<String, ArrayList<Pair<ServerInfo, Integer>>> getDirectory() {
+            LinkedHashMap<String, ArrayList<Pair<ServerInfo, Integer>>> directory = new LinkedHashMap<String, ArrayList<Pair<ServerInfo, Integer>>>();
+            for (Map.Entry<String, CategoryHelpers> entry : _table.entrySet()) {
+                CategoryHelpers helpers = entry.getValue();
+                synchronized (helpers) {
+                    directory.put(entry.getKey(), helpers._heap.toList());
                 }
-                if (toRemove != null) list.remove(toRemove);
             }
+            return directory;
         }
 
         @Override
-        public synchronized String toString() {
+        public String toString() {
             StringBuilder builder = new StringBuilder();
-            for (Map.Entry<String, ArrayList<Pair<ServerInfo, Integer>>> entry : _table.entrySet()) {
+            for (Map.Entry<String, CategoryHelpers> entry : _table.entrySet()) {
                 builder.append(entry.getKey() + ":\t");
-                for (Pair<ServerInfo, Integer> pair : entry.getValue()) {
+                CategoryHelpers helpers = entry.getValue();
+                ArrayList<Pair<ServerInfo, Integer>> pairs;
+                synchronized (helpers) {
+                    pairs = helpers._heap.toList();
+                }
+                for (Pair<ServerInfo, Integer> pair : pairs) {
                     builder.append(pair.toString() + "\t|| ");
                 }
                 builder.append("\n");
@@ -179,81 +225,310 @@ public class NameServer {
         }
     }
 
+    /**
+     * Gets told when a helper stops sending heartbeats.
+     */
+    public interface HelperDeathListener {
+        void helperDied(ServerInfo serverInfo);
+    }
+
+    /**
+     * Tracks the liveliness of helpers.
+     * A heartbeat only stores a timestamp, without locking. Each helper is also scheduled on a timer wheel at the
+     * time it would be considered dead; when that time comes, a helper that has sent heartbeats in the meantime is
+     * simply rescheduled, and one that has not is reported dead. Expiring therefore only touches the helpers
+     * whose deadlines come up, instead of the whole table.
+     */
     public static class MiniGoogleServerTracker {
-        volatile ConcurrentHashMap<ServerInfo, Long> _table;
 
-        public MiniGoogleServerTracker() {
-            _table = new ConcurrentHashMap<ServerInfo, Long>();
+        /**
+         * The registration of a helper. A helper that is removed and registered again gets a new one, so that
+         * timeouts left on the wheel by the old registration are recognized and dropped.
+         */
+        static class TrackedHelper {
+            final ServerInfo serverInfo;
+            final AtomicLong lastTimestamp;
+
+            TrackedHelper(ServerInfo serverInfo, long timestamp) {
+                this.serverInfo = serverInfo;
+                this.lastTimestamp = new AtomicLong(timestamp);
+            }
+        }
+
+        volatile ConcurrentHashMap<ServerInfo, TrackedHelper> _table;
+        HashedTimerWheel<TrackedHelper> _wheel;
+        HelperDeathListener _listener;
+
+        public MiniGoogleServerTracker(HelperDeathListener listener) {
+            _table = new ConcurrentHashMap<ServerInfo, TrackedHelper>();
+            _wheel = new HashedTimerWheel<TrackedHelper>(CHECK_INTERVAL, WHEEL_SIZE, getCurrentTime());
+            _listener = listener;
         }
 
         private long getCurrentTime() {
-            Date date = new Date();
-            return date.getTime();
+            return System.currentTimeMillis();
         }
 
-        public synchronized void add(ServerInfo serverInfo) {
-            if (!_table.containsKey(serverInfo)) _table.put(serverInfo, getCurrentTime());
+        public void add(ServerInfo serverInfo) {
+            long now = getCurrentTime();
+            TrackedHelper helper = new TrackedHelper(serverInfo, now);
+            if (_table.putIfAbsent(serverInfo, helper) == null) {
+                _wheel.schedule(helper, now + HELPER_ALIVE_THREASHOLD);
+            }
         }
 
-        public synchronized void remove(ServerInfo serverInfo) {
-            if (_table.containsKey(serverInfo)) _table.remove(serverInfo);
+        public void remove(ServerInfo serverInfo) {
+            _table.remove(serverInfo);
         }
 
-        public synchronized void retain(ServerInfo serverInfo) {
-            if (_table.containsKey(serverInfo)) _table.put(serverInfo, getCurrentTime());
+        /**
+         * Records a heartbeat from a helper.
+         */
+        public void retain(ServerInfo serverInfo) {
+            TrackedHelper helper = _table.get(serverInfo);
+            if (helper != null) helper.lastTimestamp.set(getCurrentTime());
         }
 
-        public synchronized boolean isDead(ServerInfo serverInfo) {
-            if (_table.containsKey(serverInfo)) {
-                long lastTimestamp = _table.get(serverInfo);
-                long currentTimestamp = getCurrentTime();
-                return (currentTimestamp - lastTimestamp > HELPER_ALIVE_THREASHOLD);
-            }
-            else return false;
+        public boolean isDead(ServerInfo serverInfo) {
+            TrackedHelper helper = _table.get(serverInfo);
+            return helper != null && getCurrentTime() - helper.lastTimestamp.get() > HELPER_ALIVE_THREASHOLD;
         }
 
-        public synchronized ArrayList<ServerInfo> getDeadServers() {
-            ArrayList<ServerInfo> result = new ArrayList<ServerInfo>();
-            for (Map.Entry<ServerInfo, Long> pair : _table.entrySet()) {
-                ServerInfo curServer = pair.getKey();
-                if (isDead(curServer)) result.add(curServer);
+        /**
+         * Advances the timer wheel to now, and reports each helper whose heartbeats stopped to the listener.
+         * @return Number of helpers found dead.
+         */
+        public int expire() {
+            long now = getCurrentTime();
+            ArrayList<TrackedHelper> due = new ArrayList<TrackedHelper>();
+            _wheel.advance(now, due);
+
+            int numDead = 0;
+            for (TrackedHelper helper : due) {
+                // Drop timeouts of helpers that were removed, or removed and registered again.
+                if (_table.get(helper.serverInfo) != helper) continue;
+
+                long deadline = helper.lastTimestamp.get() + HELPER_ALIVE_THREASHOLD;
+                if (deadline > now) {
+                    _wheel.schedule(helper, deadline);
+                }
+                else if (_table.remove(helper.serverInfo, helper)) {
+                    numDead++;
+                    _listener.helperDied(helper.serverInfo);
+                }
             }
-            return result;
+            return numDead;
         }
 
         @Override
         public String toString() {
             StringBuilder builder = new StringBuilder();
-            for (Map.Entry<ServerInfo, Long> pair : _table.entrySet()) {
+            for (Map.Entry<ServerInfo, TrackedHelper> pair : _table.entrySet()) {
                 builder.append(pair.getKey());
                 builder.append(" : ");
-                builder.append(pair.getValue());
+                builder.append(pair.getValue().lastTimestamp.get());
                 builder.append("\n");
             }
             return builder.toString();
         }
     }
 
+    /**
+     * Keeps the leases under which helpers are borrowed. Each borrow adds one to the load of a helper in the
+     * table; the lease takes it off again exactly once, when the lease is returned, expires, or its helper dies.
+     * A lease is renewed by the heartbeats of the helper working under it, so a lease only expires if its job was
+     * never started, or its helper stopped. Expiry uses a timer wheel, like the server tracker.
+     */
+    public static class MiniGoogleLeaseTable {
+
+        static class Lease {
+            final int id;
+            final ServerInfo serverInfo;
+            final AtomicLong expirationTime;
+
+            Lease(int id, ServerInfo serverInfo, long expirationTime) {
+                this.id = id;
+                this.serverInfo = serverInfo;
+                this.expirationTime = new AtomicLong(expirationTime);
+            }
+        }
+
+        MiniGoogleNameServerTable _helperTable;
+        ConcurrentHashMap<Integer, Lease> _leases;
+        HashedTimerWheel<Lease> _wheel;
+        AtomicInteger _lastLeaseId;
+
+        AtomicLong _numGranted;
+        AtomicLong _numReturned;
+        AtomicLong _numRenewed;
+        AtomicLong _numExpired;
+        AtomicLong _numRevoked;
+
+        public MiniGoogleLeaseTable(MiniGoogleNameServerTable helperTable) {
+            _helperTable = helperTable;
+            _leases = new ConcurrentHashMap<Integer, Lease>();
+            _wheel = new HashedTimerWheel<Lease>(CHECK_INTERVAL, WHEEL_SIZE, getCurrentTime());
+            _lastLeaseId = new AtomicInteger(HelperLease.NO_LEASE);
+            _numGranted = new AtomicLong();
+            _numReturned = new AtomicLong();
+            _numRenewed = new AtomicLong();
+            _numExpired = new AtomicLong();
+            _numRevoked = new AtomicLong();
+        }
+
+        private long getCurrentTime() {
+            return System.currentTimeMillis();
+        }
+
+        /**
+         * Puts a helper just borrowed from the table under a new lease.
+         * @param serverInfo The helper, or a fake server if none could be borrowed.
+         * @return The lease, or a fake lease for a fake server.
+         */
+        public HelperLease grant(ServerInfo serverInfo) {
+            if (serverInfo.equals(ServerInfo.createFakeServer())) return HelperLease.createFakeLease();
+
+            int id = _lastLeaseId.incrementAndGet();
+            if (id == HelperLease.NO_LEASE) id = _lastLeaseId.incrementAndGet();
+            long expirationTime = getCurrentTime() + HELPER_LEASE_DURATION;
+            Lease lease = new Lease(id, serverInfo, expirationTime);
+            _leases.put(id, lease);
+            _wheel.schedule(lease, expirationTime);
+            _numGranted.incrementAndGet();
+            return new HelperLease(serverInfo, id);
+        }
+
+        /**
+         * Ends a lease, and takes its load off the helper.
+         * @return False if the lease had already ended, e.g. expired.
+         */
+        public boolean release(int leaseId) {
+            Lease lease = _leases.remove(leaseId);
+            if (lease == null) return false;
+            _helperTable.returnHelper(lease.serverInfo);
+            _numReturned.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Extends a lease by another lease duration from now.
+         * @return False if the lease had already ended.
+         */
+        public boolean renew(int leaseId) {
+            Lease lease = _leases.get(leaseId);
+            if (lease == null) return false;
+            lease.expirationTime.set(getCurrentTime() + HELPER_LEASE_DURATION);
+            _numRenewed.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Ends every lease of a helper that is gone. Its loads go with it, so they are not taken off the table.
+         */
+        public void revokeAll(ServerInfo serverInfo) {
+            for (Lease lease : _leases.values()) {
+                if (lease.serverInfo.equals(serverInfo) && _leases.remove(lease.id, lease)) {
+                    _numRevoked.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Advances the timer wheel to now, and ends every lease that was neither returned nor renewed in time.
+         * @return Number of leases expired.
+         */
+        public int expire() {
+            long now = getCurrentTime();
+            ArrayList<Lease> due = new ArrayList<Lease>();
+            _wheel.advance(now, due);
+
+            int numExpired = 0;
+            for (Lease lease : due) {
+                // Drop timeouts of leases that have ended.
+                if (_leases.get(lease.id) != lease) continue;
+
+                long expirationTime = lease.expirationTime.get();
+                if (expirationTime > now) {
+                    _wheel.schedule(lease, expirationTime);
+                }
+                else if (_leases.remove(lease.id, lease)) {
+                    _helperTable.returnHelper(lease.serverInfo);
+                    _numExpired.incrementAndGet();
+                    numExpired++;
+                    Console.writeLine("Lease " + lease.id + " on helper " + lease.serverInfo + " expired. ");
+                }
+            }
+            return numExpired;
+        }
+
+        public int getNumActiveLeases() {
+            return _leases.size();
+        }
+
+        public String getMetrics() {
+            return "Leases: " + getNumActiveLeases() + " active, " +
+                    _numGranted.get() + " granted, " +
+                    _numReturned.get() + " returned, " +
+                    _numRenewed.get() + " renewed, " +
+                    _numExpired.get() + " expired, " +
+                    _numRevoked.get() + " revoked. ";
+        }
+    }
+
     static MiniGoogleNameServerTable _table;
     static MiniGoogleServerTracker _serverTracker;
+    static MiniGoogleLeaseTable _leaseTable;
+    static NioServer _server;
+
+    /**
+     * Connections of masters that cache the helper directory, and are told whenever it changes.
+     * Only touched on the selector thread.
+     */
+    static HashSet<NioMessenger> _directorySubscribers = new HashSet<NioMessenger>();
 
+    /**
+     * Starts the name server.
+     * @param args Optionally "split" followed by categories to split, to relieve hot categories before indexing.
+     */
     public static void main(String[] args) throws IOException {
 
+        // Publish the partitioner for every other process to use, splitting hot categories if asked to.
+        Partitioner partitioner = MiniGoogleUtilities.getPartitioner();
+        if (args.length > 1 && args[0].equals("split") && partitioner instanceof ConsistentHashPartitioner) {
+            for (int i = 1; i < args.length; i++) {
+                String newCategory = ((ConsistentHashPartitioner)partitioner).splitCategory(args[i]);
+                Console.writeLine("Category " + args[i] + " is split, the new category is " + newCategory);
+            }
+        }
+        MiniGoogleUtilities.savePartitioner(partitioner);
+
         // Generate a categories
         ArrayList<String> categories = MiniGoogleUtilities.generateCategories();
 
         // Create the table with the categories as keys, and value being empty.
         _table = new MiniGoogleNameServerTable(categories);
+        _leaseTable = new MiniGoogleLeaseTable(_table);
+
+        // Create a server tracker that tracks the liveliness of each helper, and takes dead ones off the table.
+        _serverTracker = new MiniGoogleServerTracker(new HelperDeathListener() {
+            public void helperDied(ServerInfo serverInfo) {
+                _table.removeHelper(serverInfo);
+                _leaseTable.revokeAll(serverInfo);
+                publishDirectoryChange();
+                Console.writeLine("Helper on " + serverInfo + " is dead and removed. Table: ");
+                Console.writeLine(_table.toString());
+            }
+        });
 
-        // Create a server tracker that tracks the liveliness of each helper.
-        _serverTracker = new MiniGoogleServerTracker();
-
-        // A socket that listens to incoming requests on a system-allocated port number.
-        ServerSocket serverSocket = new ServerSocket(PORT_NUMBER);
+        // A server that listens to incoming requests on a system-allocated port number. All requests are served
+        // by its one selector thread: the handlers only touch in-memory tables and never block, so no thread is
+        // started per connection or per message.
+        NioServer server = new NioServer(PORT_NUMBER, new RequestHandler());
+        _server = server;
 
         // Figure out the IP address and port number of this name server.
         String myIpAddress = Utilities.getMyIpAddress();
-        int myPortNumber = Utilities.getMyPortNumber(serverSocket);
+        int myPortNumber = server.getPortNumber();
 
         Console.writeLine("A name server is now running on " + myIpAddress + ", at port " + myPortNumber + "\n");
 
@@ -263,91 +538,103 @@ public class NameServer {
         (new HelperAvailabilityCheckingWorker()).start();
 
         try {
-            while (true) {
-                // Get the client's TCP socket.
-                Socket clientSocket = serverSocket.accept();
-                TcpMessenger messenger = new TcpMessenger(clientSocket);
-
-
-                // Read the tag received. The tag should be one of the following:
-                //     Tags.REQUEST_HELPER_REGISTERING
-                //     Tags.REQUEST_INDEXING
-                //     Tags.REQUEST_SEARCHING
-
-                int tag = messenger.receiveTag();
-                if (tag == Tags.REQUEST_HELPER_REGISTERING) {
-                    // Print who wants to register
-                    Console.writeLine("Helper " + clientSocket + " wants to register. ");
-
-                    // Start registration worker
-                    (new RegistrationWorker(clientSocket)).start();
-                } else if (tag == Tags.REQUEST_CATEGORY_HELPER) {
-                    Console.writeLine("Client " + clientSocket + " requests a helper from a certain category. ");
-                    (new CategoriedHelperLookupWorker(clientSocket)).start();
-                } else if (tag == Tags.REQUEST_A_SET_OF_CATEGORY_HELPER) {
-                    Console.writeLine("Client " + clientSocket + " requests a set of categoried helpers. ");
-                    (new CategoriedHelperSetLookupWorker(clientSocket)).start();
-                } else if (tag == Tags.REQUEST_CATEGORYLESS_HELPER) {
-                    Console.writeLine("Client " + clientSocket + " requests a helper from any category. ");
-                    (new CategorylessHelperLookupWorker(clientSocket)).start();
-                } else if (tag == Tags.REQUEST_HELPER_RETURN) {
-                    Console.writeLine("Client " + clientSocket + " wants to return a helper. ");
-                    (new HelperReturnWorker(clientSocket)).start();
-                }
-                else if (tag == Tags.MESSAGE_HELPER_ALIVE) {
-                    (new HelperAvailabilityUpdatingWorker(clientSocket)).start();
-                }
-            }
+            server.run();
         } finally {
-            serverSocket.close();
+            server.close();
         }
     }
 
-    static class HelperAvailabilityUpdatingWorker extends Thread {
-        Socket _helperSocket;
+    /**
+     * Decodes the requests arriving on the name server's connections, and dispatches each to its handler.
+     */
+    static class RequestHandler implements NioServer.Handler {
+
+        public boolean handle(NioMessenger messenger) throws IOException {
+            // Read the tag received. The tag should be one of the following:
+            //     Tags.REQUEST_HELPER_REGISTERING
+            //     Tags.REQUEST_CATEGORY_HELPER
+            //     Tags.REQUEST_A_SET_OF_CATEGORY_HELPER
+            //     Tags.REQUEST_CATEGORYLESS_HELPER
+            //     Tags.REQUEST_HELPER_RETURN
+            //     Tags.MESSAGE_HELPER_ALIVE
+            //     Tags.REQUEST_HELPER_DIRECTORY
+            //     Tags.REQUEST_DIRECTORY_SUBSCRIPTION
+            int tag = messenger.receiveTag();
+            if (tag == Tags.REQUEST_DIRECTORY_SUBSCRIPTION) {
+                handleDirectorySubscription(messenger);
+                return true;
+            }
+            return handleRequest(tag, messenger);
+        }
 
-        public HelperAvailabilityUpdatingWorker(Socket helperSocket) {
-            _helperSocket = helperSocket;
+        public void closed(NioMessenger messenger) {
+            _directorySubscribers.remove(messenger);
+            Console.writeLine("Connection to client " + messenger + " is closed. ");
         }
+    }
 
-        public void run() {
-            try {
-                TcpMessenger messenger = new TcpMessenger(_helperSocket);
-                ServerInfo serverInfoToUpdate = messenger.receiveServerInfo();
+    /**
+     * Handles one request whose tag has been read.
+     * @return False if the tag is unknown, and the connection should be closed.
+     */
+    static boolean handleRequest(int tag, Messenger messenger) throws IOException {
+        if (tag == Tags.REQUEST_HELPER_REGISTERING) {
+            handleRegistration(messenger);
+        } else if (tag == Tags.REQUEST_CATEGORY_HELPER) {
+            handleCategoriedHelperLookup(messenger);
+        } else if (tag == Tags.REQUEST_A_SET_OF_CATEGORY_HELPER) {
+            handleCategoriedHelperSetLookup(messenger);
+        } else if (tag == Tags.REQUEST_CATEGORYLESS_HELPER) {
+            handleCategorylessHelperLookup(messenger);
+        } else if (tag == Tags.REQUEST_HELPER_RETURN) {
+            handleHelperReturn(messenger);
+        } else if (tag == Tags.MESSAGE_HELPER_ALIVE) {
+            handleHelperAvailabilityUpdate(messenger);
+        } else if (tag == Tags.REQUEST_HELPER_DIRECTORY) {
+            handleDirectoryLookup(messenger);
+        } else {
+            Console.writeLine("Unknown tag " + tag + " from " + messenger + ". ");
+            return false;
+        }
+        return true;
+    }
 
-                _serverTracker.retain(serverInfoToUpdate);
+    /**
+     * Records a heartbeat. The heartbeat carries the leases of the jobs the helper is working on, which are renewed.
+     */
+    static void handleHelperAvailabilityUpdate(Messenger messenger) throws IOException {
+        ServerInfo serverInfoToUpdate = messenger.receiveServerInfo();
+        int numLeases = messenger.receiveInt();
+        int[] leaseIds = new int[numLeases];
+        for (int i = 0; i < numLeases; i++) {
+            leaseIds[i] = messenger.receiveInt();
+        }
 
-            } catch (IOException e) {
-                Console.writeLine("IO error in helper updating worker. ");
-            } finally {
-                try {
-                    _helperSocket.close();
-                    //Console.writeLine("Socket to client " + _helperSocket.getInetAddress().getHostAddress() + ":" + _helperSocket.getPort() + " is closed. ");
-                } catch (IOException e) {
-                    //Console.writeLine("Socket to client " + _helperSocket.getInetAddress().getHostAddress() + ":" + _helperSocket.getPort() + " failed to close. ");
-                }
-            }
+        _serverTracker.retain(serverInfoToUpdate);
+        for (int leaseId : leaseIds) {
+            _leaseTable.renew(leaseId);
         }
+        messenger.sendTag(Tags.MESSAGE_ACKNOWLEDGED);
     }
 
+    /**
+     * Turns the timer wheels of the server tracker and the lease table once per tick. Dead helpers are reported
+     * by the tracker itself. Also prints the lease metrics every now and then.
+     */
     static class HelperAvailabilityCheckingWorker extends Thread {
 
         public void run() {
 
+            long lastMetricsTime = System.currentTimeMillis();
             while (true) {
 
-                ArrayList<ServerInfo> deadHelpers = _serverTracker.getDeadServers();
-                for (ServerInfo serverInfo : deadHelpers) {
-                    _table.removeHelper(serverInfo);
-                    _serverTracker.remove(serverInfo);
-                }
-
-                Console.writeLine("\n Table: ");
-                Console.writeLine(_table.toString());
-
-                //Console.writeLine("\n Tracker: ");
-                //Console.writeLine(_serverTracker.toString());
+                _serverTracker.expire();
+                _leaseTable.expire();
 
+                if (System.currentTimeMillis() - lastMetricsTime >= METRICS_INTERVAL) {
+                    Console.writeLine(_leaseTable.getMetrics());
+                    lastMetricsTime = System.currentTimeMillis();
+                }
 
                 try {
                     Thread.sleep(CHECK_INTERVAL);
@@ -360,172 +647,140 @@ public class NameServer {
     }
 
     /**
-     * A worker that registers a helper in the table of name server.
+     * Registers a helper in the table of name server.
      */
-    private static class RegistrationWorker extends Thread {
-        Socket _clientSocket;
-
-        public RegistrationWorker(Socket clientSocket) {
-            _clientSocket = clientSocket;
-        }
-
-        public void run() {
-            try {
-                TcpMessenger messenger = new TcpMessenger(_clientSocket);
-
-                // Obtain the helper to be registered, and add it to the table and server tracker.
-                ServerInfo serverInfo = messenger.receiveServerInfo();
-                String categoryAssigned = _table.addHelper(serverInfo);
-                _serverTracker.add(serverInfo);
-
-                // Inform the helper which category it is responsible for.
-                messenger.sendString(categoryAssigned);
-
-                // Print the registration on terminal.
-                Console.writeLine(_clientSocket.getInetAddress().getHostAddress() + " at " + _clientSocket.getPort() + " is registered and assigned category " + categoryAssigned);
-            } catch (IOException e) {
-                Console.writeLine("IO error in registration worker. ");
-            } finally {
-                try {
-                    _clientSocket.close();
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " is closed. ");
-                } catch (IOException e) {
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " failed to close. ");
-                }
-            }
-        }
+    static void handleRegistration(Messenger messenger) throws IOException {
+        // Obtain the helper to be registered, and add it to the table and server tracker.
+        ServerInfo serverInfo = messenger.receiveServerInfo();
+        String categoryAssigned = _table.addHelper(serverInfo);
+        _serverTracker.add(serverInfo);
+
+        // Inform the helper which category it is responsible for.
+        messenger.sendString(categoryAssigned);
+        publishDirectoryChange();
+
+        // Print the registration on terminal.
+        Console.writeLine("Helper " + serverInfo + " is registered and assigned category " + categoryAssigned);
     }
 
-    private static class CategorylessHelperLookupWorker extends Thread {
-        Socket _clientSocket;
+    static void handleCategorylessHelperLookup(Messenger messenger) throws IOException {
+        // Obtain how many mapping helpers the requester wants.
+        int numHelpersReqested = messenger.receiveInt();
+        Console.writeLine("Client " + messenger + " requests " + numHelpersReqested + " helpers from any category. ");
 
-        public CategorylessHelperLookupWorker(Socket clientSocket) {
-            _clientSocket = clientSocket;
+        // Borrow that many helpers from the table.
+        ArrayList<HelperLease> leases = new ArrayList<HelperLease>();
+        for (int i = 0; i < numHelpersReqested; i++) {
+            leases.add(_leaseTable.grant(_table.borrowHelper()));
         }
 
-        public void run() {
-            try {
-                TcpMessenger messenger = new TcpMessenger(_clientSocket);
+        // Send these helpers to the requester.
+        sendLeases(leases, messenger);
+    }
 
-                // Obtain how many mapping helpers the requester wants.
-                int numHelpersReqested = messenger.receiveInt();
+    static void handleCategoriedHelperLookup(Messenger messenger) throws IOException {
+        // Obtain what category the requester wants.
+        String category = messenger.receiveString();
+        Console.writeLine("Client " + messenger + " requests a helper from category " + category + ". ");
 
-                // Borrow that many helpers from the table.
-                ArrayList<ServerInfo> helpers = new ArrayList<ServerInfo>();
-                for (int i = 0; i < numHelpersReqested; i++) {
-                    helpers.add(_table.borrowHelper());
-                }
+        // Borrow a helper from the table.
+        HelperLease lease = _leaseTable.grant(_table.borrowHelper(category));
 
-                // Send these helpers to the requester.
-                messenger.sendServerInfoArray(helpers);
-            } catch (IOException e) {
-                Console.writeLine("IO error in mapping helper lookup worker. ");
-            } finally {
-                try {
-                    _clientSocket.close();
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " is closed. ");
-                } catch (IOException e) {
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " failed to close. ");
-                }
-            }
-        }
+        // Send the helper and its lease to the requester.
+        messenger.sendServerInfo(lease.serverInfo);
+        messenger.sendInt(lease.leaseId);
     }
 
-    private static class CategoriedHelperLookupWorker extends Thread {
-        Socket _clientSocket;
+    static void handleCategoriedHelperSetLookup(Messenger messenger) throws IOException {
+        Console.writeLine("Client " + messenger + " requests a set of categoried helpers. ");
 
-        public CategoriedHelperLookupWorker(Socket clientSocket) {
-            _clientSocket = clientSocket;
+        // Borrow that many helpers from the table.
+        ArrayList<HelperLease> leases = new ArrayList<HelperLease>();
+        for (String category : MiniGoogleUtilities.generateCategories()) {
+            leases.add(_leaseTable.grant(_table.borrowHelper(category)));
         }
 
-        public void run() {
-            try {
-                TcpMessenger messenger = new TcpMessenger(_clientSocket);
-
-                // Obtain what category the requester wants.
-                String category = messenger.receiveString();
-
-                // Borrow that many helpers from the table.
-                ServerInfo helper = _table.borrowHelper(category);
-
-                // Send these helpers to the requester.
-                messenger.sendServerInfo(helper);
-            } catch (IOException e) {
-                Console.writeLine("IO error in one categoried helper lookup worker. ");
-            } finally {
-                try {
-                    _clientSocket.close();
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " is closed. ");
-                } catch (IOException e) {
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " failed to close. ");
-                }
-            }
-        }
+        // Send these helpers to the requester.
+        sendLeases(leases, messenger);
     }
 
-
-    private static class CategoriedHelperSetLookupWorker extends Thread {
-        Socket _clientSocket;
-
-        public CategoriedHelperSetLookupWorker(Socket clientSocket) {
-            _clientSocket = clientSocket;
+    /**
+     * Sends borrowed helpers: first the helpers, as an array, then the lease ID of each.
+     */
+    static void sendLeases(ArrayList<HelperLease> leases, Messenger messenger) throws IOException {
+        ArrayList<ServerInfo> helpers = new ArrayList<ServerInfo>(leases.size());
+        for (HelperLease lease : leases) {
+            helpers.add(lease.serverInfo);
         }
-
-        public void run() {
-            try {
-                TcpMessenger messenger = new TcpMessenger(_clientSocket);
-
-                // Borrow that many helpers from the table.
-                ArrayList<ServerInfo> helpers = new ArrayList<ServerInfo>();
-                for (String category : MiniGoogleUtilities.generateCategories()) {
-                    helpers.add(_table.borrowHelper(category));
-                }
-
-                // Send these helpers to the requester.
-                messenger.sendServerInfoArray(helpers);
-            } catch (IOException e) {
-                Console.writeLine("IO error in categoried helper set lookup worker. ");
-            } finally {
-                try {
-                    _clientSocket.close();
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " is closed. ");
-                } catch (IOException e) {
-                    Console.writeLine("Socket to client " + _clientSocket.getInetAddress().getHostAddress() + ":" + _clientSocket.getPort() + " failed to close. ");
-                }
-            }
+        messenger.sendServerInfoArray(helpers);
+        for (HelperLease lease : leases) {
+            messenger.sendInt(lease.leaseId);
         }
     }
 
-    static class HelperReturnWorker extends Thread {
-        Socket _requesterSocket;
+    static void handleHelperReturn(Messenger messenger) throws IOException {
+        int leaseId = messenger.receiveInt();
+        boolean didRelease = _leaseTable.release(leaseId);
+        messenger.sendTag(Tags.MESSAGE_ACKNOWLEDGED);
+        if (didRelease) Console.writeLine("Lease " + leaseId + " is returned.\n");
+        else Console.writeLine("Lease " + leaseId + " is returned, but has already ended.\n");
+    }
 
-        public HelperReturnWorker(Socket requesterSocket) {
-            _requesterSocket = requesterSocket;
+    /**
+     * Sends a copy of the whole table, so that a master can pick helpers itself instead of asking for each one.
+     * The reply is: the version of the table, the lease in milliseconds after which the copy must be fetched
+     * again, and for each category its name, number of helpers, and each helper with its load.
+     */
+    static void handleDirectoryLookup(Messenger messenger) throws IOException {
+        int version = _table.getVersion();
+        LinkedHashMap<String, ArrayList<Pair<ServerInfo, Integer>>> directory = _table.getDirectory();
+
+        messenger.sendInt(version);
+        messenger.sendInt(DIRECTORY_LEASE);
+        messenger.sendInt(directory.size());
+        for (Map.Entry<String, ArrayList<Pair<ServerInfo, Integer>>> entry : directory.entrySet()) {
+            messenger.sendString(entry.getKey());
+            messenger.sendInt(entry.getValue().size());
+            for (Pair<ServerInfo, Integer> helper : entry.getValue()) {
+                messenger.sendServerInfo(helper.item1);
+                messenger.sendInt(helper.item2);
+            }
         }
+    }
 
-        public void run() {
+    /**
+     * Turns a connection into a subscription: from now on, the name server sends Tags.MESSAGE_DIRECTORY_CHANGED
+     * and the new version of the table on it whenever a helper joins or leaves. The current version is sent
+     * right away.
+     */
+    static void handleDirectorySubscription(NioMessenger messenger) {
+        _directorySubscribers.add(messenger);
+        messenger.sendTag(Tags.MESSAGE_DIRECTORY_CHANGED);
+        messenger.sendInt(_table.getVersion());
+        Console.writeLine("Client " + messenger + " subscribes to the helper directory. ");
+    }
 
-            try {
-                Console.writeLine("Start helper returning");
-                TcpMessenger messenger = new TcpMessenger(_requesterSocket);
-                ServerInfo serverInfo = messenger.receiveServerInfo();
-                String category = messenger.receiveString();
-                _table.returnHelper(serverInfo, category);
-                Console.writeLine("Helper on " + serverInfo + " is returned.\n");
-            } catch (IOException e) {
-                Console.writeLine("IO error in helper returning worker. ");
-            } finally {
-                try {
-                    _requesterSocket.close();
-                    Console.writeLine("Socket to client " + _requesterSocket.getInetAddress().getHostAddress() + ":" + _requesterSocket.getPort() + " is closed. ");
-                } catch (IOException e) {
-                    Console.writeLine("Socket to client " + _requesterSocket.getInetAddress().getHostAddress() + ":" + _requesterSocket.getPort() + " failed to close. ");
+    /**
+     * Tells every subscriber that the table has changed. Can be called from any thread.
+     */
+    static void publishDirectoryChange() {
+        if (_server == null) return;
+        _server.execute(new Runnable() {
+            public void run() {
+                int version = _table.getVersion();
+                for (NioMessenger subscriber : new ArrayList<NioMessenger>(_directorySubscribers)) {
+                    subscriber.sendTag(Tags.MESSAGE_DIRECTORY_CHANGED);
+                    subscriber.sendInt(version);
+                    try {
+                        subscriber.flush();
+                    }
+                    catch (IOException e) {
+                        // The selector closes the connection when it notices.
+                        _directorySubscribers.remove(subscriber);
+                    }
                 }
             }
-
-
-        }
-
+        });
     }
 
 
@@ -0,0 +1,255 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.net.core.NioServer;
+import me.yuhuan.net.core.ServerInfo;
+import me.yuhuan.net.core.TcpConnectionPool;
+import me.yuhuan.net.core.TcpMessenger;
+import me.yuhuan.utilities.Console;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many borrow/return pairs per second the name server sustains, comparing:
+ * <ol>
+ *     <li> The old front door: a new socket per message on the client, a new thread per message on the server. </li>
+ *     <li> A thread per connection on the server, with clients on pooled persistent connections. </li>
+ *     <li> The selector front door, with clients on pooled persistent connections. </li>
+ * </ol>
+ * The first two differ in connection reuse, and the last two only in the server model. All serve requests with the
+ * same handlers, against a table of fake helpers.
+ * Usage: java NameServerBenchmark [numClients] [secondsPerRun] [numHelpers]
+ */
+public class NameServerBenchmark {
+
+    static final String LOCALHOST = "127.0.0.1";
+
+    public static void main(String[] args) throws Exception {
+        int numClients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int secondsPerRun = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int numHelpers = args.length > 2 ? Integer.parseInt(args[2]) : 270;
+
+        NameServer._table = new NameServer.MiniGoogleNameServerTable(MiniGoogleUtilities.generateCategories());
+        NameServer._serverTracker = new NameServer.MiniGoogleServerTracker(new NameServer.HelperDeathListener() {
+            public void helperDied(ServerInfo serverInfo) { }
+        });
+        NameServer._leaseTable = new NameServer.MiniGoogleLeaseTable(NameServer._table);
+        for (int i = 0; i < numHelpers; i++) {
+            ServerInfo helper = new ServerInfo("10.0." + (i / 250) + "." + (i % 250 + 1), 5000 + i);
+            NameServer._table.addHelper(helper);
+            NameServer._serverTracker.add(helper);
+        }
+
+        // The handlers log every request; keep that out of the measurement.
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            public void write(int b) { }
+            public void write(byte[] b, int off, int len) { }
+        }));
+
+        out.println("Clients: " + numClients + ", helpers: " + numHelpers + ", " + secondsPerRun + " s per run");
+
+        // Warm up all, then measure.
+        runThreadPerMessage(numClients, 1);
+        runThreadPerConnection(numClients, 1);
+        runSelector(numClients, 1);
+        double threadPerMessage = runThreadPerMessage(numClients, secondsPerRun);
+        out.println(String.format("%-53s %8.0f borrow/return pairs per second", "Thread per message, socket per message:", threadPerMessage));
+        double threadPerConnection = runThreadPerConnection(numClients, secondsPerRun);
+        out.println(String.format("%-53s %8.0f borrow/return pairs per second", "Thread per connection, pooled persistent connections:", threadPerConnection));
+        double selector = runSelector(numClients, secondsPerRun);
+        out.println(String.format("%-53s %8.0f borrow/return pairs per second", "Selector, pooled persistent connections:", selector));
+        out.println(String.format("Speedup from persistent connections: %.1fx", threadPerConnection / threadPerMessage));
+        out.println(String.format("Speedup from the selector:           %.1fx", selector / threadPerConnection));
+
+        System.setOut(out);
+        System.exit(0);
+    }
+
+    static double runThreadPerMessage(int numClients, int seconds) throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0, 1000);
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket clientSocket = serverSocket.accept();
+                        (new Thread() {
+                            public void run() {
+                                try {
+                                    TcpMessenger messenger = new TcpMessenger(clientSocket);
+                                    NameServer.handleRequest(messenger.receiveTag(), messenger);
+                                }
+                                catch (IOException e) { }
+                                finally {
+                                    try {
+                                        clientSocket.close();
+                                    }
+                                    catch (IOException e) { }
+                                }
+                            }
+                        }).start();
+                    }
+                }
+                catch (IOException e) { }
+            }
+        };
+        acceptor.start();
+
+        final ServerInfo nameServer = new ServerInfo(LOCALHOST, serverSocket.getLocalPort());
+        double result = measure(numClients, seconds, new BorrowReturnPair() {
+            public void run(final String category) throws IOException {
+                Socket socket = new Socket(nameServer.IPAddressString(), nameServer.portNumber);
+                TcpMessenger messenger = new TcpMessenger(socket);
+                messenger.sendTag(Tags.REQUEST_CATEGORY_HELPER);
+                messenger.sendString(category);
+                messenger.receiveServerInfo();
+                int leaseId = messenger.receiveInt();
+                socket.close();
+
+                socket = new Socket(nameServer.IPAddressString(), nameServer.portNumber);
+                messenger = new TcpMessenger(socket);
+                messenger.sendTag(Tags.REQUEST_HELPER_RETURN);
+                messenger.sendInt(leaseId);
+                messenger.receiveTag();
+                socket.close();
+            }
+        });
+
+        serverSocket.close();
+        return result;
+    }
+
+    static double runThreadPerConnection(int numClients, int seconds) throws Exception {
+        final ServerSocket serverSocket = new ServerSocket(0, 1000);
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket clientSocket = serverSocket.accept();
+                        (new Thread() {
+                            public void run() {
+                                try {
+                                    TcpMessenger messenger = new TcpMessenger(clientSocket, true);
+                                    while (NameServer.handleRequest(messenger.receiveTag(), messenger)) {
+                                        messenger.flush();
+                                    }
+                                }
+                                catch (IOException e) { }
+                                finally {
+                                    try {
+                                        clientSocket.close();
+                                    }
+                                    catch (IOException e) { }
+                                }
+                            }
+                        }).start();
+                    }
+                }
+                catch (IOException e) { }
+            }
+        };
+        acceptor.start();
+
+        ServerInfo nameServer = new ServerInfo(LOCALHOST, serverSocket.getLocalPort());
+        TcpConnectionPool pool = new TcpConnectionPool(numClients);
+        double result = measure(numClients, seconds, pooledPair(pool, nameServer));
+
+        pool.close();
+        serverSocket.close();
+        return result;
+    }
+
+    static double runSelector(int numClients, int seconds) throws Exception {
+        final NioServer server = new NioServer(0, new NameServer.RequestHandler());
+        Thread serverThread = new Thread() {
+            public void run() {
+                try {
+                    server.run();
+                }
+                catch (IOException e) { }
+            }
+        };
+        serverThread.start();
+
+        ServerInfo nameServer = new ServerInfo(LOCALHOST, server.getPortNumber());
+        TcpConnectionPool pool = new TcpConnectionPool(numClients);
+        double result = measure(numClients, seconds, pooledPair(pool, nameServer));
+
+        pool.close();
+        server.close();
+        return result;
+    }
+
+    /**
+     * A borrow/return pair over pooled persistent connections.
+     */
+    static BorrowReturnPair pooledPair(final TcpConnectionPool pool, final ServerInfo nameServer) {
+        return new BorrowReturnPair() {
+            public void run(final String category) throws IOException {
+                final int leaseId = pool.exchange(nameServer, new TcpConnectionPool.Exchange<Integer>() {
+                    public Integer run(TcpMessenger messenger) throws IOException {
+                        messenger.sendTag(Tags.REQUEST_CATEGORY_HELPER);
+                        messenger.sendString(category);
+                        messenger.receiveServerInfo();
+                        return messenger.receiveInt();
+                    }
+                });
+                pool.exchangeIdempotent(nameServer, new TcpConnectionPool.Exchange<Integer>() {
+                    public Integer run(TcpMessenger messenger) throws IOException {
+                        messenger.sendTag(Tags.REQUEST_HELPER_RETURN);
+                        messenger.sendInt(leaseId);
+                        return messenger.receiveTag();
+                    }
+                });
+            }
+        };
+    }
+
+    interface BorrowReturnPair {
+        void run(String category) throws IOException;
+    }
+
+    /**
+     * Runs borrow/return pairs from several client threads for a while.
+     * @return Pairs completed per second, over all clients.
+     */
+    static double measure(int numClients, int seconds, final BorrowReturnPair pair) throws InterruptedException {
+        final ArrayList<String> categories = MiniGoogleUtilities.generateCategories();
+        final AtomicLong numPairs = new AtomicLong();
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+
+        ArrayList<Thread> clients = new ArrayList<Thread>();
+        for (int i = 0; i < numClients; i++) {
+            final Random random = new Random(i);
+            Thread client = new Thread() {
+                public void run() {
+                    while (System.nanoTime() < deadline) {
+                        try {
+                            pair.run(categories.get(random.nextInt(categories.size())));
+                            numPairs.incrementAndGet();
+                        }
+                        catch (IOException e) {
+                            Console.writeLine("Benchmark client error: " + e.getMessage());
+                        }
+                    }
+                }
+            };
+            clients.add(client);
+            client.start();
+        }
+
+        long start = System.nanoTime();
+        for (Thread client : clients) client.join();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        return numPairs.get() / elapsedSeconds;
+    }
+}
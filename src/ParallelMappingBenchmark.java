@@ -0,0 +1,64 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.collections.TermCounter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Measures the time to count the words of one large segment, on one thread with Helper.mapping, and on all cores
+ * with Helper.mappingInParallel. Both must give the same counts.
+ * Usage: java ParallelMappingBenchmark [directory of segments]
+ * The segments are concatenated into one.
+ */
+public class ParallelMappingBenchmark {
+
+    static final int NUM_ROUNDS = 5;
+    static final int NUM_COPIES = 4;
+
+    public static void main(String[] args) throws IOException {
+        ArrayList<String[]> segments = args.length > 0 ? ShuffleBenchmark.readSegments(args[0]) : ShuffleBenchmark.generateSegments();
+
+        // Repeat the segments, so that the text splits into many ranges.
+        ArrayList<byte[]> parts = new ArrayList<byte[]>();
+        int size = 0;
+        for (int i = 0; i < NUM_COPIES; i++) {
+            for (String[] segment : segments) {
+                byte[] part = ShuffleBenchmark.toBytes(segment);
+                parts.add(part);
+                size += part.length;
+            }
+        }
+        ByteBuffer text = ByteBuffer.allocateDirect(size);
+        for (byte[] part : parts) text.put(part);
+        text.flip();
+
+        TermCounter serialCounts = Helper.mapping(text);
+        TermCounter parallelCounts = Helper.mappingInParallel(text);
+        if (serialCounts.size() != parallelCounts.size()) throw new IllegalStateException("The counts differ. ");
+        for (int entry = 0; entry < serialCounts.size(); entry++) {
+            if (parallelCounts.get(serialCounts.getTerm(entry)) != serialCounts.getCount(entry)) {
+                throw new IllegalStateException("The counts of " + serialCounts.getTerm(entry) + " differ. ");
+            }
+        }
+
+        System.out.println(String.format("%,d bytes of text, %d cores, best of %d rounds", size, Runtime.getRuntime().availableProcessors(), NUM_ROUNDS));
+        long serialTime = Long.MAX_VALUE;
+        long parallelTime = Long.MAX_VALUE;
+        for (int i = 0; i < NUM_ROUNDS; i++) {
+            long start = System.nanoTime();
+            Helper.mapping(text);
+            serialTime = Math.min(serialTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            Helper.mappingInParallel(text);
+            parallelTime = Math.min(parallelTime, System.nanoTime() - start);
+        }
+        System.out.println(String.format("One thread: %6.0f ms", serialTime / 1e6));
+        System.out.println(String.format("Parallel:   %6.0f ms (%.2fx)", parallelTime / 1e6, (double)serialTime / parallelTime));
+    }
+}
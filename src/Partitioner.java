@@ -0,0 +1,23 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import java.util.ArrayList;
+
+/**
+ * Splits the vocabulary into categories. Each category is indexed and searched by its own helpers, so every
+ * process in the system must use the same partitioner.
+ */
+public interface Partitioner {
+
+    /**
+     * Gets all categories.
+     */
+    ArrayList<String> getCategories();
+
+    /**
+     * Gets the category a word belongs to.
+     */
+    String getCategoryOf(String word);
+}
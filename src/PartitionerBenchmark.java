@@ -0,0 +1,138 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.io.Directory;
+import me.yuhuan.io.TextFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares how evenly partitioners spread the load of a skewed corpus over categories, i.e. over helpers.
+ * The load of a category is the number of word occurrences that fall into it, which is what its reducer merges
+ * and its searching helper serves.
+ * Usage: java PartitionerBenchmark [directory of text files]
+ * Without a directory, a synthetic corpus is used: Zipf-distributed words whose first letters follow English.
+ */
+public class PartitionerBenchmark {
+
+    static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+
+    /**
+     * How often English words start with each letter, in percent.
+     */
+    static final double[] FIRST_LETTER_FREQUENCIES = {
+            11.7, 4.4, 5.2, 3.2, 2.8, 4.0, 1.6, 4.2, 7.3, 0.51, 0.86, 2.4, 3.8,
+            2.3, 7.6, 4.3, 0.22, 2.8, 6.7, 16.0, 1.2, 0.82, 5.5, 0.045, 0.76, 0.045 };
+
+    static final int VOCABULARY_SIZE = 50000;
+    static final int NUM_TOKENS = 2000000;
+
+    public static void main(String[] args) throws IOException {
+        HashMap<String, Integer> counts = args.length > 0 ? countWords(args[0]) : generateCorpus();
+
+        report("First letter", new FirstLetterPartitioner(), counts);
+
+        ConsistentHashPartitioner hashing = ConsistentHashPartitioner.createDefault();
+        report("Consistent hashing", hashing, counts);
+
+        String hottest = hottestCategory(hashing, counts);
+        String newCategory = hashing.splitCategory(hottest);
+        report("Consistent hashing, " + hottest + " split into " + newCategory, hashing, counts);
+    }
+
+    static HashMap<String, Integer> countWords(String pathToDirectory) throws IOException {
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        for (String path : Directory.getFiles(pathToDirectory)) {
+            for (String line : TextFile.read(path)) {
+                for (String word : line.split("\\s+")) {
+                    if (!MiniGoogleUtilities.isWord(word)) continue;
+                    Integer count = counts.get(word);
+                    counts.put(word, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        return counts;
+    }
+
+    static HashMap<String, Integer> generateCorpus() {
+        Random random = new Random(42);
+
+        // Draw the vocabulary: first letters as in English, then a few random letters.
+        double total = 0;
+        for (double frequency : FIRST_LETTER_FREQUENCIES) total += frequency;
+        ArrayList<String> vocabulary = new ArrayList<String>();
+        while (vocabulary.size() < VOCABULARY_SIZE) {
+            double r = random.nextDouble() * total;
+            int letter = 0;
+            while (letter < LETTERS.length() - 1 && r >= FIRST_LETTER_FREQUENCIES[letter]) {
+                r -= FIRST_LETTER_FREQUENCIES[letter];
+                letter++;
+            }
+            StringBuilder word = new StringBuilder();
+            word.append(LETTERS.charAt(letter));
+            int length = 2 + random.nextInt(8);
+            for (int i = 1; i < length; i++) word.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+            vocabulary.add(word.toString());
+        }
+
+        // Occurrences follow Zipf's law: the word of rank r occurs in proportion to 1 / r.
+        double harmonic = 0;
+        for (int rank = 1; rank <= VOCABULARY_SIZE; rank++) harmonic += 1.0 / rank;
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        for (int rank = 1; rank <= VOCABULARY_SIZE; rank++) {
+            int count = (int)Math.max(1, Math.round(NUM_TOKENS / (rank * harmonic)));
+            String word = vocabulary.get(rank - 1);
+            Integer existing = counts.get(word);
+            counts.put(word, existing == null ? count : existing + count);
+        }
+        return counts;
+    }
+
+    static HashMap<String, Long> loads(Partitioner partitioner, HashMap<String, Integer> counts) {
+        HashMap<String, Long> loads = new HashMap<String, Long>();
+        for (String category : partitioner.getCategories()) loads.put(category, 0L);
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            String category = partitioner.getCategoryOf(entry.getKey());
+            Long load = loads.get(category);
+            loads.put(category, (load == null ? 0 : load) + entry.getValue());
+        }
+        return loads;
+    }
+
+    static String hottestCategory(Partitioner partitioner, HashMap<String, Integer> counts) {
+        String hottest = null;
+        long maxLoad = -1;
+        for (Map.Entry<String, Long> entry : loads(partitioner, counts).entrySet()) {
+            if (entry.getValue() > maxLoad) {
+                maxLoad = entry.getValue();
+                hottest = entry.getKey();
+            }
+        }
+        return hottest;
+    }
+
+    static void report(String name, Partitioner partitioner, HashMap<String, Integer> counts) {
+        HashMap<String, Long> loads = loads(partitioner, counts);
+        long total = 0;
+        long max = 0;
+        long min = Long.MAX_VALUE;
+        for (long load : loads.values()) {
+            total += load;
+            max = Math.max(max, load);
+            min = Math.min(min, load);
+        }
+        double mean = (double)total / loads.size();
+        double variance = 0;
+        for (long load : loads.values()) variance += (load - mean) * (load - mean);
+        double deviation = Math.sqrt(variance / loads.size());
+
+        System.out.println(String.format("%-45s %3d categories, max/mean %.2f, min/mean %.2f, coefficient of variation %.2f",
+                name + ":", loads.size(), max / mean, min / mean, deviation / mean));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.collections.PostingList;
+import me.yuhuan.io.PostingsCodec;
+import me.yuhuan.io.VarInt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the size of the postings of a synthetic index, with word frequencies following Zipf's law, stored:
+ * <ol>
+ *     <li> as the text lines of the old InvertedIndex file, "doc1|123,doc2|90", </li>
+ *     <li> as (document ID, frequency) VarInt pairs, and </li>
+ *     <li> in blocks by PostingsCodec, </li>
+ * </ol>
+ * and the time to decode the postings from the last two.
+ * Usage: java PostingsCodecBenchmark [number of documents]
+ */
+public class PostingsCodecBenchmark {
+
+    static final int NUM_WORDS = 50000;
+    static final int WORDS_PER_DOCUMENT = 2000;
+
+    public static void main(String[] args) throws IOException {
+        int numDocuments = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        // Draw the words of each document; word w is drawn with probability proportional to 1 / (w + 1).
+        double[] cumulative = new double[NUM_WORDS];
+        double total = 0;
+        for (int w = 0; w < NUM_WORDS; w++) {
+            total += 1.0 / (w + 1);
+            cumulative[w] = total;
+        }
+        PostingList[] postings = new PostingList[NUM_WORDS];
+        for (int w = 0; w < NUM_WORDS; w++) postings[w] = new PostingList();
+        Random random = new Random(42);
+        int[] counts = new int[NUM_WORDS];
+        for (int d = 0; d < numDocuments; d++) {
+            for (int i = 0; i < WORDS_PER_DOCUMENT; i++) {
+                int w = java.util.Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                counts[w < 0 ? -w - 1 : w]++;
+            }
+            for (int w = 0; w < NUM_WORDS; w++) {
+                if (counts[w] > 0) postings[w].add(d, counts[w]);
+                counts[w] = 0;
+            }
+        }
+
+        long numPostings = 0;
+        long textSize = 0;
+        ByteArrayOutputStream varIntBytes = new ByteArrayOutputStream();
+        DataOutputStream varInts = new DataOutputStream(varIntBytes);
+        ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+        DataOutputStream blocks = new DataOutputStream(blockBytes);
+        final ArrayList<Integer> offsets = new ArrayList<Integer>();
+        for (int w = 0; w < NUM_WORDS; w++) {
+            PostingList list = postings[w];
+            if (list.isEmpty()) continue;
+            numPostings += list.size();
+
+            StringBuilder line = new StringBuilder("word" + w);
+            for (int i = 0; i < list.size(); i++) {
+                line.append(",document").append(list.getDocumentId(i)).append("|").append(list.getFrequency(i));
+            }
+            textSize += line.append("\n").toString().getBytes(StandardCharsets.UTF_8).length;
+
+            VarInt.write(varInts, list.size());
+            for (int i = 0; i < list.size(); i++) {
+                VarInt.write(varInts, list.getDocumentId(i));
+                VarInt.write(varInts, list.getFrequency(i));
+            }
+
+            offsets.add(blocks.size());
+            PostingsCodec.write(blocks, list);
+        }
+
+        System.out.println(String.format("%,d documents, %,d postings", numDocuments, numPostings));
+        System.out.println(String.format("Text:     %,12d bytes %6.2f bytes per posting", textSize, (double)textSize / numPostings));
+        System.out.println(String.format("VarInts:  %,12d bytes %6.2f bytes per posting (%.1fx smaller than text)", varInts.size(), (double)varInts.size() / numPostings, (double)textSize / varInts.size()));
+        System.out.println(String.format("Blocks:   %,12d bytes %6.2f bytes per posting (%.1fx smaller than text)", blocks.size(), (double)blocks.size() / numPostings, (double)textSize / blocks.size()));
+
+        final ByteBuffer varIntBuffer = ByteBuffer.wrap(varIntBytes.toByteArray());
+        final ByteBuffer blockBuffer = ByteBuffer.wrap(blockBytes.toByteArray());
+        TokenizerBenchmark.measure("Decode VarInts", varIntBuffer.capacity(), new Runnable() {
+            public void run() {
+                ByteBuffer buffer = varIntBuffer.duplicate();
+                long sum = 0;
+                while (buffer.hasRemaining()) {
+                    int size = VarInt.read(buffer);
+                    for (int i = 0; i < size; i++) {
+                        sum += VarInt.read(buffer);
+                        sum += VarInt.read(buffer);
+                    }
+                }
+                if (sum == 42) System.out.println();
+            }
+        });
+        TokenizerBenchmark.measure("Decode blocks", blockBuffer.capacity(), new Runnable() {
+            public void run() {
+                long sum = 0;
+                for (int offset : offsets) {
+                    PostingsCodec.Decoder decoder = new PostingsCodec.Decoder(blockBuffer, offset);
+                    while (decoder.nextBlock()) {
+                        int[] documentIds = decoder.getBlockDocumentIds();
+                        int[] frequencies = decoder.getBlockFrequencies();
+                        for (int i = 0; i < decoder.getBlockSize(); i++) sum += documentIds[i] + frequencies[i];
+                    }
+                }
+                if (sum == 42) System.out.println();
+            }
+        });
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.net.core.TcpMessenger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A boolean query: a term, or the AND, OR or NOT of other queries.
+ * A query matches a set of documents, so it must not match "every document but some": a NOT may only be a child of
+ * an AND that has a child that is not a NOT. E.g. "fox AND NOT zebra" is a query, and "NOT zebra" is not.
+ */
+public class Query {
+
+    public static final int TERM = 0;
+    public static final int AND = 1;
+    public static final int OR = 2;
+    public static final int NOT = 3;
+
+    int _type;
+    String _term;
+    ArrayList<Query> _children;
+
+    Query(int type, String term, ArrayList<Query> children) {
+        _type = type;
+        _term = term;
+        _children = children;
+    }
+
+    public static Query term(String term) {
+        return new Query(TERM, term, new ArrayList<Query>());
+    }
+
+    public static Query and(Query... children) {
+        return new Query(AND, null, new ArrayList<Query>(Arrays.asList(children)));
+    }
+
+    public static Query or(Query... children) {
+        return new Query(OR, null, new ArrayList<Query>(Arrays.asList(children)));
+    }
+
+    public static Query not(Query child) {
+        ArrayList<Query> children = new ArrayList<Query>();
+        children.add(child);
+        return new Query(NOT, null, children);
+    }
+
+    /**
+     * A query of the type of this one, over other children.
+     */
+    Query withChildren(ArrayList<Query> children) {
+        return new Query(_type, null, children);
+    }
+
+    public int getType() {
+        return _type;
+    }
+
+    public String getTerm() {
+        return _term;
+    }
+
+    public ArrayList<Query> getChildren() {
+        return _children;
+    }
+
+    /**
+     * Whether the query matches documents by itself, i.e. is not a NOT.
+     */
+    public boolean isPositive() {
+        return _type != NOT;
+    }
+
+    /**
+     * Checks that a NOT is only found under an AND with a positive child, and that AND, OR and NOT have children.
+     * @throws IllegalArgumentException If not.
+     */
+    public void validate() {
+        if (_type == NOT) throw new IllegalArgumentException("NOT must be under an AND with a positive child: " + this);
+        validateChildren();
+    }
+
+    void validateChildren() {
+        if (_type == TERM) {
+            if (_term == null || _term.isEmpty()) throw new IllegalArgumentException("Empty term in a query. ");
+            return;
+        }
+        if (_children.isEmpty()) throw new IllegalArgumentException("No operand for " + typeName(_type));
+        if (_type == NOT) {
+            if (_children.size() != 1) throw new IllegalArgumentException("NOT takes one operand: " + this);
+            _children.get(0).validate();
+            return;
+        }
+
+        boolean hasPositiveChild = false;
+        for (Query child : _children) {
+            if (child.isPositive()) {
+                hasPositiveChild = true;
+                child.validate();
+            }
+            else if (_type == AND) child.validateChildren();
+            else child.validate();
+        }
+        if (!hasPositiveChild) throw new IllegalArgumentException("NOT must be under an AND with a positive child: " + this);
+    }
+
+    /**
+     * Parses a query such as "fox AND (quick OR NOT zebra)". AND binds tighter than OR, and terms next to each other
+     * are AND-ed. Operators may be in any case; a term that is an operator can not be searched for.
+     * @throws IllegalArgumentException If the text is not a valid query.
+     */
+    public static Query parse(String text) {
+        Parser parser = new Parser(text);
+        Query query = parser.parseOr();
+        if (parser.peek() != null) throw new IllegalArgumentException("Unexpected \"" + parser.peek() + "\" in query: " + text);
+        query.validate();
+        return query;
+    }
+
+    static class Parser {
+        ArrayList<String> _tokens;
+        int _next;
+        String _text;
+
+        Parser(String text) {
+            _text = text;
+            _tokens = new ArrayList<String>();
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c) || c == '(' || c == ')') {
+                    if (token.length() > 0) _tokens.add(token.toString());
+                    token.setLength(0);
+                    if (c == '(' || c == ')') _tokens.add(String.valueOf(c));
+                }
+                else token.append(c);
+            }
+            if (token.length() > 0) _tokens.add(token.toString());
+        }
+
+        String peek() {
+            return _next < _tokens.size() ? _tokens.get(_next) : null;
+        }
+
+        boolean accept(String operator) {
+            if (peek() == null || !peek().equalsIgnoreCase(operator)) return false;
+            _next++;
+            return true;
+        }
+
+        Query parseOr() {
+            ArrayList<Query> children = new ArrayList<Query>();
+            children.add(parseAnd());
+            while (accept("OR")) children.add(parseAnd());
+            return children.size() == 1 ? children.get(0) : new Query(OR, null, children);
+        }
+
+        Query parseAnd() {
+            ArrayList<Query> children = new ArrayList<Query>();
+            children.add(parseUnary());
+            while (true) {
+                if (accept("AND")) children.add(parseUnary());
+                else if (peek() != null && !peek().equals(")") && !peek().equalsIgnoreCase("OR")) children.add(parseUnary());
+                else break;
+            }
+            return children.size() == 1 ? children.get(0) : new Query(AND, null, children);
+        }
+
+        Query parseUnary() {
+            String token = peek();
+            if (token == null) throw new IllegalArgumentException("Unexpected end of query: " + _text);
+            if (accept("NOT")) return not(parseUnary());
+            if (accept("(")) {
+                Query query = parseOr();
+                if (!accept(")")) throw new IllegalArgumentException("Missing \")\" in query: " + _text);
+                return query;
+            }
+            if (token.equals(")") || token.equalsIgnoreCase("AND") || token.equalsIgnoreCase("OR")) {
+                throw new IllegalArgumentException("Unexpected \"" + token + "\" in query: " + _text);
+            }
+            _next++;
+            return term(token);
+        }
+    }
+
+    /**
+     * Sends the query, as its type, then its term or its number of children and the children.
+     */
+    public void send(TcpMessenger messenger) throws IOException {
+        messenger.sendInt(_type);
+        if (_type == TERM) {
+            messenger.sendString(_term);
+            return;
+        }
+        messenger.sendInt(_children.size());
+        for (Query child : _children) child.send(messenger);
+    }
+
+    public static Query receive(TcpMessenger messenger) throws IOException {
+        int type = messenger.receiveInt();
+        if (type == TERM) return term(messenger.receiveString());
+        if (type != AND && type != OR && type != NOT) throw new IOException("Unknown query type " + type);
+
+        int numChildren = messenger.receiveInt();
+        ArrayList<Query> children = new ArrayList<Query>();
+        for (int i = 0; i < numChildren; i++) children.add(receive(messenger));
+        return new Query(type, null, children);
+    }
+
+    static String typeName(int type) {
+        switch (type) {
+            case AND: return "AND";
+            case OR: return "OR";
+            case NOT: return "NOT";
+            default: return "TERM";
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (_type == TERM) return _term;
+        if (_type == NOT) return "NOT " + _children.get(0);
+        StringBuilder builder = new StringBuilder("(");
+        for (int i = 0; i < _children.size(); i++) {
+            if (i > 0) builder.append(" ").append(typeName(_type)).append(" ");
+            builder.append(_children.get(i));
+        }
+        return builder.append(")").toString();
+    }
+}
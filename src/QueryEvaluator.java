@@ -0,0 +1,374 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.collections.PostingList;
+import me.yuhuan.io.PostingsCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Evaluates a boolean query over postings ordered by document ID, one matching document at a time, without reading
+ * the lists into memory first.
+ * An AND moves all its lists to the same document, led by the shortest: the others are only advanced to the
+ * documents of the shortest, which skips whole blocks of the lists of a segment. An OR merges its lists, and an AND
+ * with NOTs drops the documents that its NOTs match.
+ * The frequency of a matching document is the sum of the frequencies of the terms it matches.
+ */
+public class QueryEvaluator {
+
+    public static final int NO_MORE_DOCUMENTS = Integer.MAX_VALUE;
+
+    /**
+     * Opens the postings of the leaves of a query: its terms on a helper, or the parts already evaluated by the
+     * helpers on the master.
+     */
+    public interface Leaves {
+        /**
+         * @return The postings of a part of a query, or null if the part is not a leaf, so that it is evaluated
+         * from its children.
+         */
+        PostingIterator open(Query query) throws IOException;
+    }
+
+    /**
+     * The documents matched by a list of postings or by a query, in order of ID.
+     */
+    public static abstract class PostingIterator {
+        int _documentId = -1;
+
+        /**
+         * The current document, -1 before the first, or NO_MORE_DOCUMENTS after the last.
+         */
+        public int getDocumentId() {
+            return _documentId;
+        }
+
+        public abstract int getFrequency();
+
+        /**
+         * Moves to the next document.
+         * @return Its ID, or NO_MORE_DOCUMENTS.
+         */
+        public abstract int next();
+
+        /**
+         * Moves forward to the first document whose ID is at least a target. Does not move if the current document
+         * is already there.
+         * @return Its ID, or NO_MORE_DOCUMENTS.
+         */
+        public abstract int advance(int target);
+
+        /**
+         * The most documents the iterator can match, to order the lists of an AND by.
+         */
+        public abstract long cost();
+    }
+
+    /**
+     * Evaluates a query, giving the documents it matches. The query must be valid, and the leaves must open all
+     * its terms.
+     */
+    public static PostingIterator evaluate(Query query, Leaves leaves) throws IOException {
+        PostingIterator leaf = leaves.open(query);
+        if (leaf != null) return leaf;
+
+        ArrayList<PostingIterator> positives = new ArrayList<PostingIterator>();
+        ArrayList<PostingIterator> negatives = new ArrayList<PostingIterator>();
+        switch (query.getType()) {
+            case Query.OR:
+                for (Query child : query.getChildren()) positives.add(evaluate(child, leaves));
+                return positives.size() == 1 ? positives.get(0) : new Disjunction(positives, true);
+            case Query.AND:
+                for (Query child : query.getChildren()) {
+                    if (child.isPositive()) positives.add(evaluate(child, leaves));
+                    else negatives.add(evaluate(child.getChildren().get(0), leaves));
+                }
+                PostingIterator matches = positives.size() == 1 ? positives.get(0) : new Conjunction(positives);
+                if (negatives.isEmpty()) return matches;
+                return new Exclusion(matches, negatives.size() == 1 ? negatives.get(0) : new Disjunction(negatives, true));
+            default:
+                throw new IllegalArgumentException("Can not evaluate " + query + " by itself. ");
+        }
+    }
+
+    /**
+     * The postings of a term in the segments of an index, oldest segment first. A document found in more than one
+     * segment, i.e. indexed again, takes its frequency from the newest.
+     */
+    public static PostingIterator openSegments(ArrayList<PostingsCodec.Decoder> segments) {
+        ArrayList<PostingIterator> parts = new ArrayList<PostingIterator>();
+        for (PostingsCodec.Decoder segment : segments) parts.add(new DecoderIterator(segment));
+        return parts.size() == 1 ? parts.get(0) : new Disjunction(parts, false);
+    }
+
+    /**
+     * Reads the rest of the documents of an iterator into a list.
+     */
+    public static PostingList collect(PostingIterator iterator) {
+        PostingList postings = new PostingList();
+        while (iterator.next() != NO_MORE_DOCUMENTS) {
+            postings.add(iterator.getDocumentId(), iterator.getFrequency());
+        }
+        return postings;
+    }
+
+    /**
+     * The postings of a list. The list must hold each document once, in order of ID.
+     */
+    public static class ListIterator extends PostingIterator {
+        PostingList _postings;
+        int _index = -1;
+
+        public ListIterator(PostingList postings) {
+            _postings = postings;
+        }
+
+        public int getFrequency() {
+            return _postings.getFrequency(_index);
+        }
+
+        public int next() {
+            return moveTo(_index + 1);
+        }
+
+        public int advance(int target) {
+            if (_documentId >= target) return _documentId;
+
+            // Gallop forward to a range that holds the target, then search it.
+            int low = _index + 1;
+            int step = 1;
+            while (low + step < _postings.size() && _postings.getDocumentId(low + step) < target) {
+                low += step;
+                step *= 2;
+            }
+            int high = Math.min(low + step, _postings.size());
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (_postings.getDocumentId(middle) < target) low = middle + 1;
+                else high = middle;
+            }
+            return moveTo(low);
+        }
+
+        int moveTo(int index) {
+            _index = Math.min(index, _postings.size());
+            _documentId = _index < _postings.size() ? _postings.getDocumentId(_index) : NO_MORE_DOCUMENTS;
+            return _documentId;
+        }
+
+        public long cost() {
+            return _postings.size();
+        }
+    }
+
+    /**
+     * The postings of a list of a segment, decoded as they are reached.
+     */
+    public static class DecoderIterator extends PostingIterator {
+        PostingsCodec.Decoder _decoder;
+
+        public DecoderIterator(PostingsCodec.Decoder decoder) {
+            _decoder = decoder;
+        }
+
+        public int getFrequency() {
+            return _decoder.getFrequency();
+        }
+
+        public int next() {
+            _documentId = _decoder.next() ? _decoder.getDocumentId() : NO_MORE_DOCUMENTS;
+            return _documentId;
+        }
+
+        public int advance(int target) {
+            if (_documentId >= target) return _documentId;
+            _documentId = _decoder.advance(target) ? _decoder.getDocumentId() : NO_MORE_DOCUMENTS;
+            return _documentId;
+        }
+
+        public long cost() {
+            return _decoder.size();
+        }
+    }
+
+    /**
+     * The documents matched by all of several iterators.
+     */
+    public static class Conjunction extends PostingIterator {
+        PostingIterator[] _parts;
+
+        /**
+         * @param parts The iterators, which are led by the one that matches the fewest documents.
+         */
+        public Conjunction(ArrayList<PostingIterator> parts) {
+            _parts = parts.toArray(new PostingIterator[parts.size()]);
+            Arrays.sort(_parts, new Comparator<PostingIterator>() {
+                public int compare(PostingIterator a, PostingIterator b) {
+                    return Long.compare(a.cost(), b.cost());
+                }
+            });
+        }
+
+        public int getFrequency() {
+            int frequency = 0;
+            for (PostingIterator part : _parts) frequency += part.getFrequency();
+            return frequency;
+        }
+
+        public int next() {
+            return align(_parts[0].next());
+        }
+
+        public int advance(int target) {
+            if (_documentId >= target) return _documentId;
+            return align(_parts[0].advance(target));
+        }
+
+        /**
+         * Moves the other iterators to the document of the first, and the first on past the documents they lack.
+         */
+        int align(int documentId) {
+            search:
+            while (documentId != NO_MORE_DOCUMENTS) {
+                for (int i = 1; i < _parts.length; i++) {
+                    int other = _parts[i].advance(documentId);
+                    if (other > documentId) {
+                        documentId = other == NO_MORE_DOCUMENTS ? other : _parts[0].advance(other);
+                        continue search;
+                    }
+                }
+                break;
+            }
+            _documentId = documentId;
+            return documentId;
+        }
+
+        public long cost() {
+            return _parts[0].cost();
+        }
+    }
+
+    /**
+     * The documents matched by any of several iterators.
+     */
+    public static class Disjunction extends PostingIterator {
+        PostingIterator[] _parts;
+        boolean _isSummed;
+
+        /**
+         * The iterators not on the current document, by document, then by their order.
+         */
+        PriorityQueue<Integer> _queue;
+
+        /**
+         * The iterators on the current document, in their order.
+         */
+        ArrayList<Integer> _current;
+
+        /**
+         * @param isSummed Whether the frequency of a document is the sum of its frequencies in the iterators that
+         *                 match it, or its frequency in the last of them.
+         */
+        public Disjunction(ArrayList<PostingIterator> parts, boolean isSummed) {
+            _parts = parts.toArray(new PostingIterator[parts.size()]);
+            _isSummed = isSummed;
+            _queue = new PriorityQueue<Integer>(Math.max(1, _parts.length), new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int byDocument = Integer.compare(_parts[a].getDocumentId(), _parts[b].getDocumentId());
+                    return byDocument != 0 ? byDocument : Integer.compare(a, b);
+                }
+            });
+            _current = new ArrayList<Integer>();
+            for (int i = 0; i < _parts.length; i++) _current.add(i);
+        }
+
+        public int getFrequency() {
+            if (!_isSummed) return _parts[_current.get(_current.size() - 1)].getFrequency();
+            int frequency = 0;
+            for (int i : _current) frequency += _parts[i].getFrequency();
+            return frequency;
+        }
+
+        public int next() {
+            for (int i : _current) {
+                if (_parts[i].next() != NO_MORE_DOCUMENTS) _queue.add(i);
+            }
+            return pollCurrent();
+        }
+
+        public int advance(int target) {
+            if (_documentId >= target) return _documentId;
+            for (int i : _current) {
+                if (_parts[i].advance(target) != NO_MORE_DOCUMENTS) _queue.add(i);
+            }
+            while (!_queue.isEmpty() && _parts[_queue.peek()].getDocumentId() < target) {
+                int i = _queue.poll();
+                if (_parts[i].advance(target) != NO_MORE_DOCUMENTS) _queue.add(i);
+            }
+            return pollCurrent();
+        }
+
+        int pollCurrent() {
+            _current.clear();
+            if (_queue.isEmpty()) {
+                _documentId = NO_MORE_DOCUMENTS;
+                return _documentId;
+            }
+            _documentId = _parts[_queue.peek()].getDocumentId();
+            while (!_queue.isEmpty() && _parts[_queue.peek()].getDocumentId() == _documentId) {
+                _current.add(_queue.poll());
+            }
+            return _documentId;
+        }
+
+        public long cost() {
+            long cost = 0;
+            for (PostingIterator part : _parts) cost += part.cost();
+            return cost;
+        }
+    }
+
+    /**
+     * The documents matched by one iterator and not by another.
+     */
+    public static class Exclusion extends PostingIterator {
+        PostingIterator _included;
+        PostingIterator _excluded;
+
+        public Exclusion(PostingIterator included, PostingIterator excluded) {
+            _included = included;
+            _excluded = excluded;
+        }
+
+        public int getFrequency() {
+            return _included.getFrequency();
+        }
+
+        public int next() {
+            return skipExcluded(_included.next());
+        }
+
+        public int advance(int target) {
+            if (_documentId >= target) return _documentId;
+            return skipExcluded(_included.advance(target));
+        }
+
+        int skipExcluded(int documentId) {
+            while (documentId != NO_MORE_DOCUMENTS && _excluded.advance(documentId) == documentId) {
+                documentId = _included.next();
+            }
+            _documentId = documentId;
+            return documentId;
+        }
+
+        public long cost() {
+            return _included.cost();
+        }
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.collections.PostingList;
+import me.yuhuan.collections.TermCounter;
+import me.yuhuan.io.Directory;
+import me.yuhuan.io.File;
+import me.yuhuan.io.PostingsCodec;
+import me.yuhuan.utilities.Console;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An inverted index kept as a list of immutable segments on disk, oldest first, in the manner of a log-structured
+ * merge tree. Indexing a document writes one new segment, whatever the size of the index; a search looks the terms
+ * up in every segment and merges the postings by document ID, where the posting of a document in a newer segment
+ * replaces those in older ones.
+ * A background compactor merges runs of adjacent small segments into one, so that searches look at few segments.
+ * Segments are numbered by generation, in the order they are added, and a segment file is named after the range of
+ * generations it covers: "first-last.seg". A merged segment covers the range of the segments it replaces, so that
+ * if the helper dies between writing it and deleting them, the covered segments are dropped when the index is
+ * opened again.
+ * The list of segments is kept in a manifest file, which is replaced whenever a segment is added or segments are
+ * merged. A segment is written before the manifest names it and deleted after the manifest stops naming it, so the
+ * manifest always names a complete index, and files it does not name are left over from a crash. Without a
+ * manifest, as in an index written before there were manifests, the index is made of all segment files, less those
+ * covered by another.
+ * Searches read a snapshot of the list of segments, and never wait for indexing or compaction.
+ * An index holds a lock on a file in its directory for as long as its process lives, so that no other process opens
+ * the same directory, hands out the same generations, or replaces the manifest under it.
+ */
+public class SegmentedIndex {
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String MANIFEST_NAME = "MANIFEST";
+    static final String LOCK_NAME = "LOCK";
+    static final int MANIFEST_MAGIC = 0x49584d31; // "IXM1"
+    static final int MANIFEST_VERSION = 1;
+
+    /**
+     * Segments are merged this many at a time, at least.
+     */
+    static final int MERGE_FACTOR = 4;
+
+    /**
+     * A segment file and the range of generations it covers.
+     */
+    static class Entry {
+        final IndexSegment segment;
+        final long firstGeneration;
+        final long lastGeneration;
+
+        Entry(IndexSegment segment, long firstGeneration, long lastGeneration) {
+            this.segment = segment;
+            this.firstGeneration = firstGeneration;
+            this.lastGeneration = lastGeneration;
+        }
+    }
+
+    String _directory;
+
+    /**
+     * Directories of the indexes opened in this process. A file lock keeps other processes out, but not this one,
+     * and closing any other handle on the lock file would let the lock go.
+     */
+    static final HashSet<String> _lockedDirectories = new HashSet<String>();
+
+    /**
+     * The lock on the directory, held until the process exits.
+     */
+    RandomAccessFile _lockFile;
+    FileLock _lock;
+
+    /**
+     * Number of postings by frequency each segment keeps ahead of the postings of a common term, 0 for none.
+     */
+    int _impactPrefixSize;
+
+    /**
+     * The segments, oldest first. Replaced as a whole on every change, never changed in place.
+     */
+    volatile ArrayList<Entry> _entries;
+
+    long _nextGeneration;
+    boolean _isCompactionRequested;
+    Thread _compactor;
+
+    /**
+     * Opens the index in a directory, creating the directory if needed, and starts the compactor. Segments are
+     * written with no impact prefixes.
+     * @param directory The directory, ending with a slash.
+     */
+    public SegmentedIndex(String directory) throws IOException {
+        this(directory, 0);
+    }
+
+    /**
+     * Opens the index in a directory, creating the directory if needed, and starts the compactor.
+     * @param directory The directory, ending with a slash.
+     * @param impactPrefixSize Number of postings by frequency new segments keep ahead of the postings of a common
+     *                         term, so that getTopPostings() reads them with no sort; 0 for none.
+     * @throws IndexLockedException If another index, in this process or another, holds the directory.
+     */
+    public SegmentedIndex(String directory, int impactPrefixSize) throws IOException {
+        _directory = directory;
+        _impactPrefixSize = impactPrefixSize;
+        new java.io.File(directory).mkdirs();
+
+        // Take the directory before touching anything in it: the files of another live index are not left over.
+        lock();
+
+        // Remove what a crash left behind: files being written, and segments the manifest does not name.
+        for (java.io.File file : new java.io.File(directory).listFiles()) {
+            if (File.isTemporary(file.getName())) file.delete();
+        }
+        ArrayList<long[]> ranges = new java.io.File(directory + MANIFEST_NAME).exists() ? readManifest() : scanSegments();
+        HashSet<String> names = new HashSet<String>();
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        for (long[] range : ranges) {
+            String path = getSegmentPath(range[0], range[1]);
+            names.add(File.extractFileNameFromPath(path));
+            entries.add(new Entry(new IndexSegment(path), range[0], range[1]));
+            _nextGeneration = Math.max(_nextGeneration, range[1] + 1);
+        }
+        for (String path : Directory.getFiles(directory)) {
+            if (parseRange(path) != null && !names.contains(File.extractFileNameFromPath(path))) File.deleteFile(path);
+        }
+        _entries = entries;
+        writeManifest(entries);
+
+        _compactor = new Thread() {
+            public void run() {
+                compactForever();
+            }
+        };
+        _compactor.setDaemon(true);
+        _compactor.start();
+    }
+
+    /**
+     * Locks the directory for this index.
+     * @throws IndexLockedException If another index holds it.
+     */
+    void lock() throws IOException {
+        String canonicalDirectory = new java.io.File(_directory).getCanonicalPath();
+        synchronized (_lockedDirectories) {
+            if (_lockedDirectories.contains(canonicalDirectory)) {
+                throw new IndexLockedException(_directory + " is held by another index in this process. ");
+            }
+            _lockFile = new RandomAccessFile(_directory + LOCK_NAME, "rw");
+            try {
+                _lock = _lockFile.getChannel().tryLock();
+            }
+            catch (OverlappingFileLockException e) { }
+            if (_lock == null) {
+                _lockFile.close();
+                throw new IndexLockedException(_directory + " is held by another process. ");
+            }
+            _lockedDirectories.add(canonicalDirectory);
+        }
+    }
+
+    /**
+     * Finds the segments of an index without a manifest: all segment files, less those covered by another.
+     * @return The ranges of generations of the segments, oldest first.
+     */
+    ArrayList<long[]> scanSegments() {
+        ArrayList<long[]> ranges = new ArrayList<long[]>();
+        for (String path : Directory.getFiles(_directory)) {
+            long[] range = parseRange(path);
+            if (range != null) ranges.add(range);
+        }
+
+        // Widest first among those starting at the same generation.
+        Collections.sort(ranges, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                if (a[0] != b[0]) return a[0] < b[0] ? -1 : 1;
+                return a[1] == b[1] ? 0 : (a[1] > b[1] ? -1 : 1);
+            }
+        });
+        ArrayList<long[]> kept = new ArrayList<long[]>();
+        long lastCovered = -1;
+        for (long[] range : ranges) {
+            if (range[1] <= lastCovered) continue;
+            kept.add(range);
+            lastCovered = range[1];
+        }
+        return kept;
+    }
+
+    /**
+     * Reads the manifest: a magic number, a format version, the next generation, the number of segments and the
+     * range of generations of each, oldest first, all followed by the CRC-32 of the bytes before it.
+     * @return The ranges of generations of the segments, oldest first.
+     */
+    ArrayList<long[]> readManifest() throws IOException {
+        String path = _directory + MANIFEST_NAME;
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, Math.max(0, bytes.length - 4));
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < 24 || input.readInt() != MANIFEST_MAGIC) throw new IOException(path + " is not a manifest. ");
+        int version = input.readInt();
+        if (version != MANIFEST_VERSION) {
+            throw new IOException(path + " has format version " + version + ", expected " + MANIFEST_VERSION);
+        }
+        if ((int)crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+            throw new IOException(path + " is corrupt. ");
+        }
+
+        _nextGeneration = input.readLong();
+        int numSegments = input.readInt();
+        ArrayList<long[]> ranges = new ArrayList<long[]>();
+        for (int i = 0; i < numSegments; i++) {
+            ranges.add(new long[] { input.readLong(), input.readLong() });
+        }
+        return ranges;
+    }
+
+    /**
+     * Replaces the manifest with one naming a list of segments. Called with the lock held, before the list is
+     * published.
+     */
+    void writeManifest(ArrayList<Entry> entries) throws IOException {
+        String path = _directory + MANIFEST_NAME;
+        String temporaryPath = File.createTemporaryPath(path);
+        try {
+            FileOutputStream file = new FileOutputStream(temporaryPath);
+            CheckedOutputStream checkedOutput = new CheckedOutputStream(new BufferedOutputStream(file), new CRC32());
+            DataOutputStream output = new DataOutputStream(checkedOutput);
+            try {
+                output.writeInt(MANIFEST_MAGIC);
+                output.writeInt(MANIFEST_VERSION);
+                output.writeLong(_nextGeneration);
+                output.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    output.writeLong(entry.firstGeneration);
+                    output.writeLong(entry.lastGeneration);
+                }
+                output.writeInt((int)checkedOutput.getChecksum().getValue());
+                output.flush();
+                file.getFD().sync();
+            }
+            finally {
+                output.close();
+            }
+            File.replace(temporaryPath, path);
+            File.syncDirectoryOf(path);
+        }
+        finally {
+            File.deleteFile(temporaryPath);
+        }
+    }
+
+    /**
+     * Gets the postings of a term of the highest frequencies in all segments, highest first, and by document ID
+     * within a frequency. Each segment gives its top postings, from its impact prefix where it has one, and they are
+     * merged until there are enough. A document in more than one segment, as after being indexed again, counts once,
+     * with its posting of the newest, as searches read it.
+     * @param limit Number of postings to get at most.
+     * @return The postings, or null if no segment has the term.
+     */
+    public PostingList getTopPostings(String term, int limit) {
+        byte[] bytes = term.getBytes(IndexSegment.UTF8);
+        ArrayList<Entry> entries = _entries;
+        for (int segmentLimit = limit; ; segmentLimit = (int)Math.min(Integer.MAX_VALUE, 2L * segmentLimit)) {
+            final ArrayList<PostingList> parts = new ArrayList<PostingList>();
+            ArrayList<IndexSegment> segments = new ArrayList<IndexSegment>();
+            for (Entry entry : entries) {
+                PostingList part = new PostingList();
+                if (entry.segment.readTopPostings(bytes, segmentLimit, part)) {
+                    parts.add(part);
+                    segments.add(entry.segment);
+                }
+            }
+            if (parts.isEmpty()) return null;
+
+            // Merge the lists, each by impact, through a queue of the list whose next posting comes first.
+            final int[] positions = new int[parts.size()];
+            PriorityQueue<Integer> queue = new PriorityQueue<Integer>(parts.size(), new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    PostingList x = parts.get(a);
+                    PostingList y = parts.get(b);
+                    int c = y.getFrequency(positions[b]) - x.getFrequency(positions[a]);
+                    return c != 0 ? c : x.getDocumentId(positions[a]) - y.getDocumentId(positions[b]);
+                }
+            });
+            for (int i = 0; i < parts.size(); i++) {
+                if (!parts.get(i).isEmpty()) queue.add(i);
+            }
+            PostingList postings = new PostingList(Math.min(limit, 1024));
+            boolean isCut = false;
+            while (!queue.isEmpty() && postings.size() < limit) {
+                int i = queue.poll();
+                PostingList part = parts.get(i);
+                int documentId = part.getDocumentId(positions[i]);
+                if (!isInNewerSegment(bytes, documentId, segments, i)) postings.add(documentId, part.getFrequency(positions[i]));
+                if (++positions[i] < part.size()) {
+                    queue.add(i);
+                }
+                else if (part.size() == segmentLimit) {
+                    // The segment has more postings than it gave, which may come before those of the others.
+                    isCut = true;
+                    break;
+                }
+            }
+
+            // Postings dropped for newer ones may have used up a segment's postings before there were enough; read
+            // more.
+            if (postings.size() == limit || !isCut || segmentLimit == Integer.MAX_VALUE) return postings;
+        }
+    }
+
+    /**
+     * Whether a segment newer than one of a list, oldest first, has a posting of a term for a document. Each check
+     * skips through the postings by their block headers.
+     */
+    static boolean isInNewerSegment(byte[] term, int documentId, ArrayList<IndexSegment> segments, int index) {
+        for (int i = index + 1; i < segments.size(); i++) {
+            PostingsCodec.Decoder postings = segments.get(i).openPostings(term);
+            if (postings.advance(documentId) && postings.getDocumentId() == documentId) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Opens the postings of a term in all segments that have it, oldest first, to be decoded as they are read.
+     * Each is ordered by document ID.
+     */
+    public ArrayList<PostingsCodec.Decoder> openPostings(String term) {
+        byte[] bytes = term.getBytes(IndexSegment.UTF8);
+        ArrayList<PostingsCodec.Decoder> postings = new ArrayList<PostingsCodec.Decoder>();
+        for (Entry entry : _entries) {
+            PostingsCodec.Decoder decoder = entry.segment.openPostings(bytes);
+            if (decoder != null) postings.add(decoder);
+        }
+        return postings;
+    }
+
+    public int getNumSegments() {
+        return _entries.size();
+    }
+
+    /**
+     * Starts a new segment, to be added by commit() once written.
+     */
+    public synchronized IndexSegment.Writer newSegment() throws IOException {
+        long generation = _nextGeneration++;
+        return new IndexSegment.Writer(getSegmentPath(generation, generation), _impactPrefixSize);
+    }
+
+    /**
+     * Finishes a segment started by newSegment(), and adds it to the index as the newest segment. Once this
+     * returns, the segment survives a crash.
+     */
+    public void commit(IndexSegment.Writer writer) throws IOException {
+        writer.close();
+        long[] range = parseRange(writer.getPath());
+        Entry entry = new Entry(new IndexSegment(writer.getPath()), range[0], range[1]);
+        synchronized (this) {
+            // Segments may be committed out of order; keep them ordered by generation.
+            ArrayList<Entry> entries = new ArrayList<Entry>(_entries);
+            int position = entries.size();
+            while (position > 0 && entries.get(position - 1).firstGeneration > entry.firstGeneration) position--;
+            entries.add(position, entry);
+            writeManifest(entries);
+            _entries = entries;
+
+            _isCompactionRequested = true;
+            notifyAll();
+        }
+    }
+
+    String getSegmentPath(long firstGeneration, long lastGeneration) {
+        return _directory + firstGeneration + "-" + lastGeneration + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * @return The first and last generation in the name of a segment file, or null if it is not a segment file.
+     */
+    static long[] parseRange(String path) {
+        String name = File.extractFileNameFromPath(path);
+        if (!name.endsWith(SEGMENT_SUFFIX)) return null;
+        String[] parts = name.substring(0, name.length() - SEGMENT_SUFFIX.length()).split("-");
+        if (parts.length != 2) return null;
+        try {
+            return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void compactForever() {
+        // Opening the index checked only the footers of the segments; check the rest in the background.
+        for (Entry entry : _entries) {
+            try {
+                entry.segment.verify();
+            }
+            catch (IOException e) {
+                Console.writeLine(e.getMessage() + " Index its documents again. ");
+            }
+        }
+
+        while (true) {
+            synchronized (this) {
+                while (!_isCompactionRequested) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                _isCompactionRequested = false;
+            }
+
+            try {
+                while (compactOnce()) { }
+            }
+            catch (IOException e) {
+                Console.writeLine("Failed to compact the index in " + _directory + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Picks the newest segments to merge: the longest run of newest segments in which each segment is no larger
+     * than all newer ones in the run together. Merging such runs once they are MERGE_FACTOR long keeps the number
+     * of segments logarithmic in the size of the index, and each posting is rewritten a logarithmic number of
+     * times.
+     * @return The index of the oldest segment of the run, or -1 if the run is too short.
+     */
+    static int pickMergeStart(ArrayList<Entry> entries) {
+        if (entries.size() < MERGE_FACTOR) return -1;
+        int start = entries.size() - 1;
+        long newerSize = entries.get(start).segment.getSize();
+        while (start > 0 && entries.get(start - 1).segment.getSize() <= newerSize) {
+            start--;
+            newerSize += entries.get(start).segment.getSize();
+        }
+        return entries.size() - start >= MERGE_FACTOR ? start : -1;
+    }
+
+    /**
+     * Merges one run of segments, if there is one to merge.
+     * @return Whether a run was merged.
+     */
+    boolean compactOnce() throws IOException {
+        ArrayList<Entry> entries = _entries;
+        int start = pickMergeStart(entries);
+        if (start < 0) return false;
+        ArrayList<Entry> run = new ArrayList<Entry>(entries.subList(start, entries.size()));
+
+        // Generations of a run are contiguous, unless a segment is still being written; then wait for it.
+        for (int i = 1; i < run.size(); i++) {
+            if (run.get(i).firstGeneration != run.get(i - 1).lastGeneration + 1) return false;
+        }
+
+        Entry first = run.get(0);
+        Entry last = run.get(run.size() - 1);
+        IndexSegment.Writer writer = new IndexSegment.Writer(getSegmentPath(first.firstGeneration, last.lastGeneration), _impactPrefixSize);
+        try {
+            // Check the segments first, so that a corrupt segment is not merged into a good one.
+            for (Entry entry : run) {
+                entry.segment.verify();
+            }
+            merge(run, writer);
+            writer.close();
+        }
+        finally {
+            writer.abort();
+        }
+        Entry merged = new Entry(new IndexSegment(writer.getPath()), first.firstGeneration, last.lastGeneration);
+
+        // Only the compactor removes segments, so the run is still in the list, in one piece.
+        synchronized (this) {
+            ArrayList<Entry> current = new ArrayList<Entry>(_entries);
+            int position = current.indexOf(first);
+            current.subList(position, position + run.size()).clear();
+            current.add(position, merged);
+            writeManifest(current);
+            _entries = current;
+        }
+
+        // The manifest no longer names the old segments. Searches that still read them keep their mappings, which
+        // outlive the files.
+        for (Entry entry : run) {
+            File.deleteFile(entry.segment.getPath());
+        }
+        Console.writeLine("Merged " + run.size() + " segments into " + writer.getPath() + ", " + merged.segment.getNumTerms() + " terms. ");
+        return true;
+    }
+
+    /**
+     * Merges segments term by term. The postings of a term are ordered by document ID. A document in more than one
+     * segment, as after being indexed again, keeps only its posting of the newest, as searches read it.
+     */
+    static void merge(ArrayList<Entry> run, IndexSegment.Writer writer) throws IOException {
+        // The cursors of the segments that have terms left, by index in the run, ordered by their terms.
+        final IndexSegment.Cursor[] cursors = new IndexSegment.Cursor[run.size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<Integer>(run.size(), new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = cursors[a].compareTo(cursors[b]);
+                return c != 0 ? c : a - b;
+            }
+        });
+        for (int i = 0; i < run.size(); i++) {
+            cursors[i] = run.get(i).segment.openCursor();
+            if (cursors[i].next()) queue.add(i);
+        }
+
+        PostingList postings = new PostingList();
+        byte[] term = new byte[32];
+        while (!queue.isEmpty()) {
+            int i = queue.poll();
+            int termLength = cursors[i].getTermLength();
+            if (termLength > term.length) term = new byte[Math.max(termLength, term.length * 2)];
+            System.arraycopy(cursors[i].getTermBytes(), 0, term, 0, termLength);
+            postings.clear();
+            while (true) {
+                cursors[i].readPostings(postings);
+                if (cursors[i].next()) queue.add(i);
+
+                if (queue.isEmpty()) break;
+                IndexSegment.Cursor next = cursors[queue.peek()];
+                if (TermCounter.compare(next.getTermBytes(), 0, next.getTermLength(), term, 0, termLength) != 0) break;
+                i = queue.poll();
+            }
+            postings.sortByDocumentId();
+            postings.keepLastOfEachDocument();
+            writer.add(term, 0, termLength, postings);
+        }
+    }
+}
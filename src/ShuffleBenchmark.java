@@ -0,0 +1,167 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.collections.TermCounter;
+import me.yuhuan.io.Directory;
+import me.yuhuan.io.TermCountRun;
+import me.yuhuan.io.TextFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Measures the bytes that the reducers of one indexing transaction read, comparing:
+ * <ol>
+ *     <li> One text file of partial counts per segment, which every reducer reads in full and filters by category. </li>
+ *     <li> One sorted run of partial counts per segment and category, of which every reducer merges its own. </li>
+ * </ol>
+ * Usage: java ShuffleBenchmark [directory of segments]
+ * Without a directory, synthetic segments of Zipf-distributed words are used.
+ */
+public class ShuffleBenchmark {
+
+    static final int NUM_SEGMENTS = 32;
+    static final int NUM_WORDS_PER_SEGMENT = 100000;
+    static final int VOCABULARY_SIZE = 50000;
+    static final int WORDS_PER_LINE = 12;
+
+    public static void main(String[] args) throws IOException {
+        ArrayList<String[]> segments = args.length > 0 ? readSegments(args[0]) : generateSegments();
+        ArrayList<String> categories = MiniGoogleUtilities.generateCategories();
+
+        ArrayList<TermCounter> counts = new ArrayList<TermCounter>();
+        for (String[] segment : segments) {
+            counts.add(Helper.mapping(ByteBuffer.wrap(toBytes(segment))));
+        }
+
+        String workingDirectory = Files.createTempDirectory("shuffle").toString() + "/";
+        try {
+            // Unpartitioned: every reducer reads every file.
+            String unpartitioned = workingDirectory + "unpartitioned/";
+            Directory.createDirectory(unpartitioned);
+            for (int i = 0; i < counts.size(); i++) {
+                ArrayList<String> lines = new ArrayList<String>();
+                TermCounter countsOfSegment = counts.get(i);
+                for (int entry = 0; entry < countsOfSegment.size(); entry++) {
+                    lines.add(countsOfSegment.getTerm(entry) + "," + countsOfSegment.getCount(entry));
+                }
+                TextFile.write(unpartitioned + "segment" + i, lines);
+            }
+
+            long start = System.nanoTime();
+            long unpartitionedBytes = 0;
+            long unpartitionedWords = 0;
+            for (String category : categories) {
+                HashMap<String, Integer> combinedCounts = new HashMap<String, Integer>();
+                for (String path : Directory.getFiles(unpartitioned)) {
+                    unpartitionedBytes += new java.io.File(path).length();
+                    for (String line : TextFile.read(path)) {
+                        String[] parts = line.split(",");
+                        if (!MiniGoogleUtilities.getCategoryOf(parts[0]).equals(category)) continue;
+                        Integer count = combinedCounts.get(parts[0]);
+                        combinedCounts.put(parts[0], (count == null ? 0 : count) + Integer.parseInt(parts[1]));
+                    }
+                }
+                unpartitionedWords += combinedCounts.size();
+            }
+            double unpartitionedSeconds = (System.nanoTime() - start) / 1e9;
+
+            // Partitioned: every reducer reads the files of its category.
+            String partitioned = workingDirectory + "partitioned/";
+            Directory.createDirectory(partitioned);
+            for (int i = 0; i < counts.size(); i++) {
+                Helper.writePartialCounts(counts.get(i), partitioned, "segment" + i);
+            }
+
+            start = System.nanoTime();
+            long partitionedBytes = 0;
+            long partitionedWords = 0;
+            for (String category : categories) {
+                java.io.File categoryDirectory = new java.io.File(partitioned + category);
+                if (categoryDirectory.isDirectory()) {
+                    for (String path : Directory.getFiles(categoryDirectory.getPath())) {
+                        partitionedBytes += new java.io.File(path).length();
+                    }
+                }
+                TermCountRun.Merger partialCounts = Helper.openPartialCounts(partitioned, category);
+                try {
+                    while (partialCounts.next()) partitionedWords++;
+                }
+                finally {
+                    partialCounts.close();
+                }
+            }
+            double partitionedSeconds = (System.nanoTime() - start) / 1e9;
+
+            if (partitionedWords != unpartitionedWords) {
+                throw new IllegalStateException("The two layouts reduce to different words. ");
+            }
+
+            System.out.println(segments.size() + " segments, " + categories.size() + " categories, " + partitionedWords + " distinct words");
+            System.out.println(String.format("One text file per segment:         %,14d bytes read, %.2f s", unpartitionedBytes, unpartitionedSeconds));
+            System.out.println(String.format("One run per segment and category:  %,14d bytes read, %.2f s", partitionedBytes, partitionedSeconds));
+            System.out.println(String.format("Bytes read reduced %.1fx", (double)unpartitionedBytes / partitionedBytes));
+        }
+        finally {
+            Directory.removeDirectory(workingDirectory);
+        }
+    }
+
+    static ArrayList<String[]> readSegments(String pathToDirectory) throws IOException {
+        ArrayList<String[]> segments = new ArrayList<String[]>();
+        for (String path : Directory.getFiles(pathToDirectory)) {
+            segments.add(TextFile.read(path));
+        }
+        return segments;
+    }
+
+    static byte[] toBytes(String[] lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) text.append(line).append('\n');
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static ArrayList<String[]> generateSegments() {
+        Random random = new Random(42);
+        String[] vocabulary = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 2 + random.nextInt(8);
+            for (int j = 0; j < length; j++) word.append((char)('a' + random.nextInt(26)));
+            vocabulary[i] = word.toString();
+        }
+
+        // Cumulative Zipf weights, to draw words by rank.
+        double[] cumulative = new double[VOCABULARY_SIZE];
+        double sum = 0;
+        for (int rank = 1; rank <= VOCABULARY_SIZE; rank++) {
+            sum += 1.0 / rank;
+            cumulative[rank - 1] = sum;
+        }
+
+        ArrayList<String[]> segments = new ArrayList<String[]>();
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            ArrayList<String> lines = new ArrayList<String>();
+            StringBuilder line = new StringBuilder();
+            for (int j = 0; j < NUM_WORDS_PER_SEGMENT; j++) {
+                int index = java.util.Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                if (index < 0) index = -index - 1;
+                line.append(vocabulary[Math.min(index, VOCABULARY_SIZE - 1)]).append(' ');
+                if ((j + 1) % WORDS_PER_LINE == 0) {
+                    lines.add(line.toString());
+                    line.setLength(0);
+                }
+            }
+            lines.add(line.toString());
+            segments.add(lines.toArray(new String[lines.size()]));
+        }
+        return segments;
+    }
+}
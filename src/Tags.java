@@ -25,4 +25,13 @@ public class Tags {
     public static final int SEARCHING_FAIL = 13;
     public static final int SEARCHING_DONE = 14;
 
+    public static final int MESSAGE_ACKNOWLEDGED = 15;
+
+    public static final int REQUEST_HELPER_DIRECTORY = 16;
+    public static final int REQUEST_DIRECTORY_SUBSCRIPTION = 17;
+    public static final int MESSAGE_DIRECTORY_CHANGED = 18;
+
+    public static final int REQUEST_QUERYING = 19;
+    public static final int REQUEST_RANKING = 20;
+
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.collections.TermCounter;
+import me.yuhuan.io.Directory;
+import me.yuhuan.io.TermCountRun;
+import me.yuhuan.io.TextFile;
+import me.yuhuan.text.ByteTokenizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Measures counting on both sides of the shuffle, comparing:
+ * <ol>
+ *     <li> Mapper: counting tokens in a HashMap&lt;String, Integer&gt;, with a String per token and
+ *          containsKey/get/put, against counting them in a TermCounter. </li>
+ *     <li> Reducer: parsing "word,count" lines of every partial count file of a category into a HashMap, against
+ *          merging the sorted runs of the category. </li>
+ * </ol>
+ * Reports throughput, and bytes allocated per byte of input.
+ * Usage: java TermCounterBenchmark [directory of segments]
+ */
+public class TermCounterBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        ArrayList<String[]> segments = args.length > 0 ? ShuffleBenchmark.readSegments(args[0]) : ShuffleBenchmark.generateSegments();
+        final ArrayList<ByteBuffer> texts = new ArrayList<ByteBuffer>();
+        int numTextBytes = 0;
+        for (String[] segment : segments) {
+            byte[] text = ShuffleBenchmark.toBytes(segment);
+            texts.add(ByteBuffer.wrap(text));
+            numTextBytes += text.length;
+        }
+
+        System.out.println(String.format("Mapper: %d segments, %,d bytes of text", texts.size(), numTextBytes));
+        TokenizerBenchmark.measure("HashMap<String, Integer>", numTextBytes, new Runnable() {
+            public void run() {
+                for (ByteBuffer text : texts) countWithHashMap(text);
+            }
+        });
+        TokenizerBenchmark.measure("TermCounter", numTextBytes, new Runnable() {
+            public void run() {
+                for (ByteBuffer text : texts) Helper.mapping(text);
+            }
+        });
+
+        // Write the partial counts of every segment both ways: as text lines, and as runs by category.
+        String workingDirectory = Files.createTempDirectory("counter").toString() + "/";
+        try {
+            final String textDirectory = workingDirectory + "text/";
+            final String runDirectory = workingDirectory + "runs/";
+            Directory.createDirectory(textDirectory);
+            Directory.createDirectory(runDirectory);
+            for (int i = 0; i < texts.size(); i++) {
+                TermCounter counts = Helper.mapping(texts.get(i));
+                ArrayList<String> lines = new ArrayList<String>();
+                for (int entry = 0; entry < counts.size(); entry++) {
+                    lines.add(counts.getTerm(entry) + "," + counts.getCount(entry));
+                }
+                TextFile.write(textDirectory + "segment" + i, lines);
+                Helper.writePartialCounts(counts, runDirectory, "segment" + i);
+            }
+
+            // Reducers read all text files, but only count the words of their category: measure one category's
+            // worth of work, i.e. the text of all files divided by the number of categories.
+            final ArrayList<String> categories = MiniGoogleUtilities.generateCategories();
+            long numPartialCountBytes = 0;
+            for (String path : Directory.getFiles(textDirectory)) {
+                numPartialCountBytes += new java.io.File(path).length();
+            }
+            final ArrayList<String[]> partialCounts = new ArrayList<String[]>();
+            for (String path : Directory.getFiles(textDirectory)) {
+                partialCounts.add(TextFile.read(path));
+            }
+
+            System.out.println(String.format("Reducer: %d categories, %,d bytes of partial counts", categories.size(), numPartialCountBytes));
+            TokenizerBenchmark.measure("Lines into HashMap", (int)numPartialCountBytes, new Runnable() {
+                public void run() {
+                    for (String category : categories) {
+                        HashMap<String, Integer> combinedCounts = new HashMap<String, Integer>();
+                        for (String[] lines : partialCounts) {
+                            for (String line : lines) {
+                                String[] parts = line.split(",");
+                                if (!MiniGoogleUtilities.getCategoryOf(parts[0]).equals(category)) continue;
+                                int count = combinedCounts.containsKey(parts[0]) ? combinedCounts.get(parts[0]) : 0;
+                                combinedCounts.put(parts[0], count + Integer.parseInt(parts[1]));
+                            }
+                        }
+                    }
+                }
+            });
+            TokenizerBenchmark.measure("Merge of runs", (int)numPartialCountBytes, new Runnable() {
+                public void run() {
+                    try {
+                        for (String category : categories) {
+                            TermCountRun.Merger merger = Helper.openPartialCounts(runDirectory, category);
+                            try {
+                                while (merger.next()) merger.getTerm();
+                            }
+                            finally {
+                                merger.close();
+                            }
+                        }
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+        }
+        finally {
+            Directory.removeDirectory(workingDirectory);
+        }
+    }
+
+    /**
+     * The mapper's counting before the TermCounter, kept as the baseline.
+     */
+    static HashMap<String, Integer> countWithHashMap(ByteBuffer text) {
+        final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        MiniGoogleUtilities.tokenizer.tokenize(text, new ByteTokenizer.Handler() {
+            byte[] _scratch = new byte[64];
+
+            public void token(ByteBuffer buffer, int start, int length, int hash) {
+                if (length > _scratch.length) _scratch = new byte[Math.max(length, _scratch.length * 2)];
+                for (int i = 0; i < length; i++) _scratch[i] = buffer.get(start + i);
+                String word = new String(_scratch, 0, length, StandardCharsets.US_ASCII);
+
+                int count = counts.containsKey(word) ? counts.get(word) : 0;
+                counts.put(word, count + 1);
+            }
+        });
+        return counts;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+import me.yuhuan.collections.TermCounter;
+import me.yuhuan.io.Directory;
+import me.yuhuan.text.ByteTokenizer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Measures the mapper's word counting on the same text, comparing:
+ * <ol>
+ *     <li> Splitting lines at "\\s+", and checking each word character by character, as the mapper used to. </li>
+ *     <li> Helper.mapping, which tokenizes the bytes with a ByteTokenizer. </li>
+ *     <li> The ByteTokenizer alone, without counting. </li>
+ * </ol>
+ * Both ways of counting must give the same counts. Reports throughput, and bytes allocated per byte of text.
+ * Usage: java TokenizerBenchmark [directory of segments]
+ * Without a directory, synthetic text with punctuation, capitals and non-ASCII words is used.
+ */
+public class TokenizerBenchmark {
+
+    static final int NUM_WORDS = 4000000;
+    static final int NUM_ROUNDS = 5;
+
+    public static void main(String[] args) throws IOException {
+        byte[] text = args.length > 0 ? readText(args[0]) : generateText();
+        final String[] lines = new String(text, StandardCharsets.UTF_8).split("\n");
+
+        if (!splitMapping(lines).equals(toHashMap(Helper.mapping(ByteBuffer.wrap(text))))) {
+            throw new IllegalStateException("The two ways of counting differ. ");
+        }
+
+        System.out.println(String.format("%,d bytes of text, best of %d rounds", text.length, NUM_ROUNDS));
+        final ByteBuffer buffer = ByteBuffer.wrap(text);
+        measure("Split and check words", text.length, new Runnable() {
+            public void run() {
+                splitMapping(lines);
+            }
+        });
+        measure("Helper.mapping", text.length, new Runnable() {
+            public void run() {
+                Helper.mapping(buffer);
+            }
+        });
+        final int[] numTokens = new int[1];
+        measure("ByteTokenizer alone", text.length, new Runnable() {
+            public void run() {
+                MiniGoogleUtilities.tokenizer.tokenize(buffer, new ByteTokenizer.Handler() {
+                    public void token(ByteBuffer buffer, int start, int length, int hash) {
+                        numTokens[0]++;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * The mapper's counting before the ByteTokenizer, kept as the baseline.
+     */
+    static HashMap<String, Integer> splitMapping(String[] lines) {
+        HashMap<String, Integer> counts = new HashMap<String, Integer>();
+        for (String line : lines) {
+            String[] rawWords = line.split("\\s+");
+
+            ArrayList<String> words = new ArrayList<String>();
+            for (String word : rawWords) {
+                if (isWord(word)) words.add(word);
+            }
+
+            for (String word : words) {
+                int count = counts.containsKey(word) ? counts.get(word) : 0;
+                counts.put(word, count + 1);
+            }
+        }
+        return counts;
+    }
+
+    static boolean isWord(String word) {
+        if (word.length() < 1) return false;
+        for (Character c : word.toCharArray()) {
+            if (!MiniGoogleUtilities.contains(MiniGoogleUtilities.WORD_CHARACTERS, c)) return false;
+        }
+        return true;
+    }
+
+    static HashMap<String, Integer> toHashMap(TermCounter counts) {
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        for (int entry = 0; entry < counts.size(); entry++) {
+            map.put(counts.getTerm(entry), counts.getCount(entry));
+        }
+        return map;
+    }
+
+    static void measure(String name, int numBytes, Runnable run) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up.
+        run.run();
+        run.run();
+
+        long bestTime = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int i = 0; i < NUM_ROUNDS; i++) {
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            run.run();
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            allocated += threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        }
+
+        double megabytesPerSecond = numBytes / 1e6 / (bestTime / 1e9);
+        double allocatedPerByte = (double)allocated / NUM_ROUNDS / numBytes;
+        System.out.println(String.format("%-24s %8.1f MB/s %8.2f bytes allocated per byte", name, megabytesPerSecond, allocatedPerByte));
+    }
+
+    static byte[] readText(String pathToDirectory) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String path : Directory.getFiles(pathToDirectory)) {
+            text.append(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8)).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] generateText() {
+        String[] noise = { "The", "fox,", "(and)", "na\u00efve", "caf\u00e9", "--", "e-mail", "x2", "1999", "C++" };
+        ArrayList<String[]> segments = ShuffleBenchmark.generateSegments();
+        Random random = new Random(7);
+
+        StringBuilder text = new StringBuilder();
+        int numWords = 0;
+        for (String[] segment : segments) {
+            for (String line : segment) {
+                for (String word : line.split(" ")) {
+                    if (random.nextInt(10) == 0) text.append(noise[random.nextInt(noise.length)]);
+                    else text.append(word);
+                    text.append(random.nextInt(20) == 0 ? "  \t" : " ");
+                    if (++numWords == NUM_WORDS) return text.toString().getBytes(StandardCharsets.UTF_8);
+                }
+                text.append('\n');
+            }
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.collections;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A binary min-heap of items with integer keys, plus an index from each item to its position in the heap.
+ * The index makes it possible to change the key of, or remove, any item in O(log n), instead of searching for it.
+ * Not thread-safe.
+ * @param <T> Type of the items. Items must have proper equals() and hashCode(), and be unique in the heap.
+ */
+public class IndexedMinHeap<T> {
+
+    ArrayList<T> _items;
+    int[] _keys;
+    HashMap<T, Integer> _positions;
+
+    public IndexedMinHeap() {
+        _items = new ArrayList<T>();
+        _keys = new int[16];
+        _positions = new HashMap<T, Integer>();
+    }
+
+    public int size() {
+        return _items.size();
+    }
+
+    public boolean isEmpty() {
+        return _items.isEmpty();
+    }
+
+    public boolean contains(T item) {
+        return _positions.containsKey(item);
+    }
+
+    /**
+     * Gets the item with the smallest key, or null if the heap is empty.
+     */
+    public T peek() {
+        return _items.isEmpty() ? null : _items.get(0);
+    }
+
+    /**
+     * Gets the smallest key. The heap must not be empty.
+     */
+    public int peekKey() {
+        return _keys[0];
+    }
+
+    public int getKey(T item) {
+        return _keys[_positions.get(item)];
+    }
+
+    /**
+     * Adds an item. Does nothing if the item is already in the heap.
+     */
+    public void add(T item, int key) {
+        if (_positions.containsKey(item)) return;
+        int position = _items.size();
+        if (position == _keys.length) {
+            int[] keys = new int[_keys.length * 2];
+            System.arraycopy(_keys, 0, keys, 0, _keys.length);
+            _keys = keys;
+        }
+        _items.add(item);
+        _keys[position] = key;
+        _positions.put(item, position);
+        siftUp(position);
+    }
+
+    /**
+     * Removes an item.
+     * @return Whether the item was in the heap.
+     */
+    public boolean remove(T item) {
+        Integer position = _positions.remove(item);
+        if (position == null) return false;
+
+        int last = _items.size() - 1;
+        T lastItem = _items.remove(last);
+        if (position != last) {
+            _items.set(position, lastItem);
+            _keys[position] = _keys[last];
+            _positions.put(lastItem, position);
+            siftDown(siftUp(position));
+        }
+        return true;
+    }
+
+    /**
+     * Changes the key of an item by some amount.
+     * @return Whether the item was in the heap.
+     */
+    public boolean addToKey(T item, int delta) {
+        Integer position = _positions.get(item);
+        if (position == null) return false;
+        _keys[position] += delta;
+        if (delta < 0) siftUp(position);
+        else siftDown(position);
+        return true;
+    }
+
+    /**
+     * Gets the items and their keys, in heap order.
+     */
+    public ArrayList<Pair<T, Integer>> toList() {
+        ArrayList<Pair<T, Integer>> result = new ArrayList<Pair<T, Integer>>();
+        for (int i = 0; i < _items.size(); i++) {
+            result.add(new Pair<T, Integer>(_items.get(i), _keys[i]));
+        }
+        return result;
+    }
+
+    /**
+     * @return The final position of the item.
+     */
+    private int siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (_keys[parent] <= _keys[position]) break;
+            swap(position, parent);
+            position = parent;
+        }
+        return position;
+    }
+
+    private void siftDown(int position) {
+        int size = _items.size();
+        while (true) {
+            int left = 2 * position + 1;
+            if (left >= size) break;
+            int smallest = left;
+            int right = left + 1;
+            if (right < size && _keys[right] < _keys[left]) smallest = right;
+            if (_keys[position] <= _keys[smallest]) break;
+            swap(position, smallest);
+            position = smallest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        T item = _items.get(i);
+        _items.set(i, _items.get(j));
+        _items.set(j, item);
+
+        int key = _keys[i];
+        _keys[i] = _keys[j];
+        _keys[j] = key;
+
+        _positions.put(_items.get(i), i);
+        _positions.put(_items.get(j), j);
+    }
+}
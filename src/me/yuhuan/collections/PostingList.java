@@ -0,0 +1,169 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.collections;
+
+/**
+ * A list of postings, i.e. (document ID, frequency) pairs, kept in two int arrays: 8 bytes per posting, with no
+ * object per posting.
+ * Clearing the list keeps its arrays, so that filling the same list again does not allocate.
+ */
+public class PostingList {
+
+    static final int INITIAL_CAPACITY = 16;
+
+    int _size;
+    int[] _documentIds;
+    int[] _frequencies;
+
+    public PostingList() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public PostingList(int capacity) {
+        _documentIds = new int[Math.max(1, capacity)];
+        _frequencies = new int[Math.max(1, capacity)];
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public boolean isEmpty() {
+        return _size == 0;
+    }
+
+    public int getDocumentId(int i) {
+        return _documentIds[i];
+    }
+
+    public int getFrequency(int i) {
+        return _frequencies[i];
+    }
+
+    public void clear() {
+        _size = 0;
+    }
+
+    public void add(int documentId, int frequency) {
+        ensureCapacity(_size + 1);
+        _documentIds[_size] = documentId;
+        _frequencies[_size] = frequency;
+        _size++;
+    }
+
+    /**
+     * Appends all postings of another list.
+     */
+    public void addAll(PostingList that) {
+        ensureCapacity(_size + that._size);
+        System.arraycopy(that._documentIds, 0, _documentIds, _size, that._size);
+        System.arraycopy(that._frequencies, 0, _frequencies, _size, that._size);
+        _size += that._size;
+    }
+
+    /**
+     * Sorts the postings by document ID. Postings of the same document keep their order.
+     */
+    public void sortByDocumentId() {
+        boolean isSorted = true;
+        for (int i = 1; i < _size && isSorted; i++) {
+            if (_documentIds[i - 1] > _documentIds[i]) isSorted = false;
+        }
+        if (isSorted) return;
+        sort(false);
+    }
+
+    /**
+     * Drops all but the last posting of each document. The postings must be ordered by document ID.
+     */
+    public void keepLastOfEachDocument() {
+        int size = 0;
+        for (int i = 0; i < _size; i++) {
+            if (i + 1 < _size && _documentIds[i + 1] == _documentIds[i]) continue;
+            _documentIds[size] = _documentIds[i];
+            _frequencies[size] = _frequencies[i];
+            size++;
+        }
+        _size = size;
+    }
+
+    /**
+     * Sorts the postings by frequency, highest first, i.e. by impact. Postings of the same frequency keep their
+     * order, so postings ordered by document ID stay so within each frequency.
+     */
+    public void sortByFrequency() {
+        boolean isSorted = true;
+        for (int i = 1; i < _size && isSorted; i++) {
+            if (_frequencies[i - 1] < _frequencies[i]) isSorted = false;
+        }
+        if (isSorted) return;
+        sort(true);
+    }
+
+    /**
+     * Keeps the first postings of the list, and drops the rest.
+     */
+    public void truncate(int size) {
+        if (size < _size) _size = Math.max(0, size);
+    }
+
+    /**
+     * Merge sort, from runs of one posting up, between the arrays and a spare pair.
+     */
+    void sort(boolean byFrequency) {
+        int[] documentIds = _documentIds;
+        int[] frequencies = _frequencies;
+        int[] spareDocumentIds = new int[_documentIds.length];
+        int[] spareFrequencies = new int[_frequencies.length];
+        for (int width = 1; width < _size; width *= 2) {
+            for (int start = 0; start < _size; start += 2 * width) {
+                int middle = Math.min(start + width, _size);
+                int end = Math.min(start + 2 * width, _size);
+                int i = start;
+                int j = middle;
+                for (int k = start; k < end; k++) {
+                    boolean isLeftFirst = i < middle && (j >= end || (byFrequency
+                            ? frequencies[i] >= frequencies[j]
+                            : documentIds[i] <= documentIds[j]));
+                    int from = isLeftFirst ? i++ : j++;
+                    spareDocumentIds[k] = documentIds[from];
+                    spareFrequencies[k] = frequencies[from];
+                }
+            }
+            int[] swap = documentIds;
+            documentIds = spareDocumentIds;
+            spareDocumentIds = swap;
+            swap = frequencies;
+            frequencies = spareFrequencies;
+            spareFrequencies = swap;
+        }
+        _documentIds = documentIds;
+        _frequencies = frequencies;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity <= _documentIds.length) return;
+        int newCapacity = Math.max(capacity, _documentIds.length * 2);
+        int[] documentIds = new int[newCapacity];
+        int[] frequencies = new int[newCapacity];
+        System.arraycopy(_documentIds, 0, documentIds, 0, _size);
+        System.arraycopy(_frequencies, 0, frequencies, 0, _size);
+        _documentIds = documentIds;
+        _frequencies = frequencies;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[");
+        for (int i = 0; i < _size; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append("(" + _documentIds[i] + ", " + _frequencies[i] + ")");
+        }
+        builder.append("]");
+        return builder.toString();
+    }
+}
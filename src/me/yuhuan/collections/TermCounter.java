@@ -0,0 +1,294 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.collections;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Counts terms given as byte slices, e.g. tokens of a buffer, without creating a String or an Integer per token.
+ * The bytes of each distinct term are copied once into an arena; an open-addressing table with linear probing maps
+ * the terms to their entries, and counts are incremented in place.
+ * Entries are numbered 0, 1, ... in the order their terms were first seen. Not thread-safe.
+ */
+public class TermCounter {
+
+    static final int INITIAL_CAPACITY = 1024;
+    static final int INITIAL_ARENA_SIZE = 16 * 1024;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * For each slot, 1 + the entry in it, or 0 if it is empty. The length is a power of two.
+     */
+    int[] _slots;
+    int _mask;
+
+    int _size;
+    int[] _hashes;
+    int[] _offsets;
+    int[] _lengths;
+    int[] _counts;
+
+    byte[] _arena;
+    int _arenaSize;
+
+    public TermCounter() {
+        _slots = new int[INITIAL_CAPACITY * 2];
+        _mask = _slots.length - 1;
+        _hashes = new int[INITIAL_CAPACITY];
+        _offsets = new int[INITIAL_CAPACITY];
+        _lengths = new int[INITIAL_CAPACITY];
+        _counts = new int[INITIAL_CAPACITY];
+        _arena = new byte[INITIAL_ARENA_SIZE];
+    }
+
+    /**
+     * Hashes a term's bytes the way String.hashCode() hashes its characters, so that an ASCII term hashes the same
+     * either way.
+     */
+    public static int hash(byte[] bytes, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + (bytes[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    /**
+     * Number of distinct terms.
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Adds to the count of a term in a buffer.
+     * @param hash The hash of the term, as hash() computes it.
+     * @return The entry of the term.
+     */
+    public int add(ByteBuffer buffer, int start, int length, int hash, int delta) {
+        int slot = spread(hash) & _mask;
+        while (true) {
+            int entry = _slots[slot] - 1;
+            if (entry < 0) break;
+            if (_hashes[entry] == hash && _lengths[entry] == length && equals(entry, buffer, start)) {
+                _counts[entry] += delta;
+                return entry;
+            }
+            slot = (slot + 1) & _mask;
+        }
+
+        int entry = newEntry(slot, length, hash, delta);
+        for (int i = 0; i < length; i++) {
+            _arena[_offsets[entry] + i] = buffer.get(start + i);
+        }
+        return entry;
+    }
+
+    /**
+     * Adds to the count of a term in an array.
+     * @param hash The hash of the term, as hash() computes it.
+     * @return The entry of the term.
+     */
+    public int add(byte[] bytes, int start, int length, int hash, int delta) {
+        int slot = spread(hash) & _mask;
+        while (true) {
+            int entry = _slots[slot] - 1;
+            if (entry < 0) break;
+            if (_hashes[entry] == hash && _lengths[entry] == length && equals(entry, bytes, start)) {
+                _counts[entry] += delta;
+                return entry;
+            }
+            slot = (slot + 1) & _mask;
+        }
+
+        int entry = newEntry(slot, length, hash, delta);
+        System.arraycopy(bytes, start, _arena, _offsets[entry], length);
+        return entry;
+    }
+
+    public int add(String term, int delta) {
+        byte[] bytes = term.getBytes(UTF8);
+        return add(bytes, 0, bytes.length, hash(bytes, 0, bytes.length), delta);
+    }
+
+    /**
+     * Adds the counts of another counter to this one.
+     */
+    public void addAll(TermCounter other) {
+        for (int entry = 0; entry < other._size; entry++) {
+            add(other._arena, other._offsets[entry], other._lengths[entry], other._hashes[entry], other._counts[entry]);
+        }
+    }
+
+    /**
+     * Gets the count of a term, or 0 if it was never added.
+     */
+    public int get(String term) {
+        byte[] bytes = term.getBytes(UTF8);
+        int hash = hash(bytes, 0, bytes.length);
+        int slot = spread(hash) & _mask;
+        while (true) {
+            int entry = _slots[slot] - 1;
+            if (entry < 0) return 0;
+            if (_hashes[entry] == hash && _lengths[entry] == bytes.length && equals(entry, bytes, 0)) {
+                return _counts[entry];
+            }
+            slot = (slot + 1) & _mask;
+        }
+    }
+
+    /**
+     * Gets the term of an entry. Creates a String each time.
+     */
+    public String getTerm(int entry) {
+        return new String(_arena, _offsets[entry], _lengths[entry], UTF8);
+    }
+
+    public int getCount(int entry) {
+        return _counts[entry];
+    }
+
+    /**
+     * Gives access to the bytes of the terms: the term of an entry is the slice of getArena() that starts at
+     * getTermOffset(entry) and is getTermLength(entry) long. The arena is replaced as it grows, so get it again
+     * after adding terms.
+     */
+    public byte[] getArena() {
+        return _arena;
+    }
+
+    public int getTermOffset(int entry) {
+        return _offsets[entry];
+    }
+
+    public int getTermLength(int entry) {
+        return _lengths[entry];
+    }
+
+    /**
+     * Gets the entries sorted by the bytes of their terms, compared as unsigned. For UTF-8, that is the order of the
+     * terms' code points, which is also String order unless there are characters outside the BMP.
+     */
+    public int[] getSortedEntries() {
+        int[] entries = new int[_size];
+        for (int i = 0; i < _size; i++) entries[i] = i;
+        sort(entries, new int[_size], 0, _size);
+        return entries;
+    }
+
+    /**
+     * Compares two byte slices as unsigned bytes.
+     */
+    public static int compare(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+        int length = Math.min(aLength, bLength);
+        for (int i = 0; i < length; i++) {
+            int difference = (a[aStart + i] & 0xFF) - (b[bStart + i] & 0xFF);
+            if (difference != 0) return difference;
+        }
+        return aLength - bLength;
+    }
+
+    public void clear() {
+        for (int i = 0; i < _slots.length; i++) _slots[i] = 0;
+        _size = 0;
+        _arenaSize = 0;
+    }
+
+    private int compareEntries(int a, int b) {
+        return compare(_arena, _offsets[a], _lengths[a], _arena, _offsets[b], _lengths[b]);
+    }
+
+    /**
+     * Merge sort of entries[from, to), using scratch of the same length.
+     */
+    private void sort(int[] entries, int[] scratch, int from, int to) {
+        if (to - from < 2) return;
+        int middle = (from + to) >>> 1;
+        sort(entries, scratch, from, middle);
+        sort(entries, scratch, middle, to);
+        if (compareEntries(entries[middle - 1], entries[middle]) <= 0) return;
+
+        System.arraycopy(entries, from, scratch, from, to - from);
+        int i = from;
+        int j = middle;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < middle && compareEntries(scratch[i], scratch[j]) <= 0)) entries[k] = scratch[i++];
+            else entries[k] = scratch[j++];
+        }
+    }
+
+    private boolean equals(int entry, ByteBuffer buffer, int start) {
+        int offset = _offsets[entry];
+        for (int i = 0; i < _lengths[entry]; i++) {
+            if (_arena[offset + i] != buffer.get(start + i)) return false;
+        }
+        return true;
+    }
+
+    private boolean equals(int entry, byte[] bytes, int start) {
+        int offset = _offsets[entry];
+        for (int i = 0; i < _lengths[entry]; i++) {
+            if (_arena[offset + i] != bytes[start + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Creates an entry in an empty slot, with room in the arena for its term, which the caller copies in.
+     */
+    private int newEntry(int slot, int length, int hash, int count) {
+        if (_size == _hashes.length) growEntries();
+        if (_arenaSize + length > _arena.length) {
+            byte[] arena = new byte[Math.max(_arenaSize + length, _arena.length * 2)];
+            System.arraycopy(_arena, 0, arena, 0, _arenaSize);
+            _arena = arena;
+        }
+
+        int entry = _size++;
+        _hashes[entry] = hash;
+        _offsets[entry] = _arenaSize;
+        _lengths[entry] = length;
+        _counts[entry] = count;
+        _arenaSize += length;
+        _slots[slot] = entry + 1;
+
+        // Keep the table at most half full.
+        if (_size * 2 > _slots.length) rehash();
+        return entry;
+    }
+
+    private void growEntries() {
+        int capacity = _hashes.length * 2;
+        _hashes = copyOf(_hashes, capacity);
+        _offsets = copyOf(_offsets, capacity);
+        _lengths = copyOf(_lengths, capacity);
+        _counts = copyOf(_counts, capacity);
+    }
+
+    private void rehash() {
+        _slots = new int[_slots.length * 2];
+        _mask = _slots.length - 1;
+        for (int entry = 0; entry < _size; entry++) {
+            int slot = spread(_hashes[entry]) & _mask;
+            while (_slots[slot] != 0) slot = (slot + 1) & _mask;
+            _slots[slot] = entry + 1;
+        }
+    }
+
+    /**
+     * Mixes the high bits of a hash into the low bits, which pick the slot.
+     */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+}
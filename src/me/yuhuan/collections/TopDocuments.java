@@ -0,0 +1,137 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.collections;
+
+/**
+ * The k documents of the highest scores offered to it, kept in a min-heap of (document ID, score) pairs in two
+ * arrays, so that the lowest score kept, the one a new document has to beat, is at hand.
+ * Of documents with equal scores, the one of the lower ID is kept.
+ */
+public class TopDocuments {
+
+    int _capacity;
+    int _size;
+    int[] _documentIds;
+    float[] _scores;
+
+    /**
+     * @param capacity The number of documents to keep, k.
+     */
+    public TopDocuments(int capacity) {
+        _capacity = capacity;
+        _documentIds = new int[Math.max(1, capacity)];
+        _scores = new float[Math.max(1, capacity)];
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    public boolean isFull() {
+        return _size >= _capacity;
+    }
+
+    /**
+     * The score a document has to beat to be kept: the lowest score kept once k documents are, and 0 before.
+     */
+    public float getThreshold() {
+        return isFull() && _size > 0 ? _scores[0] : 0;
+    }
+
+    /**
+     * Keeps a document if it is among the k of the highest scores so far.
+     * @return Whether the document is kept.
+     */
+    public boolean offer(int documentId, float score) {
+        if (_capacity == 0) return false;
+        if (_size < _capacity) {
+            _documentIds[_size] = documentId;
+            _scores[_size] = score;
+            _size++;
+            siftUp(_size - 1);
+            return true;
+        }
+        if (!isLower(0, documentId, score)) return false;
+        _documentIds[0] = documentId;
+        _scores[0] = score;
+        siftDown(0, _size);
+        return true;
+    }
+
+    /**
+     * Whether the document at a position ranks lower than a document with a score.
+     */
+    boolean isLower(int i, int documentId, float score) {
+        return _scores[i] < score || (_scores[i] == score && _documentIds[i] > documentId);
+    }
+
+    void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!isLower(i, _documentIds[parent], _scores[parent])) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    void siftDown(int i, int size) {
+        while (true) {
+            int lowest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && isLower(left, _documentIds[lowest], _scores[lowest])) lowest = left;
+            if (right < size && isLower(right, _documentIds[lowest], _scores[lowest])) lowest = right;
+            if (lowest == i) return;
+            swap(i, lowest);
+            i = lowest;
+        }
+    }
+
+    void swap(int i, int j) {
+        int documentId = _documentIds[i];
+        _documentIds[i] = _documentIds[j];
+        _documentIds[j] = documentId;
+        float score = _scores[i];
+        _scores[i] = _scores[j];
+        _scores[j] = score;
+    }
+
+    /**
+     * Sorts the documents kept from the highest score down, for getDocumentId() and getScore(). Offering documents
+     * after this is not allowed.
+     */
+    public void sort() {
+        for (int end = _size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        _capacity = _size;
+    }
+
+    public int getDocumentId(int i) {
+        return _documentIds[i];
+    }
+
+    public float getScore(int i) {
+        return _scores[i];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[");
+        for (int i = 0; i < _size; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append("(" + _documentIds[i] + ", " + _scores[i] + ")");
+        }
+        builder.append("]");
+        return builder.toString();
+    }
+}
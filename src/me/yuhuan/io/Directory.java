@@ -12,11 +12,14 @@ import java.util.ArrayList;
  * Created by Yuhuan Jiang on 11/28/14.
  */
 public class Directory {
+    /**
+     * Gets the files in a directory, except temporary files still being written.
+     */
     public static ArrayList<String> getFiles(String pathToDirectory) {
         ArrayList<String> result = new ArrayList<String>();
         File directory = new File(pathToDirectory);
         for (File file : directory.listFiles()) {
-            if (file.isFile()) result.add(file.getAbsolutePath());
+            if (file.isFile() && !me.yuhuan.io.File.isTemporary(file.getName())) result.add(file.getAbsolutePath());
         }
         return result;
     }
@@ -34,11 +37,17 @@ public class Directory {
         return (new File(pathToDirectory)).mkdir();
     }
 
+    /**
+     * Removes a directory and everything in it.
+     */
     public static void removeDirectory(String pathToDirectory) {
-        ArrayList<String> files = getFiles(pathToDirectory);
-        for (String file : files) {
-            me.yuhuan.io.File.deleteFile(file);
+        File directory = new File(pathToDirectory);
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isDirectory()) removeDirectory(file.getPath());
+            else file.delete();
         }
-        me.yuhuan.io.File.deleteFile(pathToDirectory);
+        directory.delete();
     }
 }
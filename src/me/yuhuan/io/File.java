@@ -5,10 +5,24 @@
 
 package me.yuhuan.io;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Created by Yuhuan Jiang on 11/30/14.
  */
 public class File {
+
+    public static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+
+    static final AtomicLong _temporaryFileCounter = new AtomicLong();
+
     public static String extractFileNameFromPath(String path) {
         java.io.File f = new java.io.File(path);
         return f.getName();
@@ -18,4 +32,53 @@ public class File {
         java.io.File file = new java.io.File(path);
         if (file.exists()) file.delete();
     }
+
+    /**
+     * Gets a path for a temporary file next to a file, to be written and then moved over the file. The name is
+     * unique within the process, starts with a dot and ends with TEMPORARY_FILE_SUFFIX, so that directory listings
+     * can skip it.
+     */
+    public static String createTemporaryPath(String path) {
+        java.io.File f = new java.io.File(path);
+        String name = "." + f.getName() + "." + System.nanoTime() + "-" + _temporaryFileCounter.incrementAndGet() + TEMPORARY_FILE_SUFFIX;
+        java.io.File parent = f.getParentFile();
+        return parent == null ? name : new java.io.File(parent, name).getPath();
+    }
+
+    public static boolean isTemporary(String path) {
+        String name = extractFileNameFromPath(path);
+        return name.startsWith(".") && name.endsWith(TEMPORARY_FILE_SUFFIX);
+    }
+
+    /**
+     * Moves a file over another in one step, so that readers see either the old file or the new one, never a
+     * partly written one.
+     */
+    public static void replace(String sourcePath, String targetPath) throws IOException {
+        try {
+            Files.move(Paths.get(sourcePath), Paths.get(targetPath), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(Paths.get(sourcePath), Paths.get(targetPath), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Flushes the directory that holds a file to the disk, so that a file created or moved there survives a crash.
+     * Does nothing where directories cannot be opened, as on Windows.
+     */
+    public static void syncDirectoryOf(String path) {
+        java.io.File parent = new java.io.File(path).getAbsoluteFile().getParentFile();
+        if (parent == null) return;
+        try {
+            FileChannel directory = FileChannel.open(parent.toPath(), StandardOpenOption.READ);
+            try {
+                directory.force(true);
+            }
+            finally {
+                directory.close();
+            }
+        }
+        catch (IOException e) { }
+    }
 }
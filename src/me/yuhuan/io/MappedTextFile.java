@@ -0,0 +1,114 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a text file by mapping it into memory, so that its bytes are read straight from the page cache, without
+ * being copied onto the heap or decoded into Strings.
+ * A mapping stays valid after the file is closed, until the buffer is garbage collected. The file must not be
+ * truncated while it is mapped.
+ */
+public class MappedTextFile {
+
+    /**
+     * The largest range that one buffer can map.
+     */
+    public static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * Maps a whole file.
+     * @throws IOException If the file is larger than MAX_MAPPING_SIZE; map it in ranges instead.
+     */
+    public static ByteBuffer map(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            long size = file.length();
+            if (size > MAX_MAPPING_SIZE) throw new IOException(path + " is too large to be mapped at once. ");
+            return map(file.getChannel(), 0, size);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps a range of a file. The range is cut at the end of the file.
+     * @param start Offset of the first byte.
+     * @param length Number of bytes, at most MAX_MAPPING_SIZE.
+     */
+    public static ByteBuffer map(String path, long start, long length) throws IOException {
+        if (start < 0 || length < 0 || length > MAX_MAPPING_SIZE) {
+            throw new IllegalArgumentException("Cannot map " + length + " bytes at " + start);
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            long end = Math.min(file.length(), start + length);
+            return map(file.getChannel(), Math.min(start, end), end - Math.min(start, end));
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps the lines that start in a range of a file: a line cut by the start of the range is skipped, and a line
+     * cut by its end is read to its end. Ranges that tile a file thus read each line once. A line that overhangs
+     * the end of the range by more than MAX_MAPPING_SIZE - length bytes is cut.
+     * @param start Offset of the first byte of the range.
+     * @param length Number of bytes in the range, less than MAX_MAPPING_SIZE.
+     * @return The lines, between the position and the limit of the buffer.
+     */
+    public static ByteBuffer mapLines(String path, long start, long length) throws IOException {
+        if (start < 0 || length < 0 || length >= MAX_MAPPING_SIZE) {
+            throw new IllegalArgumentException("Cannot map " + length + " bytes at " + start);
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            long size = file.length();
+            long end = Math.min(size, start + length);
+
+            // Map from the byte before the range, to tell whether the range starts a line.
+            long mapStart = Math.min(start == 0 ? 0 : start - 1, size);
+            ByteBuffer buffer = map(file.getChannel(), mapStart, Math.min(size - mapStart, MAX_MAPPING_SIZE));
+
+            int first = start == 0 ? 0 : findNextLineStart(buffer, 0);
+            int rangeEnd = (int)(end - mapStart);
+            if (first >= rangeEnd) {
+                // No line starts in the range.
+                buffer.position(buffer.limit());
+                return buffer;
+            }
+            int last = end == size ? buffer.limit() : findNextLineStart(buffer, rangeEnd - 1);
+            buffer.limit(last);
+            buffer.position(first);
+            return buffer;
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Finds the start of the line after a position, i.e. the index after the next '\n' at or after the position.
+     * @return The index, or the limit of the buffer if there is no '\n' left.
+     */
+    public static int findNextLineStart(ByteBuffer buffer, int position) {
+        int limit = buffer.limit();
+        for (int i = position; i < limit; i++) {
+            if (buffer.get(i) == '\n') return i + 1;
+        }
+        return limit;
+    }
+
+    private static ByteBuffer map(FileChannel channel, long start, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.io;
+
+import me.yuhuan.collections.PostingList;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Compressed postings: (document ID, frequency) pairs ordered by document ID, in blocks of BLOCK_SIZE postings.
+ * A list is stored as the number of postings, then each full block as a header and two bit-packed arrays:
+ * <pre>
+ *     varint  last document ID of the block, less the last document ID of the previous block (or 0)
+ *     varint  largest frequency in the block
+ *     byte    bits per document ID gap
+ *     byte    bits per frequency
+ *             document ID gaps: each document ID less the one before it (the last of the previous block, or 0,
+ *             for the first), in as many bits each, low bits first
+ *             frequencies, in as many bits each, low bits first
+ * </pre>
+ * The header tells the size of the block, so that a reader can skip a block, e.g. one whose documents all come
+ * before the one it looks for, or whose frequencies are all too low, without decoding it.
+ * The postings left over after the full blocks, if any, make a last block stored as (document ID gap, frequency)
+ * VarInt pairs, with no header, so that a short list, such as the one posting of a term in a newly reduced document,
+ * takes no more room than its VarInts.
+ */
+public class PostingsCodec {
+
+    public static final int BLOCK_SIZE = 128;
+
+    /**
+     * Writes a list of postings. The postings must be ordered by document ID; equal IDs may repeat.
+     */
+    public static void write(DataOutput output, PostingList postings) throws IOException {
+        int size = postings.size();
+        VarInt.write(output, size);
+        int[] gaps = new int[Math.min(size, BLOCK_SIZE)];
+        int[] frequencies = new int[gaps.length];
+        int previousDocumentId = 0;
+        for (int start = 0; start < size; start += BLOCK_SIZE) {
+            int count = Math.min(BLOCK_SIZE, size - start);
+            if (count < BLOCK_SIZE) {
+                for (int i = start; i < size; i++) {
+                    int documentId = postings.getDocumentId(i);
+                    if (documentId < previousDocumentId) {
+                        throw new IllegalArgumentException("Postings are not ordered by document ID at " + i);
+                    }
+                    VarInt.write(output, documentId - previousDocumentId);
+                    VarInt.write(output, postings.getFrequency(i));
+                    previousDocumentId = documentId;
+                }
+                break;
+            }
+
+            int blockStartDocumentId = previousDocumentId;
+            int gapBits = 0;
+            int frequencyBits = 0;
+            int maxFrequency = 0;
+            for (int i = 0; i < count; i++) {
+                int documentId = postings.getDocumentId(start + i);
+                if (documentId < previousDocumentId) {
+                    throw new IllegalArgumentException("Postings are not ordered by document ID at " + (start + i));
+                }
+                gaps[i] = documentId - previousDocumentId;
+                frequencies[i] = postings.getFrequency(start + i);
+                gapBits |= gaps[i];
+                frequencyBits |= frequencies[i];
+                maxFrequency = Math.max(maxFrequency, frequencies[i]);
+                previousDocumentId = documentId;
+            }
+
+            VarInt.write(output, previousDocumentId - blockStartDocumentId);
+            VarInt.write(output, maxFrequency);
+            output.writeByte(bitsFor(gapBits));
+            output.writeByte(bitsFor(frequencyBits));
+            pack(output, gaps, count, bitsFor(gapBits));
+            pack(output, frequencies, count, bitsFor(frequencyBits));
+        }
+    }
+
+    /**
+     * Writes the first postings of a list ordered by impact: by frequency, highest first, and by document ID within a
+     * frequency. Layout:
+     * <pre>
+     *     varint  number of postings
+     *             each posting as (varint frequency drop, varint document ID): the frequency less the one after it
+     *             (the first frequency itself, for the first), and the document ID less the one before it if the
+     *             frequency did not drop, or the document ID itself if it did
+     * </pre>
+     * @param count Number of postings to write, from the first.
+     */
+    public static void writeImpacts(DataOutput output, PostingList postings, int count) throws IOException {
+        VarInt.write(output, count);
+        int previousFrequency = 0;
+        int previousDocumentId = 0;
+        for (int i = 0; i < count; i++) {
+            int frequency = postings.getFrequency(i);
+            int documentId = postings.getDocumentId(i);
+            if (i > 0 && (frequency > previousFrequency || (frequency == previousFrequency && documentId < previousDocumentId))) {
+                throw new IllegalArgumentException("Postings are not ordered by impact at " + i);
+            }
+            VarInt.write(output, i == 0 ? frequency : previousFrequency - frequency);
+            VarInt.write(output, i > 0 && frequency == previousFrequency ? documentId - previousDocumentId : documentId);
+            previousFrequency = frequency;
+            previousDocumentId = documentId;
+        }
+    }
+
+    /**
+     * Reads the first postings of a list written by writeImpacts(), and appends them to a list.
+     * @param buffer A buffer holding the list. Only its absolute positions are used.
+     * @param position Where the list starts.
+     * @param limit Number of postings to read at most.
+     * @return Number of postings in the stored list, which may be more than were read.
+     */
+    public static int readImpacts(ByteBuffer buffer, int position, int limit, PostingList postings) {
+        ByteBuffer input = buffer.duplicate();
+        input.position(position);
+        int size = VarInt.read(input);
+        int count = Math.min(size, limit);
+        postings.ensureCapacity(postings.size() + count);
+        int frequency = 0;
+        int documentId = 0;
+        for (int i = 0; i < count; i++) {
+            int drop = VarInt.read(input);
+            frequency = i == 0 ? drop : frequency - drop;
+            documentId = i > 0 && drop == 0 ? documentId + VarInt.read(input) : VarInt.read(input);
+            postings.add(documentId, frequency);
+        }
+        return size;
+    }
+
+    /**
+     * Number of bits to hold a value, or all values OR-ed together.
+     */
+    static int bitsFor(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    static int packedSize(int count, int bits) {
+        return (int)(((long)count * bits + 7) / 8);
+    }
+
+    static void pack(DataOutput output, int[] values, int count, int bits) throws IOException {
+        long pending = 0;
+        int numPendingBits = 0;
+        for (int i = 0; i < count; i++) {
+            pending |= (values[i] & 0xFFFFFFFFL) << numPendingBits;
+            numPendingBits += bits;
+            while (numPendingBits >= 8) {
+                output.writeByte((int)pending);
+                pending >>>= 8;
+                numPendingBits -= 8;
+            }
+        }
+        if (numPendingBits > 0) output.writeByte((int)pending);
+    }
+
+    /**
+     * Unpacks values of a number of bits each. The buffer must be little-endian; values are read 8 bytes at a time
+     * where the buffer has them.
+     */
+    static void unpack(ByteBuffer buffer, int position, int[] values, int count, int bits) {
+        if (bits == 0) {
+            for (int i = 0; i < count; i++) values[i] = 0;
+            return;
+        }
+        long mask = bits == 32 ? 0xFFFFFFFFL : (1L << bits) - 1;
+        int lastWordStart = buffer.limit() - 8;
+        long bitPosition = 0;
+        for (int i = 0; i < count; i++, bitPosition += bits) {
+            int byteAt = position + (int)(bitPosition >>> 3);
+            int shift = (int)(bitPosition & 7);
+            long word;
+            if (byteAt <= lastWordStart) {
+                word = buffer.getLong(byteAt);
+            }
+            else {
+                word = 0;
+                for (int j = 0; byteAt + j < buffer.limit() && j < 8; j++) word |= (buffer.get(byteAt + j) & 0xFFL) << (8 * j);
+            }
+            values[i] = (int)((word >>> shift) & mask);
+        }
+    }
+
+    /**
+     * Reads a list of postings written by write(), block by block or posting by posting, straight from a buffer.
+     * A block is decoded only when its postings are asked for.
+     */
+    public static class Decoder {
+        ByteBuffer _buffer;
+        int _size;
+        int _numPostingsLeft;
+
+        /**
+         * The current block: its header, where its packed arrays start, and, once decoded, its postings.
+         */
+        int _blockSize;
+        int _blockLastDocumentId;
+        int _blockMaxFrequency;
+        int _gapBits;
+        int _frequencyBits;
+        int _blockDataStart;
+        boolean _isBlockDecoded;
+        int[] _documentIds;
+        int[] _frequencies;
+
+        /**
+         * The current posting in the block, -1 before the first.
+         */
+        int _index;
+
+        /**
+         * @param buffer A buffer holding the list. Only its absolute positions are used.
+         * @param position Where the list starts.
+         */
+        public Decoder(ByteBuffer buffer, int position) {
+            _buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            _buffer.position(position);
+            _size = VarInt.read(_buffer);
+            _numPostingsLeft = _size;
+            _blockDataStart = _buffer.position();
+            _documentIds = new int[Math.min(_size, BLOCK_SIZE)];
+            _frequencies = new int[_documentIds.length];
+            _index = -1;
+        }
+
+        /**
+         * Number of postings in the list.
+         */
+        public int size() {
+            return _size;
+        }
+
+        /**
+         * Moves to the next block, reading only its header, or decoding it if it is the short last block.
+         * @return Whether there is a next block.
+         */
+        public boolean nextBlock() {
+            if (_numPostingsLeft == 0) {
+                _blockSize = 0;
+                _index = -1;
+                return false;
+            }
+            _buffer.position(_blockDataStart + packedSize(_blockSize, _gapBits) + packedSize(_blockSize, _frequencyBits));
+            _blockSize = Math.min(BLOCK_SIZE, _numPostingsLeft);
+            _numPostingsLeft -= _blockSize;
+            _index = -1;
+
+            if (_blockSize < BLOCK_SIZE) {
+                int documentId = _blockLastDocumentId;
+                _blockMaxFrequency = 0;
+                for (int i = 0; i < _blockSize; i++) {
+                    documentId += VarInt.read(_buffer);
+                    _documentIds[i] = documentId;
+                    _frequencies[i] = VarInt.read(_buffer);
+                    _blockMaxFrequency = Math.max(_blockMaxFrequency, _frequencies[i]);
+                }
+                _blockLastDocumentId = documentId;
+                _isBlockDecoded = true;
+                return true;
+            }
+
+            _blockLastDocumentId += VarInt.read(_buffer);
+            _blockMaxFrequency = VarInt.read(_buffer);
+            _gapBits = _buffer.get();
+            _frequencyBits = _buffer.get();
+            _blockDataStart = _buffer.position();
+            _isBlockDecoded = false;
+            return true;
+        }
+
+        public int getBlockSize() {
+            return _blockSize;
+        }
+
+        public int getBlockLastDocumentId() {
+            return _blockLastDocumentId;
+        }
+
+        public int getBlockMaxFrequency() {
+            return _blockMaxFrequency;
+        }
+
+        /**
+         * The document IDs of the current block, in the first getBlockSize() elements. The array is reused by the
+         * next block.
+         */
+        public int[] getBlockDocumentIds() {
+            decodeBlock();
+            return _documentIds;
+        }
+
+        /**
+         * The frequencies of the current block, in the first getBlockSize() elements. The array is reused by the
+         * next block.
+         */
+        public int[] getBlockFrequencies() {
+            decodeBlock();
+            return _frequencies;
+        }
+
+        void decodeBlock() {
+            if (_isBlockDecoded) return;
+            unpack(_buffer, _blockDataStart, _documentIds, _blockSize, _gapBits);
+            unpack(_buffer, _blockDataStart + packedSize(_blockSize, _gapBits), _frequencies, _blockSize, _frequencyBits);
+
+            // Undo the gaps, counting back from the last document ID of the block.
+            int documentId = _blockLastDocumentId;
+            for (int i = _blockSize - 1; i >= 0; i--) {
+                int gap = _documentIds[i];
+                _documentIds[i] = documentId;
+                documentId -= gap;
+            }
+            _isBlockDecoded = true;
+        }
+
+        /**
+         * Moves to the next posting.
+         * @return Whether there is a next posting.
+         */
+        public boolean next() {
+            if (_index + 1 >= _blockSize) {
+                if (!nextBlock()) return false;
+            }
+            decodeBlock();
+            _index++;
+            return true;
+        }
+
+        /**
+         * Moves forward to the first posting whose document ID is at least a target, skipping blocks that end
+         * before it without decoding them. Does not move if the current posting is already there.
+         * @return Whether there is such a posting.
+         */
+        public boolean advance(int target) {
+            if (_index >= 0 && _documentIds[_index] >= target) return true;
+            while (_blockSize == 0 || _blockLastDocumentId < target) {
+                if (!nextBlock()) return false;
+            }
+            decodeBlock();
+            do {
+                _index++;
+            } while (_documentIds[_index] < target);
+            return true;
+        }
+
+        public int getDocumentId() {
+            return _documentIds[_index];
+        }
+
+        public int getFrequency() {
+            return _frequencies[_index];
+        }
+
+        /**
+         * Appends the postings after the current one to a list.
+         */
+        public void readAll(PostingList postings) {
+            postings.ensureCapacity(postings.size() + _size);
+            while (next()) {
+                postings.add(_documentIds[_index], _frequencies[_index]);
+            }
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.io;
+
+import me.yuhuan.collections.TermCounter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+/**
+ * A file of (term, count) pairs sorted by term, so that several runs can be merged in one pass. Terms are sorted
+ * by their UTF-8 bytes compared as unsigned, as TermCounter sorts them, and compared that way when merged, so that
+ * no String is created for a term until it is asked for.
+ * After a header, each pair is stored as: the length of the prefix the term shares with the previous term, the
+ * length of the rest of the term, the rest of the term in UTF-8, and the count. Lengths and counts are VarInts.
+ */
+public class TermCountRun {
+
+    static final int MAGIC = 0x54435231; // "TCR1"
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Smaller than the write buffer, since a merge keeps one reader open per run.
+     */
+    static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes a run through a temporary file, which is moved over the path on close. Writing the same run to the
+     * same path twice, even at the same time, leaves one complete copy.
+     */
+    public static class Writer implements Closeable {
+        String _path;
+        String _temporaryPath;
+        DataOutputStream _output;
+        byte[] _previousTerm;
+        int _previousTermLength;
+        boolean _isEmpty;
+        boolean _isClosed;
+
+        public Writer(String path) throws IOException {
+            _path = path;
+            _temporaryPath = File.createTemporaryPath(path);
+            _output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_temporaryPath), BUFFER_SIZE));
+            _output.writeInt(MAGIC);
+            _previousTerm = new byte[32];
+            _isEmpty = true;
+        }
+
+        /**
+         * Adds a pair. Terms must be added in increasing order, each once.
+         */
+        public void add(String term, int count) throws IOException {
+            byte[] bytes = term.getBytes(UTF8);
+            add(bytes, 0, bytes.length, count);
+        }
+
+        /**
+         * Adds a pair whose term is a slice of an array, in UTF-8. Terms must be added in increasing order, each once.
+         */
+        public void add(byte[] bytes, int start, int length, int count) throws IOException {
+            if (!_isEmpty && TermCounter.compare(bytes, start, length, _previousTerm, 0, _previousTermLength) <= 0) {
+                throw new IllegalArgumentException("Term " + new String(bytes, start, length, UTF8) + " is added after " + new String(_previousTerm, 0, _previousTermLength, UTF8));
+            }
+            int shared = 0;
+            int maxShared = Math.min(length, _previousTermLength);
+            while (shared < maxShared && bytes[start + shared] == _previousTerm[shared]) shared++;
+
+            VarInt.write(_output, shared);
+            VarInt.write(_output, length - shared);
+            _output.write(bytes, start + shared, length - shared);
+            VarInt.write(_output, count);
+
+            if (length > _previousTerm.length) _previousTerm = new byte[Math.max(length, _previousTerm.length * 2)];
+            System.arraycopy(bytes, start, _previousTerm, 0, length);
+            _previousTermLength = length;
+            _isEmpty = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (_isClosed) return;
+            _output.close();
+            _isClosed = true;
+            File.replace(_temporaryPath, _path);
+        }
+
+        /**
+         * Drops the run if it is not closed yet. Does nothing after close.
+         */
+        public void abort() {
+            if (_isClosed) return;
+            _isClosed = true;
+            try {
+                _output.close();
+            }
+            catch (IOException e) { }
+            File.deleteFile(_temporaryPath);
+        }
+    }
+
+    /**
+     * Reads a run one pair at a time.
+     */
+    public static class Reader implements Closeable {
+        DataInputStream _input;
+        byte[] _term;
+        int _termLength;
+        String _termString;
+        int _count;
+
+        public Reader(String path) throws IOException {
+            _input = new DataInputStream(new BufferedInputStream(new FileInputStream(path), READ_BUFFER_SIZE));
+            _term = new byte[32];
+            try {
+                if (_input.readInt() != MAGIC) throw new IOException(path + " is not a term count run. ");
+            }
+            catch (IOException e) {
+                _input.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Moves to the next pair.
+         * @return False at the end of the run.
+         */
+        public boolean next() throws IOException {
+            int shared;
+            try {
+                shared = VarInt.read(_input);
+            }
+            catch (EOFException e) {
+                _termLength = -1;
+                _termString = null;
+                return false;
+            }
+            int suffixLength = VarInt.read(_input);
+            int length = shared + suffixLength;
+            if (shared > Math.max(_termLength, 0)) throw new IOException("Corrupt term count run. ");
+            if (length > _term.length) {
+                byte[] term = new byte[Math.max(length, _term.length * 2)];
+                System.arraycopy(_term, 0, term, 0, shared);
+                _term = term;
+            }
+            _input.readFully(_term, shared, suffixLength);
+            _termLength = length;
+            _termString = null;
+            _count = VarInt.read(_input);
+            return true;
+        }
+
+        /**
+         * Gets the current term. Decoded once per pair, when first asked for.
+         */
+        public String getTerm() {
+            if (_termString == null && _termLength >= 0) _termString = new String(_term, 0, _termLength, UTF8);
+            return _termString;
+        }
+
+        /**
+         * Gets the bytes of the current term: the first getTermLength() bytes of the array. The array is reused by
+         * the next pair.
+         */
+        public byte[] getTermBytes() {
+            return _term;
+        }
+
+        public int getTermLength() {
+            return _termLength;
+        }
+
+        public int getCount() {
+            return _count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _input.close();
+        }
+    }
+
+    /**
+     * Merges several runs into one stream of pairs sorted by term, adding up the counts of a term that appears in
+     * more than one run. Holds one pair per run in memory, however long the runs are.
+     */
+    public static class Merger implements Closeable {
+        PriorityQueue<Reader> _queue;
+        ArrayList<Reader> _readers;
+        byte[] _term;
+        int _termLength;
+        String _termString;
+        int _count;
+
+        public Merger(ArrayList<String> paths) throws IOException {
+            _readers = new ArrayList<Reader>();
+            _queue = new PriorityQueue<Reader>(Math.max(1, paths.size()), new java.util.Comparator<Reader>() {
+                public int compare(Reader a, Reader b) {
+                    return TermCounter.compare(a.getTermBytes(), 0, a.getTermLength(), b.getTermBytes(), 0, b.getTermLength());
+                }
+            });
+            _term = new byte[32];
+            _termLength = -1;
+            try {
+                for (String path : paths) {
+                    Reader reader = new Reader(path);
+                    _readers.add(reader);
+                    if (reader.next()) _queue.add(reader);
+                }
+            }
+            catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Moves to the next term.
+         * @return False when all runs are used up.
+         */
+        public boolean next() throws IOException {
+            _termString = null;
+            if (_queue.isEmpty()) {
+                _termLength = -1;
+                return false;
+            }
+            Reader first = _queue.poll();
+            _termLength = first.getTermLength();
+            if (_termLength > _term.length) _term = new byte[Math.max(_termLength, _term.length * 2)];
+            System.arraycopy(first.getTermBytes(), 0, _term, 0, _termLength);
+            _count = first.getCount();
+            if (first.next()) _queue.add(first);
+
+            while (!_queue.isEmpty() && isCurrentTerm(_queue.peek())) {
+                Reader reader = _queue.poll();
+                _count += reader.getCount();
+                if (reader.next()) _queue.add(reader);
+            }
+            return true;
+        }
+
+        /**
+         * Gets the current term. Decoded once per term, when first asked for.
+         */
+        public String getTerm() {
+            if (_termString == null && _termLength >= 0) _termString = new String(_term, 0, _termLength, UTF8);
+            return _termString;
+        }
+
+        public int getCount() {
+            return _count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (Reader reader : _readers) {
+                try {
+                    reader.close();
+                }
+                catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) throw failure;
+        }
+
+        private boolean isCurrentTerm(Reader reader) {
+            return TermCounter.compare(reader.getTermBytes(), 0, reader.getTermLength(), _term, 0, _termLength) == 0;
+        }
+    }
+}
@@ -28,6 +28,25 @@ public class TextFile {
         writer.close();
     }
 
+    /**
+     * Writes a file through a temporary file, which is then moved over the file. Writing the same lines to the same
+     * path twice, even at the same time, leaves one complete copy.
+     */
+    public static void writeAtomically(String path, String[] lines) throws IOException {
+        String temporaryPath = File.createTemporaryPath(path);
+        try {
+            write(temporaryPath, lines);
+            File.replace(temporaryPath, path);
+        }
+        finally {
+            File.deleteFile(temporaryPath);
+        }
+    }
+
+    public static void writeAtomically(String path, ArrayList<String> lines) throws IOException {
+        writeAtomically(path, lines.toArray(new String[lines.size()]));
+    }
+
     public static String[] read(String path) throws IOException {
         ArrayList<String> lines = new ArrayList<String>();
         BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new java.io.File(path)), "UTF8"));
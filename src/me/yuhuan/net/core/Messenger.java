@@ -0,0 +1,38 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.net.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * The messages that can be exchanged with a peer, independent of whether the connection underneath is blocking
+ * ({@link TcpMessenger}) or driven by a selector ({@link NioMessenger}).
+ */
+public interface Messenger {
+
+    void sendTag(int tag) throws IOException;
+
+    int receiveTag() throws IOException;
+
+    void sendInt(int i) throws IOException;
+
+    int receiveInt() throws IOException;
+
+    void sendString(String string) throws IOException;
+
+    String receiveString() throws IOException;
+
+    void sendServerInfo(ServerInfo serverInfo) throws IOException;
+
+    ServerInfo receiveServerInfo() throws IOException;
+
+    void sendServerInfoArray(ArrayList<ServerInfo> serverInfoArray) throws IOException;
+
+    ArrayList<ServerInfo> receiveServerInfoArray() throws IOException;
+
+    void flush() throws IOException;
+}
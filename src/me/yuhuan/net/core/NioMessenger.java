@@ -0,0 +1,224 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.net.core;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+/**
+ * A messenger over a non-blocking channel, speaking the same wire format as {@link TcpMessenger}
+ * (big-endian ints, modified UTF-8 strings as written by DataOutputStream.writeUTF).
+ * Receiving works on the bytes that have already arrived: when a message is not complete yet, the receive
+ * methods throw {@link BufferUnderflowException}, and {@link NioServer} retries the whole request once more
+ * bytes arrive. Sending only appends to an output buffer, which the server drains to the channel.
+ */
+public class NioMessenger implements Messenger {
+
+    static final int INITIAL_BUFFER_SIZE = 1024;
+
+    SocketChannel _channel;
+    SelectionKey _key;
+
+    /**
+     * Bytes received but not yet consumed. Kept in write mode between reads.
+     */
+    ByteBuffer _input;
+
+    /**
+     * Bytes to be sent. Kept in write mode.
+     */
+    ByteBuffer _output;
+
+    NioMessenger(SocketChannel channel, SelectionKey key) {
+        _channel = channel;
+        _key = key;
+        _input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        _output = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+
+    public SocketChannel getChannel() {
+        return _channel;
+    }
+
+    //region Receiving
+
+    public int receiveTag() {
+        return _input.getInt();
+    }
+
+    public int receiveInt() {
+        return _input.getInt();
+    }
+
+    public String receiveString() throws IOException {
+        int length = _input.getShort() & 0xFFFF;
+        if (_input.remaining() < length) throw new BufferUnderflowException();
+
+        char[] chars = new char[length];
+        int numChars = 0;
+        int end = _input.position() + length;
+        while (_input.position() < end) {
+            int a = _input.get() & 0xFF;
+            if (a < 0x80) {
+                chars[numChars++] = (char)a;
+            }
+            else if ((a & 0xE0) == 0xC0) {
+                int b = receiveContinuationByte(end);
+                chars[numChars++] = (char)(((a & 0x1F) << 6) | b);
+            }
+            else if ((a & 0xF0) == 0xE0) {
+                int b = receiveContinuationByte(end);
+                int c = receiveContinuationByte(end);
+                chars[numChars++] = (char)(((a & 0x0F) << 12) | (b << 6) | c);
+            }
+            else {
+                throw new UTFDataFormatException("Malformed string from " + _channel + ". ");
+            }
+        }
+        return new String(chars, 0, numChars);
+    }
+
+    /**
+     * Receives a byte that continues a character of a string ending at the given position.
+     * @return The low six bits of the byte.
+     * @throws UTFDataFormatException If the string ends first, or the byte does not continue a character.
+     */
+    private int receiveContinuationByte(int end) throws UTFDataFormatException {
+        if (_input.position() >= end) throw new UTFDataFormatException("Truncated string from " + _channel + ". ");
+        int b = _input.get() & 0xFF;
+        if ((b & 0xC0) != 0x80) throw new UTFDataFormatException("Malformed string from " + _channel + ". ");
+        return b & 0x3F;
+    }
+
+    public ServerInfo receiveServerInfo() {
+        int[] ipAddress = new int[4];
+        for (int i = 0; i < 4; i++) {
+            ipAddress[i] = _input.getInt();
+        }
+        return new ServerInfo(ipAddress, _input.getInt());
+    }
+
+    public ArrayList<ServerInfo> receiveServerInfoArray() {
+        ArrayList<ServerInfo> result = new ArrayList<ServerInfo>();
+        int arraySize = receiveInt();
+        for (int i = 0; i < arraySize; i++) {
+            result.add(receiveServerInfo());
+        }
+        return result;
+    }
+
+    //endregion
+
+    //region Sending
+
+    public void sendTag(int tag) {
+        ensureOutputCapacity(4);
+        _output.putInt(tag);
+    }
+
+    public void sendInt(int i) {
+        ensureOutputCapacity(4);
+        _output.putInt(i);
+    }
+
+    public void sendString(String string) throws IOException {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) length += 1;
+            else if (c <= 0x07FF) length += 2;
+            else length += 3;
+        }
+        if (length > 0xFFFF) throw new UTFDataFormatException("String too long: " + length + " bytes. ");
+
+        ensureOutputCapacity(2 + length);
+        _output.putShort((short)length);
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                _output.put((byte)c);
+            }
+            else if (c <= 0x07FF) {
+                _output.put((byte)(0xC0 | ((c >> 6) & 0x1F)));
+                _output.put((byte)(0x80 | (c & 0x3F)));
+            }
+            else {
+                _output.put((byte)(0xE0 | ((c >> 12) & 0x0F)));
+                _output.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                _output.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    public void sendServerInfo(ServerInfo serverInfo) {
+        ensureOutputCapacity(20);
+        for (int i = 0; i < 4; i++) {
+            _output.putInt(serverInfo.ipAddress[i]);
+        }
+        _output.putInt(serverInfo.portNumber);
+    }
+
+    public void sendServerInfoArray(ArrayList<ServerInfo> serverInfoArray) {
+        sendInt(serverInfoArray.size());
+        for (ServerInfo serverInfo : serverInfoArray) {
+            sendServerInfo(serverInfo);
+        }
+    }
+
+    /**
+     * Writes as much pending output as the channel takes without blocking. Whatever is left is written when
+     * the channel becomes writable again.
+     */
+    public void flush() throws IOException {
+        _output.flip();
+        _channel.write(_output);
+        _output.compact();
+        if (_key.isValid()) {
+            _key.interestOps(_output.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    //endregion
+
+    /**
+     * Reads whatever has arrived on the channel into the input buffer.
+     * @return False if the peer closed the connection.
+     */
+    boolean readFromChannel() throws IOException {
+        if (!_input.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(_input.capacity() * 2);
+            _input.flip();
+            larger.put(_input);
+            _input = larger;
+        }
+        return _channel.read(_input) >= 0;
+    }
+
+    private void ensureOutputCapacity(int capacity) {
+        if (_output.remaining() >= capacity) return;
+        int newCapacity = _output.capacity() * 2;
+        while (newCapacity - _output.position() < capacity) newCapacity *= 2;
+        ByteBuffer larger = ByteBuffer.allocate(newCapacity);
+        _output.flip();
+        larger.put(_output);
+        _output = larger;
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return String.valueOf(_channel.getRemoteAddress());
+        }
+        catch (IOException e) {
+            return String.valueOf(_channel);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.net.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single-threaded, selector-based server. All connections are served by the thread that calls {@link #run()},
+ * so a handler must never block; it only decodes a request from the bytes already received and appends the
+ * response to the output of the connection.
+ */
+public class NioServer {
+
+    public interface Handler {
+        /**
+         * Handles one request from the front of a connection's input.
+         * The handler should receive all parameters of a request before acting on it: if the request is not
+         * complete yet, receiving throws {@link BufferUnderflowException}, everything received and sent during
+         * the attempt is rolled back, and the handler is called again once more bytes arrive.
+         * @param messenger The connection.
+         * @return False to close the connection.
+         */
+        boolean handle(NioMessenger messenger) throws IOException;
+
+        /**
+         * Called after a connection is closed, by either side.
+         */
+        void closed(NioMessenger messenger);
+    }
+
+    Selector _selector;
+    ServerSocketChannel _serverChannel;
+    Handler _handler;
+
+    /**
+     * Tasks handed over by other threads, to be run on the selector thread.
+     */
+    ConcurrentLinkedQueue<Runnable> _tasks;
+
+    public NioServer(int portNumber, Handler handler) throws IOException {
+        _handler = handler;
+        _tasks = new ConcurrentLinkedQueue<Runnable>();
+        _selector = Selector.open();
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.bind(new InetSocketAddress(portNumber), 200);
+        _serverChannel.configureBlocking(false);
+        _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getPortNumber() {
+        return _serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Serves connections until the server is closed.
+     */
+    public void run() throws IOException {
+        while (_selector.isOpen()) {
+            _selector.select();
+            if (!_selector.isOpen()) break;
+            runTasks();
+
+            Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+
+                NioMessenger messenger = (NioMessenger)key.attachment();
+                try {
+                    if (key.isWritable()) {
+                        messenger.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        if (!messenger.readFromChannel() || !handleAvailableRequests(messenger)) {
+                            close(messenger);
+                            continue;
+                        }
+                        messenger.flush();
+                    }
+                }
+                catch (IOException e) {
+                    close(messenger);
+                }
+                catch (RuntimeException e) {
+                    // A failing request must not take the whole server down; drop only its connection.
+                    e.printStackTrace();
+                    close(messenger);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the selector thread, e.g. to send a message to connections from another thread.
+     * Messengers are not thread-safe, so this is the only way for other threads to write to them.
+     */
+    public void execute(Runnable task) {
+        _tasks.add(task);
+        _selector.wakeup();
+    }
+
+    public void close() {
+        try {
+            _selector.close();
+            _serverChannel.close();
+        }
+        catch (IOException e) { }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = _tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = _serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+        key.attach(new NioMessenger(channel, key));
+    }
+
+    /**
+     * Handles every complete request in the input of a connection.
+     * @return False if the handler asked to close the connection.
+     */
+    private boolean handleAvailableRequests(NioMessenger messenger) throws IOException {
+        messenger._input.flip();
+        try {
+            while (messenger._input.hasRemaining()) {
+                int inputMark = messenger._input.position();
+                int outputMark = messenger._output.position();
+                try {
+                    if (!_handler.handle(messenger)) return false;
+                }
+                catch (BufferUnderflowException e) {
+                    // Incomplete request: wait for the rest of it.
+                    messenger._input.position(inputMark);
+                    messenger._output.position(outputMark);
+                    break;
+                }
+            }
+            return true;
+        }
+        finally {
+            messenger._input.compact();
+        }
+    }
+
+    private void close(NioMessenger messenger) {
+        messenger._key.cancel();
+        try {
+            messenger._channel.close();
+        }
+        catch (IOException e) { }
+        _handler.closed(messenger);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.net.core;
+
+/**
+ * A reusable list of postings, i.e. (document name, frequency) pairs, kept in parallel arrays.
+ * Clearing the buffer keeps its arrays, so that receiving postings into the same buffer again does not allocate.
+ */
+public class PostingsBuffer {
+
+    static final int INITIAL_CAPACITY = 16;
+
+    int _size;
+    String[] _documentNames;
+    int[] _frequencies;
+
+    public PostingsBuffer() {
+        _documentNames = new String[INITIAL_CAPACITY];
+        _frequencies = new int[INITIAL_CAPACITY];
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public String getDocumentName(int i) {
+        return _documentNames[i];
+    }
+
+    public int getFrequency(int i) {
+        return _frequencies[i];
+    }
+
+    public void clear() {
+        // Drop the references, so that a cleared buffer does not keep document names alive.
+        for (int i = 0; i < _size; i++) {
+            _documentNames[i] = null;
+        }
+        _size = 0;
+    }
+
+    public void add(String documentName, int frequency) {
+        ensureCapacity(_size + 1);
+        _documentNames[_size] = documentName;
+        _frequencies[_size] = frequency;
+        _size++;
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity <= _frequencies.length) return;
+        int newCapacity = Math.max(capacity, _frequencies.length * 2);
+        String[] documentNames = new String[newCapacity];
+        int[] frequencies = new int[newCapacity];
+        System.arraycopy(_documentNames, 0, documentNames, 0, _size);
+        System.arraycopy(_frequencies, 0, frequencies, 0, _size);
+        _documentNames = documentNames;
+        _frequencies = frequencies;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("[");
+        for (int i = 0; i < _size; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append("(" + _documentNames[i] + ", " + _frequencies[i] + ")");
+        }
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.net.core;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of long-lived, persistent connections, kept per server.
+ * Each connection runs one exchange at a time; concurrent exchanges to the same server are spread over
+ * several pooled connections, so a busy server is reached through a handful of sockets instead of a new
+ * socket per message.
+ */
+public class TcpConnectionPool {
+
+    /**
+     * One request/response exchange on a persistent connection.
+     * @param <T> Type of the result of the exchange.
+     */
+    public interface Exchange<T> {
+        T run(TcpMessenger messenger) throws IOException;
+    }
+
+    static final int DEFAULT_MAX_IDLE_PER_SERVER = 8;
+
+    final int _maxIdlePerServer;
+
+    /**
+     * Structure: [Server, [idle connections]]
+     */
+    final ConcurrentHashMap<ServerInfo, ConcurrentLinkedQueue<TcpMessenger>> _idle;
+
+    /**
+     * Number of idle connections per server. Kept apart from the queues, whose size() is linear.
+     */
+    final ConcurrentHashMap<ServerInfo, AtomicInteger> _idleCounts;
+
+    public TcpConnectionPool() {
+        this(DEFAULT_MAX_IDLE_PER_SERVER);
+    }
+
+    public TcpConnectionPool(int maxIdlePerServer) {
+        _maxIdlePerServer = maxIdlePerServer;
+        _idle = new ConcurrentHashMap<ServerInfo, ConcurrentLinkedQueue<TcpMessenger>>();
+        _idleCounts = new ConcurrentHashMap<ServerInfo, AtomicInteger>();
+    }
+
+    /**
+     * Runs an exchange on a pooled connection to a server, once.
+     * If the exchange fails, its connection is closed, and the exchange is not retried: a stale connection is
+     * usually only found out when the response is awaited, after the server may have run the request. Every
+     * exchange should therefore end by receiving something from the server, so that a dead connection is detected
+     * before the exchange is considered done.
+     * @param server The server to talk to.
+     * @param exchange The exchange to run.
+     * @return The result of the exchange.
+     */
+    public <T> T exchange(ServerInfo server, Exchange<T> exchange) throws IOException {
+        return exchange(server, exchange, false);
+    }
+
+    /**
+     * Runs an exchange that has the same effect when run twice, such as a heartbeat or a lookup, on a pooled
+     * connection to a server. If a reused connection turns out to be stale (e.g. the server was restarted), the
+     * exchange is retried once on a fresh connection.
+     * @param server The server to talk to.
+     * @param exchange The exchange to run.
+     * @return The result of the exchange.
+     */
+    public <T> T exchangeIdempotent(ServerInfo server, Exchange<T> exchange) throws IOException {
+        return exchange(server, exchange, true);
+    }
+
+    <T> T exchange(ServerInfo server, Exchange<T> exchange, boolean isIdempotent) throws IOException {
+        TcpMessenger messenger = pollIdle(server);
+        boolean reused = messenger != null;
+        if (!reused) messenger = TcpMessenger.connect(server);
+
+        try {
+            T result = exchange.run(messenger);
+            release(server, messenger);
+            return result;
+        }
+        catch (IOException e) {
+            messenger.close();
+            if (!reused || !isIdempotent) throw e;
+        }
+
+        // The idle connection went stale. Retry once on a fresh one.
+        messenger = TcpMessenger.connect(server);
+        try {
+            T result = exchange.run(messenger);
+            release(server, messenger);
+            return result;
+        }
+        catch (IOException e) {
+            messenger.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all idle connections to a server, e.g. when the server is known to be dead.
+     */
+    public void evict(ServerInfo server) {
+        TcpMessenger messenger;
+        while ((messenger = pollIdle(server)) != null) {
+            messenger.close();
+        }
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void close() {
+        for (Map.Entry<ServerInfo, ConcurrentLinkedQueue<TcpMessenger>> entry : _idle.entrySet()) {
+            evict(entry.getKey());
+        }
+    }
+
+    private TcpMessenger pollIdle(ServerInfo server) {
+        ConcurrentLinkedQueue<TcpMessenger> queue = _idle.get(server);
+        if (queue == null) return null;
+        TcpMessenger messenger;
+        while ((messenger = queue.poll()) != null) {
+            _idleCounts.get(server).decrementAndGet();
+            if (!messenger.isClosed()) return messenger;
+        }
+        return null;
+    }
+
+    private void release(ServerInfo server, TcpMessenger messenger) throws IOException {
+        messenger.flush();
+
+        ConcurrentLinkedQueue<TcpMessenger> queue = _idle.get(server);
+        if (queue == null) {
+            _idleCounts.putIfAbsent(server, new AtomicInteger(0));
+            _idle.putIfAbsent(server, new ConcurrentLinkedQueue<TcpMessenger>());
+            queue = _idle.get(server);
+        }
+
+        if (_idleCounts.get(server).incrementAndGet() > _maxIdlePerServer) {
+            _idleCounts.get(server).decrementAndGet();
+            messenger.close();
+        }
+        else {
+            queue.offer(messenger);
+        }
+    }
+}
@@ -19,24 +19,107 @@ import java.util.ArrayList;
 */
 package me.yuhuan.net.core;
 
+import me.yuhuan.collections.PostingList;
+import me.yuhuan.collections.TopDocuments;
+import me.yuhuan.io.VarInt;
 import me.yuhuan.net.core.ServerInfo;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Created by Yuhuan Jiang on 10/20/14.
  */
-public class TcpMessenger {
+public class TcpMessenger implements Messenger {
 
+    /**
+     * Once this many document names have been sent on a stream, the postings dictionary starts over.
+     */
+    static final int MAX_POSTINGS_DICTIONARY_SIZE = 1 << 16;
+
+    /**
+     * The largest frame buffer, in bytes. Some VMs cannot allocate arrays up to Integer.MAX_VALUE.
+     */
+    static final int MAX_FRAME_CAPACITY = Integer.MAX_VALUE - 8;
+
+    Socket _socket;
     DataOutputStream _o;
     DataInputStream _i;
 
+    /**
+     * Document names already sent in postings frames on this stream, and the reference given to each.
+     */
+    HashMap<String, Integer> _sentDocumentNames;
+
+    /**
+     * Document names received in postings frames on this stream, indexed by reference.
+     */
+    ArrayList<String> _receivedDocumentNames;
+
+    /**
+     * Reusable buffer that postings frames are encoded into and decoded from.
+     */
+    ByteBuffer _frame;
+
     public TcpMessenger(Socket socket) throws IOException {
-        _o = new DataOutputStream(socket.getOutputStream());
-        _i = new DataInputStream(socket.getInputStream());
+        this(socket, false);
+    }
+
+    /**
+     * Creates a messenger on a socket.
+     * A persistent messenger is meant to run many request/response exchanges on one socket: its output is
+     * buffered so that a whole request leaves in one segment, and pending output is flushed before every
+     * receive, or explicitly by {@link #flush()}.
+     * @param socket The connected socket.
+     * @param persistent Whether the socket is kept open across exchanges.
+     */
+    public TcpMessenger(Socket socket, boolean persistent) throws IOException {
+        _socket = socket;
+        if (persistent) {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            _o = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            _i = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+        else {
+            _o = new DataOutputStream(socket.getOutputStream());
+            _i = new DataInputStream(socket.getInputStream());
+        }
+    }
+
+    /**
+     * Opens a persistent messenger to a server.
+     */
+    public static TcpMessenger connect(ServerInfo serverInfo) throws IOException {
+        return new TcpMessenger(new Socket(serverInfo.IPAddressString(), serverInfo.portNumber), true);
+    }
+
+    public Socket getSocket() {
+        return _socket;
+    }
+
+    public void flush() throws IOException {
+        _o.flush();
+    }
+
+    public boolean isClosed() {
+        return _socket.isClosed();
+    }
+
+    public void close() {
+        try {
+            _o.flush();
+        }
+        catch (IOException e) { }
+        try {
+            _socket.close();
+        }
+        catch (IOException e) { }
     }
 
     public void sendTag(int tag) throws IOException {
@@ -44,6 +127,7 @@ public class TcpMessenger {
     }
 
     public int receiveTag() throws IOException {
+        _o.flush();
         return _i.readInt();
     }
 
@@ -52,14 +136,34 @@ public class TcpMessenger {
     }
 
     public int receiveInt() throws IOException {
+        _o.flush();
         return _i.readInt();
     }
 
+    public void sendLong(long l) throws IOException {
+        _o.writeLong(l);
+    }
+
+    public long receiveLong() throws IOException {
+        _o.flush();
+        return _i.readLong();
+    }
+
+    public void sendFloat(float f) throws IOException {
+        _o.writeFloat(f);
+    }
+
+    public float receiveFloat() throws IOException {
+        _o.flush();
+        return _i.readFloat();
+    }
+
     public void sendString(String string) throws IOException {
         _o.writeUTF(string);
     }
 
     public String receiveString() throws IOException {
+        _o.flush();
         return _i.readUTF();
     }
 
@@ -71,6 +175,7 @@ public class TcpMessenger {
     }
 
     public ServerInfo receiveServerInfo() throws IOException {
+        _o.flush();
         int[] ipAddress = new int[4];
         for (int i = 0; i < 4; i++) {
             ipAddress[i] = _i.readInt();
@@ -94,4 +199,184 @@ public class TcpMessenger {
         return result;
     }
 
+    /**
+     * Sends a list of postings as one binary frame. Layout:
+     * <pre>
+     *     int     length of the rest of the frame
+     *     varint  dictionary base: number of earlier document names the receiver should keep
+     *     varint  number of new document names, each as (varint byte length, UTF-8 bytes)
+     *     varint  number of postings, each as (varint document reference, varint frequency)
+     * </pre>
+     * Document names are dictionary-coded across all frames on this stream, so a name is sent once however
+     * many postings lists it appears in. There is no limit on the size of a frame.
+     */
+    public void sendPostings(PostingsBuffer postings) throws IOException {
+        if (_sentDocumentNames == null) _sentDocumentNames = new HashMap<String, Integer>();
+
+        // Collect the names this frame introduces, starting the dictionary over if it grew too large.
+        ArrayList<byte[]> newNames = new ArrayList<byte[]>();
+        int newNamesLength = 0;
+        boolean didStartOver = false;
+        for (int i = 0; i < postings.size(); i++) {
+            String documentName = postings.getDocumentName(i);
+            if (!_sentDocumentNames.containsKey(documentName)) {
+                if (_sentDocumentNames.size() >= MAX_POSTINGS_DICTIONARY_SIZE && !didStartOver) {
+                    _sentDocumentNames.clear();
+                    newNames.clear();
+                    newNamesLength = 0;
+                    didStartOver = true;
+                    i = -1;
+                    continue;
+                }
+                _sentDocumentNames.put(documentName, _sentDocumentNames.size());
+                byte[] bytes = documentName.getBytes(StandardCharsets.UTF_8);
+                newNames.add(bytes);
+                newNamesLength += VarInt.size(bytes.length) + bytes.length;
+            }
+        }
+        int dictionaryBase = _sentDocumentNames.size() - newNames.size();
+
+        ensureFrameCapacity(3 * 5 + newNamesLength + postings.size() * 10);
+        _frame.clear();
+        VarInt.write(_frame, dictionaryBase);
+        VarInt.write(_frame, newNames.size());
+        for (byte[] bytes : newNames) {
+            VarInt.write(_frame, bytes.length);
+            _frame.put(bytes);
+        }
+        VarInt.write(_frame, postings.size());
+        for (int i = 0; i < postings.size(); i++) {
+            VarInt.write(_frame, _sentDocumentNames.get(postings.getDocumentName(i)));
+            VarInt.write(_frame, postings.getFrequency(i));
+        }
+
+        _o.writeInt(_frame.position());
+        _o.write(_frame.array(), 0, _frame.position());
+    }
+
+    /**
+     * Receives a frame sent by {@link #sendPostings(PostingsBuffer)}.
+     * @param postings The buffer to decode into. It is cleared first, and its arrays are reused.
+     */
+    public void receivePostings(PostingsBuffer postings) throws IOException {
+        _o.flush();
+        if (_receivedDocumentNames == null) _receivedDocumentNames = new ArrayList<String>();
+
+        receiveFrame();
+
+        int dictionaryBase = VarInt.read(_frame);
+        if (dictionaryBase < _receivedDocumentNames.size()) {
+            _receivedDocumentNames.subList(dictionaryBase, _receivedDocumentNames.size()).clear();
+        }
+        int numNewNames = VarInt.read(_frame);
+        for (int i = 0; i < numNewNames; i++) {
+            int nameLength = VarInt.read(_frame);
+            _receivedDocumentNames.add(new String(_frame.array(), _frame.position(), nameLength, StandardCharsets.UTF_8));
+            _frame.position(_frame.position() + nameLength);
+        }
+
+        postings.clear();
+        int numPostings = VarInt.read(_frame);
+        postings.ensureCapacity(numPostings);
+        for (int i = 0; i < numPostings; i++) {
+            String documentName = _receivedDocumentNames.get(VarInt.read(_frame));
+            postings.add(documentName, VarInt.read(_frame));
+        }
+    }
+
+    /**
+     * Sends a list of postings by document ID as one binary frame. Layout:
+     * <pre>
+     *     int     length of the rest of the frame
+     *     varint  number of postings, each as (varint document ID, varint frequency)
+     * </pre>
+     */
+    public void sendPostingList(PostingList postings) throws IOException {
+        ensureFrameCapacity(5 + postings.size() * 10);
+        _frame.clear();
+        VarInt.write(_frame, postings.size());
+        for (int i = 0; i < postings.size(); i++) {
+            VarInt.write(_frame, postings.getDocumentId(i));
+            VarInt.write(_frame, postings.getFrequency(i));
+        }
+
+        _o.writeInt(_frame.position());
+        _o.write(_frame.array(), 0, _frame.position());
+    }
+
+    /**
+     * Receives a frame sent by {@link #sendPostingList(PostingList)}.
+     * @param postings The list to decode into. It is cleared first, and its arrays are reused.
+     */
+    public void receivePostingList(PostingList postings) throws IOException {
+        _o.flush();
+        receiveFrame();
+
+        postings.clear();
+        int numPostings = VarInt.read(_frame);
+        postings.ensureCapacity(numPostings);
+        for (int i = 0; i < numPostings; i++) {
+            int documentId = VarInt.read(_frame);
+            postings.add(documentId, VarInt.read(_frame));
+        }
+    }
+
+    /**
+     * Sends ranked documents, in one frame:
+     * <pre>
+     *     int     length of the rest of the frame
+     *     varint  number of documents, each as (varint document ID, float score)
+     * </pre>
+     */
+    public void sendTopDocuments(TopDocuments documents) throws IOException {
+        ensureFrameCapacity(5 + documents.size() * 9);
+        _frame.clear();
+        VarInt.write(_frame, documents.size());
+        for (int i = 0; i < documents.size(); i++) {
+            VarInt.write(_frame, documents.getDocumentId(i));
+            _frame.putFloat(documents.getScore(i));
+        }
+
+        _o.writeInt(_frame.position());
+        _o.write(_frame.array(), 0, _frame.position());
+    }
+
+    /**
+     * Receives a frame sent by {@link #sendTopDocuments(TopDocuments)}.
+     * @return The documents, from the highest score down.
+     */
+    public TopDocuments receiveTopDocuments() throws IOException {
+        _o.flush();
+        receiveFrame();
+
+        int numDocuments = VarInt.read(_frame);
+        TopDocuments documents = new TopDocuments(numDocuments);
+        for (int i = 0; i < numDocuments; i++) {
+            int documentId = VarInt.read(_frame);
+            documents.offer(documentId, _frame.getFloat());
+        }
+        documents.sort();
+        return documents;
+    }
+
+    /**
+     * Reads the length of a frame and the frame itself into the frame buffer, which is then limited to the frame.
+     */
+    private void receiveFrame() throws IOException {
+        int length = _i.readInt();
+        if (length < 0) throw new IOException("Frame length " + length + " is negative. ");
+        ensureFrameCapacity(length);
+        _i.readFully(_frame.array(), 0, length);
+        _frame.clear();
+        _frame.limit(length);
+    }
+
+    private void ensureFrameCapacity(int capacity) throws IOException {
+        if (_frame != null && _frame.capacity() >= capacity) return;
+        if (capacity > MAX_FRAME_CAPACITY) throw new IOException("Frame of " + capacity + " bytes is too large. ");
+        long newCapacity = _frame == null ? 4096 : _frame.capacity();
+        while (newCapacity < capacity) newCapacity *= 2;
+        _frame = ByteBuffer.wrap(new byte[(int)Math.min(newCapacity, MAX_FRAME_CAPACITY)]);
+    }
+
 }
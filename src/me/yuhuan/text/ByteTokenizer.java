@@ -0,0 +1,106 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.text;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits ASCII or UTF-8 text into tokens at whitespace, straight from the bytes, without creating a String per
+ * token. A token is kept only if every byte of it is a word character; any other byte, including every byte of a
+ * multi-byte UTF-8 character, drops the token. This is what splitting at "\\s+" and keeping the words made of word
+ * characters does, in one pass over the bytes.
+ * Not thread-safe for a handler, but a tokenizer itself can be shared.
+ */
+public class ByteTokenizer {
+
+    /**
+     * Receives the tokens of a buffer, in order.
+     */
+    public interface Handler {
+        /**
+         * @param buffer The buffer being tokenized. Its position and limit must not be changed.
+         * @param start Index of the first byte of the token in the buffer.
+         * @param length Length of the token in bytes.
+         * @param hash Hash of the token, equal to the hashCode() of the token as a String.
+         */
+        void token(ByteBuffer buffer, int start, int length, int hash);
+    }
+
+    static final byte WHITESPACE = 0;
+    static final byte WORD = 1;
+    static final byte OTHER = 2;
+
+    /**
+     * The class of every byte value, indexed by the byte as unsigned.
+     */
+    final byte[] _classes;
+
+    /**
+     * @param wordCharacters The ASCII characters that words are made of.
+     */
+    public ByteTokenizer(String wordCharacters) {
+        _classes = new byte[256];
+        for (int i = 0; i < 256; i++) _classes[i] = OTHER;
+        for (int i = 0; i < wordCharacters.length(); i++) {
+            char c = wordCharacters.charAt(i);
+            if (c >= 128) throw new IllegalArgumentException("Word characters must be ASCII. ");
+            _classes[c] = WORD;
+        }
+
+        // The characters that "\\s" matches.
+        for (char c : new char[] { ' ', '\t', '\n', '\u000B', '\f', '\r' }) {
+            _classes[c] = WHITESPACE;
+        }
+    }
+
+    /**
+     * Tokenizes the bytes between the position and the limit of a buffer. The position is not moved.
+     */
+    public void tokenize(ByteBuffer buffer, Handler handler) {
+        byte[] classes = _classes;
+        int limit = buffer.limit();
+        int i = buffer.position();
+
+        while (i < limit) {
+            // Skip whitespace.
+            while (i < limit && classes[buffer.get(i) & 0xFF] == WHITESPACE) i++;
+            if (i == limit) break;
+
+            // Scan one token, hashing it as long as it is a word.
+            int start = i;
+            int hash = 0;
+            boolean isWord = true;
+            while (i < limit) {
+                int b = buffer.get(i) & 0xFF;
+                byte type = classes[b];
+                if (type == WHITESPACE) break;
+                if (type == OTHER) isWord = false;
+                hash = 31 * hash + b;
+                i++;
+            }
+            if (isWord) handler.token(buffer, start, i - start, hash);
+        }
+    }
+
+    /**
+     * Tokenizes a whole array.
+     */
+    public void tokenize(byte[] bytes, Handler handler) {
+        tokenize(ByteBuffer.wrap(bytes), handler);
+    }
+
+    /**
+     * Tells whether a string is a word, i.e. non-empty and made of word characters only.
+     */
+    public boolean isWord(String s) {
+        if (s.length() < 1) return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 128 || _classes[c] != WORD) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * This work is licensed under a Creative Commons Attribution-NonCommercial-NoDerivatives 4.0
+ * International License (http://creativecommons.org/licenses/by-nc-nd/4.0/).
+ */
+
+package me.yuhuan.utilities;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A hashed timer wheel: items are scheduled into one of a fixed number of slots by their deadline, and the wheel
+ * is advanced one tick (one slot) at a time. Scheduling is O(1), and advancing only touches the items in the
+ * slots passed, instead of every item. Deadlines are rounded up to a whole tick.
+ * @param <T> Type of the scheduled items.
+ */
+public class HashedTimerWheel<T> {
+
+    static class Timeout<T> {
+        T item;
+        long remainingRounds;
+
+        Timeout(T item, long remainingRounds) {
+            this.item = item;
+            this.remainingRounds = remainingRounds;
+        }
+    }
+
+    final long _tickDuration;
+    final ArrayList<ArrayList<Timeout<T>>> _slots;
+    int _size;
+
+    /**
+     * The next tick to be processed.
+     */
+    long _nextTick;
+
+    /**
+     * @param tickDuration Length of a tick, in the same unit as the deadlines.
+     * @param numSlots Number of slots. Deadlines further than numSlots ticks away go around the wheel.
+     * @param now The current time.
+     */
+    public HashedTimerWheel(long tickDuration, int numSlots, long now) {
+        _tickDuration = tickDuration;
+        _slots = new ArrayList<ArrayList<Timeout<T>>>(numSlots);
+        for (int i = 0; i < numSlots; i++) {
+            _slots.add(new ArrayList<Timeout<T>>());
+        }
+        _nextTick = now / tickDuration + 1;
+    }
+
+    public long getTickDuration() {
+        return _tickDuration;
+    }
+
+    public synchronized int size() {
+        return _size;
+    }
+
+    public synchronized void schedule(T item, long deadline) {
+        long tick = Math.max((deadline + _tickDuration - 1) / _tickDuration, _nextTick);
+        long remainingRounds = (tick - _nextTick) / _slots.size();
+        _slots.get((int)(tick % _slots.size())).add(new Timeout<T>(item, remainingRounds));
+        _size++;
+    }
+
+    /**
+     * Advances the wheel to the current time.
+     * @param now The current time.
+     * @param due Receives the items whose deadlines have passed. They are no longer scheduled.
+     */
+    public synchronized void advance(long now, List<T> due) {
+        long currentTick = now / _tickDuration;
+        while (_nextTick <= currentTick) {
+            Iterator<Timeout<T>> timeouts = _slots.get((int)(_nextTick % _slots.size())).iterator();
+            while (timeouts.hasNext()) {
+                Timeout<T> timeout = timeouts.next();
+                if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                }
+                else {
+                    timeouts.remove();
+                    _size--;
+                    due.add(timeout.item);
+                }
+            }
+            _nextTick++;
+        }
+    }
+}